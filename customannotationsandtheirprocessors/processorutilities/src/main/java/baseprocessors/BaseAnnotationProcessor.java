@@ -1,28 +1,30 @@
 package baseprocessors;
 
 import com.google.common.base.Predicates;
+import com.google.common.base.Splitter;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import lombok.Value;
 import utils.MoreElements;
 import utils.MoreTypes;
 
 import javax.annotation.processing.*;
-import javax.lang.model.element.Element;
-import javax.lang.model.element.ElementKind;
-import javax.lang.model.element.Name;
-import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.*;
 import javax.lang.model.type.ErrorType;
+import javax.lang.model.util.ElementScanner9;
 import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 import javax.tools.Diagnostic;
-import java.util.LinkedHashSet;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.Set;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.base.Throwables.throwIfUnchecked;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
-import static com.google.common.collect.Iterables.transform;
 import static com.google.common.collect.Multimaps.filterKeys;
 import static utils.MoreElements.getEnclosingType;
 
@@ -41,7 +43,9 @@ import static utils.MoreElements.getEnclosingType;
  * <p>A non-package element is considered well-formed if its type, type parameters, parameters,
  * default values, supertypes, annotations, and enclosed elements are. Package elements are treated
  * similarly, except that their enclosed elements are not validated. See {@link
- * SuperficialValidation#validateElement(Element)} for details.
+ * SuperficialValidation#validateElement(Element)} for details. A step that does not need all of that can lower the
+ * validation of its elements' enclosing types through {@link ProcessingStep#validationDepth()}, and can spare the
+ * validation of the values of the annotations it does not read through {@link ProcessingStep#readAnnotations()}.
  *
  * <p>The primary disadvantage to this validation is that any element that forms a circular
  * dependency with a type generated by another {@code BaseAnnotationProcessor} will never compile
@@ -67,6 +71,21 @@ import static utils.MoreElements.getEnclosingType;
  *    <li>{@code filer}, the default annotation processor file creator {@link Filer}</li>
  * </ul>
  *
+ * <p>The supported annotations of each step are resolved to their {@link TypeElement}s once at the
+ * beginning of every round, and are available through {@link #getSupportedAnnotationTypeElementsByStep()}.
+ *
+ * <p>The time spent in each phase of a round (the hooks, the collection and validation of the elements, and each
+ * step) can be recorded into a {@link ProcessingMetricsSink}, such as a per-compilation report or a Chrome trace;
+ * see {@link #createMetricsSink()}. The rounds, steps, and validations are also emitted as JDK Flight Recorder events
+ * of the "Annotation Processing" category.
+ *
+ * <p>Processors can declare their Gradle incremental annotation processing category with
+ * {@link IncrementalAnnotationProcessor}, in which case the restrictions of the category are checked while processing,
+ * and violations are reported as errors.
+ *
+ * <p>Steps whose work is mostly independent of the javac model, such as rendering of generated sources, can
+ * implement {@link IndependentProcessingStep} to have that work run concurrently with that of other such steps.
+ *
  * <p>Any logic that needs to happen once per round should be specified in {@link
  * #postRoundProcess(RoundEnvironment)} and {@link #preRoundProcess(RoundEnvironment)} methods.
  *
@@ -153,6 +172,114 @@ public abstract class BaseAnnotationProcessor extends AbstractProcessor {
      * of processing, until either properly processed or reported as not processed elements.
      */
     Set<? extends Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation);
+
+    /**
+     * How much of the enclosing type of an annotated element must be well-informed before it is passed to this
+     * {@code ProcessingStep}. A step that reads only the class-level information of its elements can spare the
+     * validation of their members by returning {@link SuperficialValidation.Depth#SIGNATURE_ONLY}. If steps with
+     * different depths share an annotation, its elements are validated to the deepest of them.
+     *
+     * @return the depth to which the enclosing types of the elements of this step are validated; by default,
+     * {@link SuperficialValidation.Depth#FULL}.
+     */
+    default SuperficialValidation.Depth validationDepth() {
+      return SuperficialValidation.Depth.FULL;
+    }
+
+    /**
+     * The fully-qualified names of the annotations, other than {@link #annotations()}, whose values this
+     * {@code ProcessingStep} reads from its elements or their enclosing types; or {@code null} if it may read the
+     * values of any annotation. If no step of a processor returns {@code null}, only the values of the annotations
+     * read by its steps are validated, and the values of all other annotations, such as the large metadata of other
+     * frameworks, are left unvalidated. Their types are validated regardless.
+     *
+     * @return the names of the other annotations whose values are read by this step; by default, {@code null}.
+     */
+    default Set<String> readAnnotations() {
+      return null;
+    }
+  }
+
+  /**
+   * A {@link ProcessingStep} that declares itself independent of the other steps, so that its CPU-bound work
+   * (e.g. rendering of the generated sources) may run concurrently with that of the other independent steps.
+   *
+   * <p>Neither the javac model nor the {@link Filer} and {@link Messager} are thread-safe. Therefore, an
+   * independent step is split into three phases:
+   * <ol>
+   *    <li>{@link #prepare(ImmutableSetMultimap)} runs on the processor thread, and reads everything needed
+   *        from the model. It returns the rejected elements, and the rendering work.</li>
+   *    <li>The rendering work runs on a worker thread, and must not touch any {@link Element}, {@link
+   *        javax.lang.model.type.TypeMirror}, or the processing environment.</li>
+   *    <li>The commit action returned by the rendering work runs on the processor thread, in the order of the
+   *        steps, and is where files are written and messages are printed.</li>
+   * </ol>
+   *
+   * <p>If the processor does not run steps concurrently (see {@link #independentStepsParallelism()}), the three
+   * phases simply run one after another.
+   */
+  public interface IndependentProcessingStep extends ProcessingStep {
+
+    /**
+     * The model-reading phase of this step, run on the processor thread. It is guaranteed that the keys in
+     * {@code elementsByAnnotation} will be a subset of the set returned by {@link #annotations()}.
+     *
+     * @param elementsByAnnotation the well-formed elements to be processed mapped to their invoking annotation.
+     * @return the rejected elements of this step, as in {@link ProcessingStep#process(ImmutableSetMultimap)},
+     * and the model-independent rendering work.
+     */
+    Preparation prepare(ImmutableSetMultimap<String, Element> elementsByAnnotation);
+
+    @Override
+    default Set<? extends Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
+      Preparation preparation = prepare(elementsByAnnotation);
+      try {
+        preparation.getRendering().call().run();
+      } catch (Exception e) {
+        throw new IllegalStateException("The rendering of " + this + " failed.", e);
+      }
+      return preparation.getRejectedElements();
+    }
+
+    /**
+     * The outcome of {@link #prepare(ImmutableSetMultimap)}.
+     */
+    @Value(staticConstructor = "of")
+    class Preparation {
+      /**
+       * The rejected (deferred) elements.
+       */
+      Set<? extends Element> rejectedElements;
+      /**
+       * The rendering work, run on a worker thread, returning the commit action to be run on the processor thread.
+       */
+      Callable<? extends Runnable> rendering;
+    }
+  }
+
+  /**
+   * A {@link ProcessingStep} whose outputs can be cached across compilations. When the processing cache is enabled
+   * by the {@value ProcessingCache#CACHE_DIRECTORY_OPTION} processor option, the elements of a type (or package)
+   * whose declaration is unchanged since the step last processed it are not passed to the step again; instead, the
+   * source files previously generated from it are written again.
+   *
+   * <p>By implementing this interface, the step guarantees that
+   * <ul>
+   *    <li>the source files it generates from the elements of a type (or package, or module) depend only on the
+   *        declaration of that type (or package, or module), i.e. its annotations, modifiers, members' signatures
+   *        (including constant values and annotation element defaults), and the declarations of its supertypes,
+   *        and</li>
+   *    <li>it creates each source file, through {@code filer}, with an element of that type (or package) as an
+   *        originating element; never through {@code processingEnv.getFiler()}, or a filer retained from an earlier
+   *        round, which cannot be recorded.</li>
+   * </ul>
+   * If the step writes other kinds of files, or files without an originating element, nothing is cached for it in
+   * that round. A type (or package) from which no source file is recorded is not cached either, since its outputs,
+   * if any, were not observed. The caching applies to the sequential {@link #process(ImmutableSetMultimap)} of the
+   * step, and is invalidated by any change of the code of the processor, the step, or the
+   * {@linkplain #cacheVersionClasses() classes the outputs depend on}, or of the processor options.
+   */
+  public interface CacheableProcessingStep extends ProcessingStep {
   }
 
   /**
@@ -177,6 +304,27 @@ public abstract class BaseAnnotationProcessor extends AbstractProcessor {
    */
   protected abstract void postRoundProcess(RoundEnvironment roundEnv);
 
+  /**
+   * Returns the maximum number of {@linkplain IndependentProcessingStep}s whose rendering work may run
+   * concurrently. Values less than {@code 2} disable the concurrency. Default is the number of available processors.
+   *
+   * @return the maximum number of concurrently rendering {@linkplain IndependentProcessingStep}s.
+   */
+  protected int independentStepsParallelism() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Returns the classes, in addition to the processor and its {@linkplain CacheableProcessingStep}s, whose code the
+   * outputs of the cacheable steps depend on, e.g. the code generation libraries. The processing cache is invalidated
+   * whenever the code of any of them changes. Default is the class of the processor.
+   *
+   * @return the classes whose code the cached outputs depend on.
+   */
+  protected Iterable<Class<?>> cacheVersionClasses() {
+    return ImmutableList.of(getClass());
+  }
+
   /**
    * @return true if the annotations should be claimed after the process. Default is {@code false}.
    */
@@ -190,17 +338,47 @@ public abstract class BaseAnnotationProcessor extends AbstractProcessor {
   /* ********************************************************************* */
 
   /* *** Note: In the following namings, TP is the abbreviation of TypeOrPackage *** */
+  /* The TPEltNames of all the elements encountered; the sets of TPEltNames below are sets of their ids */
+  private final TPEltNamePool tPEltNames = new TPEltNamePool();
   /**
    * Ill-formed elements are deferred. For more information about well-formedness refer to {@link BaseAnnotationProcessor} documentation.
+   * Each is mapped to the shallowest validation depth at which it was found ill-formed; the elements of the annotations
+   * validated to shallower depths are not deferred, since they have already been processed.
    */
-  private final Set<TPEltName> illInformedTPEltNames = new LinkedHashSet<>();
-  private final SetMultimap<ProcessingStep, TPEltName> tPEltNamesDeferredByProcessingSteps = LinkedHashMultimap.create();
+  private final DepthsById illInformedTPEltNames = new DepthsById();
+  /**
+   * The index of the ill-formed elements by the simple name of the (first) unresolved type that made them ill-formed,
+   * and its reverse. Only the ill-formed elements whose missing type is supplied by a root element of a round are
+   * validated again in that round. Ill-formed elements with an unknown missing type are not indexed.
+   */
+  private final SetMultimap<String, TPEltName> illInformedTPEltNamesByMissingTypeName = LinkedHashMultimap.create();
+  private final Map<TPEltName, String> missingTypeNameByIllInformedTPEltName = new HashMap<>();
+  /* What made each ill-formed element ill-formed when it was last validated, as described by ValidationResult */
+  private final Map<TPEltName, String> invalidityByIllInformedTPEltName = new HashMap<>();
+  private final Map<ProcessingStep, BitSet> tPEltNamesDeferredByProcessingSteps = new HashMap<>();
+  private static final BitSet EMPTY_IDS = new BitSet();
 
   protected Elements eltUtils;
   protected Types typeUtils;
   protected Messager messager;
   protected Filer filer;
   private ImmutableList<? extends ProcessingStep> processingSteps;
+  /* Its memo is round-scoped */
+  private SuperficialValidation validator;
+  private TPEltNameResolver tPEltNameResolver;
+  /* Round-scoped; see getSupportedAnnotationTypeElementsByStep() */
+  private ImmutableSetMultimap<ProcessingStep, TypeElement> annotationTypeElementsByStep;
+  private ImmutableSet<TypeElement> annotationTypeElements;
+  /* Null if not enabled; see CacheableProcessingStep */
+  private ProcessingCache processingCache;
+  /* Null if the processor is not declared incremental; see IncrementalAnnotationProcessor */
+  private IncrementalityChecks incrementalityChecks;
+  /* Null if the metrics are not recorded; see createMetricsSink() */
+  private ProcessingMetricsSink metricsSink;
+  private int round;
+  /* Lazily created, and shut down when processing is over; see independentStepsParallelism() */
+  private ExecutorService independentStepsExecutor;
+  private static final long INDEPENDENT_STEPS_KEEP_ALIVE_SECONDS = 5;
 
   @Override
   public final synchronized void init(ProcessingEnvironment processingEnv) {
@@ -210,6 +388,68 @@ public abstract class BaseAnnotationProcessor extends AbstractProcessor {
     this.messager = processingEnv.getMessager();
     this.filer = processingEnv.getFiler();
     this.processingSteps = ImmutableList.copyOf(processingSteps());
+    this.validator = createValidator();
+    this.tPEltNameResolver = new TPEltNameResolver(eltUtils);
+
+    IncrementalAnnotationProcessor incremental = getClass().getAnnotation(IncrementalAnnotationProcessor.class);
+    if (incremental != null) {
+      this.incrementalityChecks = new IncrementalityChecks(incremental.value(), getClass().getCanonicalName(), messager);
+      this.filer = incrementalityChecks.checking(filer);
+    }
+
+    String cacheDirectory = processingEnv.getOptions().get(ProcessingCache.CACHE_DIRECTORY_OPTION);
+    if (cacheDirectory != null)
+      this.processingCache = new ProcessingCache(Paths.get(cacheDirectory), getClass().getName(), messager,
+          ProcessingCache.processorVersion(cacheVersionClasses(), processingEnv.getOptions()));
+
+    this.metricsSink = createMetricsSink();
+  }
+
+  /**
+   * Returns the {@link ProcessingMetricsSink} the timings of the phases of this processor are recorded into, or
+   * {@code null} to record nothing. {@link #processingEnv} is guaranteed to be set when this method is invoked.
+   *
+   * <p>By default, a report is written under the class output if the {@value ProcessingMetricsSink#METRICS_OPTION}
+   * processor option is set to {@code json} or {@code csv}, and a Chrome trace is written if the
+   * {@value ProcessingMetricsSink#TRACE_OPTION} processor option is set; see {@link ProcessingMetricsSink}.
+   *
+   * @return the metrics sink of this processor, or {@code null} if the metrics are not to be recorded.
+   */
+  protected ProcessingMetricsSink createMetricsSink() {
+    List<ProcessingMetricsSink> sinks = new ArrayList<>();
+
+    String format = processingEnv.getOptions().get(ProcessingMetricsSink.METRICS_OPTION);
+    if (format != null) {
+      try {
+        // The report does not belong to any element; it bypasses the incrementality checks of `filer`.
+        sinks.add(new MetricsReportSink(processingEnv.getFiler(), messager, getClass().getName(),
+            MetricsReportSink.Format.valueOf(format.toUpperCase(Locale.ROOT))));
+      } catch (IllegalArgumentException e) {
+        messager.printMessage(Diagnostic.Kind.WARNING,
+            "Unknown metrics format " + format + " for " + ProcessingMetricsSink.METRICS_OPTION + "; expected json or csv.");
+      }
+    }
+
+    String traceDirectory = processingEnv.getOptions().get(ProcessingMetricsSink.TRACE_OPTION);
+    if (traceDirectory != null)
+      sinks.add(new TraceEventSink(Paths.get(traceDirectory), getClass().getName(), eltUtils, messager));
+
+    return sinks.isEmpty() ? null : ProcessingMetricsSink.combining(sinks);
+  }
+
+  /**
+   * Returns the processor options recognized by this processor, including the ones of {@code BaseAnnotationProcessor}.
+   *
+   * @return the processor options recognized by this processor.
+   */
+  @Override
+  public Set<String> getSupportedOptions() {
+    return ImmutableSet.<String>builder()
+        .addAll(super.getSupportedOptions())
+        .add(ProcessingCache.CACHE_DIRECTORY_OPTION)
+        .add(ProcessingMetricsSink.METRICS_OPTION)
+        .add(ProcessingMetricsSink.TRACE_OPTION)
+        .build();
   }
 
   /**
@@ -227,18 +467,80 @@ public abstract class BaseAnnotationProcessor extends AbstractProcessor {
         .collect(toImmutableSet());
   }
 
-  private ImmutableSet<TypeElement> getSupportedAnnotationTypeElements() {
-    checkState(processingSteps != null);
-    return processingSteps.stream()
-        .flatMap(processingStep -> getSupportedAnnotationTypeElements(processingStep).stream())
-        .collect(toImmutableSet());
+  /**
+   * Returns the resolution table of the current round, mapping each registered {@linkplain ProcessingStep}
+   * to the {@link TypeElement}s of its supported annotations that could be resolved in this round.
+   * Annotation names that cannot (yet) be resolved, for example because they are generated by another
+   * processor in a later round, are absent from the table.
+   *
+   * <p>The table is built once at the beginning of each round and discarded at its end, since neither
+   * the resolvability of a name nor the identity of the resolved {@linkplain TypeElement} is
+   * guaranteed to survive a round.
+   *
+   * @return the round-scoped mapping from each {@linkplain ProcessingStep} to its resolved annotation types.
+   * @throws IllegalStateException if invoked outside a processing round
+   */
+  protected final ImmutableSetMultimap<ProcessingStep, TypeElement> getSupportedAnnotationTypeElementsByStep() {
+    checkState(annotationTypeElementsByStep != null, "The annotation resolution table is only available during a round.");
+    return annotationTypeElementsByStep;
   }
 
-  private ImmutableSet<TypeElement> getSupportedAnnotationTypeElements(ProcessingStep processingStep) {
-    return processingStep.annotations().stream()
-        .map(eltUtils::getTypeElement)
-        .filter(Objects::nonNull)
-        .collect(toImmutableSet());
+  /**
+   * Returns the resolved {@link TypeElement}s of all the annotations supported by the registered
+   * {@linkplain ProcessingStep}s in the current round. See {@link #getSupportedAnnotationTypeElementsByStep()}.
+   *
+   * @return the resolved {@linkplain TypeElement}s of all the supported annotations in the current round.
+   * @throws IllegalStateException if invoked outside a processing round
+   */
+  protected final ImmutableSet<TypeElement> getSupportedAnnotationTypeElements() {
+    checkState(annotationTypeElements != null, "The annotation resolution table is only available during a round.");
+    return annotationTypeElements;
+  }
+
+  /**
+   * Returns the resolved {@link TypeElement}s of the annotations supported by {@code processingStep}
+   * in the current round. See {@link #getSupportedAnnotationTypeElementsByStep()}.
+   *
+   * @param processingStep the {@linkplain ProcessingStep} whose supported annotation types are inquired
+   * @return the resolved {@linkplain TypeElement}s of the annotations supported by {@code processingStep}.
+   * @throws IllegalStateException if invoked outside a processing round
+   */
+  protected final ImmutableSet<TypeElement> getSupportedAnnotationTypeElements(ProcessingStep processingStep) {
+    return getSupportedAnnotationTypeElementsByStep().get(processingStep);
+  }
+
+  /**
+   * Creates the validator of the processor, {@linkplain SuperficialValidation#memoizing(ProcessingEnvironment, Set)
+   * scoped} to the values of the annotations read by the steps if they all declare the ones they read.
+   */
+  private SuperficialValidation createValidator() {
+    ImmutableSet.Builder<String> readAnnotations = ImmutableSet.builder();
+    for (ProcessingStep processingStep : processingSteps) {
+      Set<String> stepReadAnnotations = processingStep.readAnnotations();
+      if (stepReadAnnotations == null)
+        return SuperficialValidation.memoizing(processingEnv);
+      readAnnotations.addAll(processingStep.annotations()).addAll(stepReadAnnotations);
+    }
+    return SuperficialValidation.memoizing(processingEnv, readAnnotations.build());
+  }
+
+  private void resolveSupportedAnnotationTypeElements() {
+    ImmutableSetMultimap.Builder<ProcessingStep, TypeElement> builder = ImmutableSetMultimap.builder();
+    // Steps may share annotations; each name is looked up only once per round.
+    Map<String, Optional<TypeElement>> resolvedByName = new HashMap<>();
+    for (ProcessingStep processingStep : processingSteps) {
+      for (String annotationName : processingStep.annotations()) {
+        resolvedByName.computeIfAbsent(annotationName, name -> Optional.ofNullable(eltUtils.getTypeElement(name)))
+            .ifPresent(annotationType -> builder.put(processingStep, annotationType));
+      }
+    }
+    annotationTypeElementsByStep = builder.build();
+    annotationTypeElements = ImmutableSet.copyOf(annotationTypeElementsByStep.values());
+  }
+
+  private void discardSupportedAnnotationTypeElements() {
+    annotationTypeElementsByStep = null;
+    annotationTypeElements = null;
   }
 
   /**
@@ -268,85 +570,154 @@ public abstract class BaseAnnotationProcessor extends AbstractProcessor {
     checkState(filer != null);
     checkState(processingSteps != null);
 
-    preRoundProcess(roundEnv);
+    round++;
+    long roundStart = startTiming();
+    ProcessingEvents.RoundEnd roundEvent = ProcessingEvents.beginRound(getClass().getName(), round);
+    resolveSupportedAnnotationTypeElements();
+    tPEltNameResolver.beginRound(roundEnv.getRootElements());
+    if (incrementalityChecks != null)
+      incrementalityChecks.checkAnnotationTypes(annotationTypeElements);
+    try {
+      long preRoundStart = startTiming();
+      preRoundProcess(roundEnv);
+      recordTiming(ProcessingMetricsSink.Phase.PRE_ROUND, "", preRoundStart);
 
-    // If this is the last round, report all of the missing elements if there
-    // were no errors raised in the round; otherwise reporting the missing
-    // elements just adds noise to the output.
-    if (roundEnv.processingOver()) {
-      postRoundProcess(roundEnv);
-      if (!roundEnv.errorRaised()) {
-        reportMissingTPElements(
-            ImmutableSet.<TPEltName>builder()
-                .addAll(illInformedTPEltNames)
-                .addAll(tPEltNamesDeferredByProcessingSteps.values())
-                .build()
-        );
+      // If this is the last round, report all of the missing elements if there
+      // were no errors raised in the round; otherwise reporting the missing
+      // elements just adds noise to the output.
+      if (roundEnv.processingOver()) {
+        long postRoundStart = startTiming();
+        postRoundProcess(roundEnv);
+        recordTiming(ProcessingMetricsSink.Phase.POST_ROUND, "", postRoundStart);
+        if (!roundEnv.errorRaised()) {
+          BitSet missingTPEltNames = (BitSet) illInformedTPEltNames.ids().clone();
+          tPEltNamesDeferredByProcessingSteps.values().forEach(missingTPEltNames::or);
+          reportMissingTPElements(missingTPEltNames);
+        }
+        shutdownIndependentStepsExecutor();
+        return shouldClaimAnnotations();
       }
+
+      long scanStart = startTiming();
+      ImmutableSetMultimap<TypeElement, Element> wellInformedElements = getWellInformedElements(roundEnv);
+      recordTiming(ProcessingMetricsSink.Phase.SCAN, "", scanStart);
+
+      process(wellInformedElements);
+
+      long postRoundStart = startTiming();
+      postRoundProcess(roundEnv);
+      recordTiming(ProcessingMetricsSink.Phase.POST_ROUND, "", postRoundStart);
+
       return shouldClaimAnnotations();
+    } finally {
+      discardSupportedAnnotationTypeElements();
+      validator.clearCache();
+      tPEltNameResolver.endRound();
+      recordTiming(ProcessingMetricsSink.Phase.ROUND, String.valueOf(round), roundStart);
+      ProcessingEvents.endRound(roundEvent, getClass().getName(), round, roundEnv.processingOver());
+      if (roundEnv.processingOver()) {
+        if (metricsSink != null)
+          metricsSink.processingOver();
+        // The steps may have run the static validators on this thread
+        SuperficialValidation.releaseStaticValidator();
+      }
     }
+  }
 
-    process(getWellInformedElements(roundEnv));
-
-    postRoundProcess(roundEnv);
+  /**
+   * Returns the start of a phase to be passed to {@link #recordTiming}; the clock is not read if the metrics are not
+   * recorded.
+   */
+  final long startTiming() {
+    return metricsSink == null ? 0L : System.nanoTime();
+  }
 
-    return shouldClaimAnnotations();
+  /**
+   * Records the phase started at {@code startNanos}, as given by {@link #startTiming()}, into the metrics sink.
+   */
+  final void recordTiming(ProcessingMetricsSink.Phase phase, String name, long startNanos) {
+    if (metricsSink != null)
+      metricsSink.record(phase, name, round, startNanos, System.nanoTime() - startNanos);
   }
 
-  private void reportMissingTPElements(Set<TPEltName> missingTPEltNames) {
-    for (TPEltName missingTPEltName : missingTPEltNames) {
-      Optional<? extends Element> missingTPElement = missingTPEltName.getElement(eltUtils);
+  private void reportMissingTPElements(BitSet missingTPEltNames) {
+    for (int id = missingTPEltNames.nextSetBit(0); id >= 0; id = missingTPEltNames.nextSetBit(id + 1)) {
+      TPEltName missingTPEltName = tPEltNames.get(id);
+      Optional<? extends Element> missingTPElement = tPEltNameResolver.resolve(missingTPEltName);
+      String invalidity = invalidityByIllInformedTPEltName.get(missingTPEltName);
       if (missingTPElement.isPresent()) {
         messager.printMessage(
             Diagnostic.Kind.ERROR,
             processingErrorMessage(
-                "this " + missingTPElement.get().getKind().name()
+                "this " + missingTPElement.get().getKind().name(),
+                invalidity
             ),
             missingTPElement.get()
         );
       } else {
-        messager.printMessage(Diagnostic.Kind.ERROR, processingErrorMessage(missingTPEltName.getName()));
+        messager.printMessage(Diagnostic.Kind.ERROR, processingErrorMessage(missingTPEltName.getName(), invalidity));
       }
     }
   }
 
-  private String processingErrorMessage(String target) {
+  /**
+   * @param invalidity what could not be resolved, as described by {@link ValidationResult#describe()}; null if unknown
+   */
+  private String processingErrorMessage(String target, String invalidity) {
     return String.format(
         "[AnnotationProcessorError: %s ::] %s was unable to process %s because not all of its "
-            + "dependencies could be resolved. Check for compilation errors or a circular "
+            + "dependencies could be resolved%s. Check for compilation errors or a circular "
             + "dependency with generated code.",
-        getClass().getSimpleName(), getClass().getCanonicalName(), target);
+        getClass().getSimpleName(), getClass().getCanonicalName(), target,
+        invalidity != null ? " (unresolved: " + invalidity + ")" : "");
   }
 
   /**
-   * Finds all the well-informed annotated elements contained within all of the ill-informed elements.
-   * Note that the elements deferred by processing steps are guaranteed to be well-informed; therefore,
-   * they are ignored (not returned) here, and they will be considered directly in the `process` method.
+   * Finds all the well-informed annotated elements contained within the ill-informed elements that could have
+   * become well-informed in this round; i.e. the ones for which a root element of this round supplies their
+   * missing type, and the ones whose missing type is not known. Note that the elements deferred by processing steps
+   * are guaranteed to be well-informed; therefore, they are ignored (not returned) here, and they will be considered
+   * directly in the `process` method.
    * <p>
    * It then returns all these elements together with well-informed elements associated to the current round.
    * All encountered ill-informed elements will be deferred.
    */
   private ImmutableSetMultimap<TypeElement, Element> getWellInformedElements(RoundEnvironment roundEnv) {
-    ImmutableSet<TPEltName> prevIllInformedTPEltNames = ImmutableSet.copyOf(illInformedTPEltNames);
-    illInformedTPEltNames.clear();
+    ImmutableSet<TypeElement> supportedAnnotationTypes = getSupportedAnnotationTypeElements();
+    ImmutableMap<Name, TypeElement> supportedAnnotationTypesByName = indexByQualifiedName(supportedAnnotationTypes);
+    Map<TypeElement, SuperficialValidation.Depth> validationDepths = getValidationDepthsByAnnotationType();
+
+    // All the root elements of this round are scanned once, bucketing every annotated element by its supported
+    // annotations, and collecting the names that are supplied by the types of this round.
+    AnnotatedElementsScanner roundScanner = new AnnotatedElementsScanner(eltUtils, supportedAnnotationTypesByName);
+    roundScanner.scanRootElements(roundEnv.getRootElements());
+    ImmutableSetMultimap<TypeElement, Element> roundElementsByAnnotation = roundScanner.getAnnotatedElements();
+
+    ImmutableMap<TPEltName, SuperficialValidation.Depth> unblockedTPEltNames =
+        removeUnblockedIllInformedTPEltNames(roundScanner.getSuppliedTypeNames());
 
-    /* Stores all the previously ill-informed elements that are accessible by `eltUtils`, and all their enclosed elements (excluding (inner) class and interface) */
+    /* Stores all the unblocked ill-informed elements that are accessible by `eltUtils`, and all their enclosed elements (excluding (inner) class and interface) */
     ImmutableSetMultimap.Builder<TypeElement, Element> readyPrevIllinformedElementsByAnnotationBuilder = ImmutableSetMultimap.builder();
 
-    for (TPEltName deferredTPEltName : prevIllInformedTPEltNames) {
-      Optional<? extends Element> deferredTPElement = deferredTPEltName.getElement(eltUtils);
+    for (Map.Entry<TPEltName, SuperficialValidation.Depth> unblockedEntry : unblockedTPEltNames.entrySet()) {
+      TPEltName deferredTPEltName = unblockedEntry.getKey();
+      SuperficialValidation.Depth failedDepth = unblockedEntry.getValue();
+      Optional<? extends Element> deferredTPElement = tPEltNameResolver.resolve(deferredTPEltName);
       if (deferredTPElement.isPresent()) {
         addAllInclusiveEnclosedAnnotatedElementsByAnnotations(
             //It will add the element and its enclosed elements (excluding (inner) class and interface) if there is a matching annotation
             deferredTPElement.get(),
-            getSupportedAnnotationTypeElements(),
+            // The elements of the annotations validated to shallower depths have already been processed
+            ImmutableMap.copyOf(Maps.filterValues(
+                supportedAnnotationTypesByName,
+                annotationType -> validationDepths.get(annotationType).compareTo(failedDepth) >= 0)),
             readyPrevIllinformedElementsByAnnotationBuilder
         );
       } else {
         // no element with deferredTPEltName could be found (yet).
         // [  At some point the element was seen before, since at some point its TPEltName
         //    was extracted and added to `illInformedTPEltNames;` however, now it is not found. ]
-        illInformedTPEltNames.add(deferredTPEltName);
+        deferIllInformed(deferredTPEltName, failedDepth, Optional.empty());
       }
     }
     ImmutableSetMultimap<TypeElement, Element> readyPrevIllInformedElementsByAnnotation = readyPrevIllinformedElementsByAnnotationBuilder.build();
@@ -354,30 +725,34 @@ public abstract class BaseAnnotationProcessor extends AbstractProcessor {
     /* Finding all well-informed Elements mapped to their corresponding annotation (of type TypeElement) */
     ImmutableSetMultimap.Builder<TypeElement, Element> wellInformedEltsBuilder = ImmutableSetMultimap.builder();
 
-    // For optimization purposes, the TPEltNames that have already been verified to be well-informed are stored.
-    Set<TPEltName> wellInformedTPEltNames = new LinkedHashSet<>();
+    // For optimization purposes, the TPEltNames that have already been verified to be well-informed are stored,
+    // together with the deepest depth to which they are verified.
+    DepthsById wellInformedTPEltNames = new DepthsById();
 
     // Look at the elements we've found and the new elements from this round and check for well-informedness.
-    for (TypeElement annotationType : getSupportedAnnotationTypeElements()) {
-      Set<? extends Element> roundElements = roundEnv.getElementsAnnotatedWith(annotationType); //it automatically recurse to enclosed elements
+    for (TypeElement annotationType : supportedAnnotationTypes) {
+      Set<? extends Element> roundElements = roundElementsByAnnotation.get(annotationType);
       ImmutableSet<Element> readyPrevIllInformedElements = readyPrevIllInformedElementsByAnnotation.get(annotationType);
+      SuperficialValidation.Depth depth = validationDepths.get(annotationType);
 
       // Note that the elements deferred by processing steps are guaranteed to be well-informed; therefore,
       // they are ignored (not returned) here, and they will be considered directly in the `process` method.
       for (Element element : Sets.union(roundElements, readyPrevIllInformedElements)) {
-        TPEltName tpEltName = TPEltName.forElement(element);
+        TPEltName tpEltName = tPEltNames.forElement(element);
         boolean isWellInformedElement =
-            wellInformedTPEltNames.contains(tpEltName) || // for optimization
-                (!illInformedTPEltNames.contains(tpEltName) &&
-                    // for every element that is not module/package to be well-informed its enclosing-type in its entirety should be well-informed
-                    SuperficialValidation.validateElement(
-                        element.getKind() == ElementKind.PACKAGE ? element : MoreElements.getEnclosingType(element)) //TODO maybe add Module handling
+            isAtLeast(wellInformedTPEltNames.get(tpEltName.getId()), depth) || // for optimization
+                (!isAtMost(illInformedTPEltNames.get(tpEltName.getId()), depth) &&
+                    // for every element that is not module/package to be well-informed its enclosing-type, to the depth, should be well-informed
+                    validateTPElement(
+                        tpEltName,
+                        element.getKind() == ElementKind.PACKAGE || element.getKind() == ElementKind.MODULE
+                            ? element
+                            : MoreElements.getEnclosingType(element),
+                        depth)
                 );
         if (isWellInformedElement) {
           wellInformedEltsBuilder.put(annotationType, element);
-          wellInformedTPEltNames.add(tpEltName);
-        } else {
-          illInformedTPEltNames.add(tpEltName);
+          wellInformedTPEltNames.putDeeper(tpEltName.getId(), depth);
         }
       }
 
@@ -386,6 +761,95 @@ public abstract class BaseAnnotationProcessor extends AbstractProcessor {
     return wellInformedEltsBuilder.build();
   }
 
+  /**
+   * Returns the depth to which the elements of each supported annotation type are validated in the current round;
+   * the deepest of the {@linkplain ProcessingStep#validationDepth() depths} of the steps supporting it.
+   */
+  private Map<TypeElement, SuperficialValidation.Depth> getValidationDepthsByAnnotationType() {
+    Map<TypeElement, SuperficialValidation.Depth> validationDepths = new HashMap<>();
+    getSupportedAnnotationTypeElementsByStep().forEach((processingStep, annotationType) ->
+        validationDepths.merge(annotationType, processingStep.validationDepth(), BaseAnnotationProcessor::deeper));
+    return validationDepths;
+  }
+
+  private static SuperficialValidation.Depth deeper(SuperficialValidation.Depth depth1, SuperficialValidation.Depth depth2) {
+    return depth1.compareTo(depth2) >= 0 ? depth1 : depth2;
+  }
+
+  private static boolean isAtLeast(SuperficialValidation.Depth depth, SuperficialValidation.Depth required) {
+    return depth != null && depth.compareTo(required) >= 0;
+  }
+
+  private static boolean isAtMost(SuperficialValidation.Depth depth, SuperficialValidation.Depth required) {
+    return depth != null && depth.compareTo(required) <= 0;
+  }
+
+  /**
+   * Superficially validates the type or package element {@code tPElement}, named {@code tPEltName}, to {@code depth},
+   * and defers it keyed by its missing type if it is ill-informed.
+   */
+  private boolean validateTPElement(TPEltName tPEltName, Element tPElement, SuperficialValidation.Depth depth) {
+    long validationStart = startTiming();
+    ProcessingEvents.ValidationCheck validationEvent = ProcessingEvents.beginValidation();
+    ValidationResult validation = validator.explain(tPElement, depth);
+    recordTiming(ProcessingMetricsSink.Phase.VALIDATION, tPEltName.getName(), validationStart);
+
+    Optional<String> missingTypeName = validation.getMissingTypeName();
+    ProcessingEvents.endValidation(
+        validationEvent, getClass().getName(), tPEltName.getName(), validation.isValid(), missingTypeName.orElse(null));
+    if (validation.isValid()) {
+      invalidityByIllInformedTPEltName.remove(tPEltName);
+    } else {
+      invalidityByIllInformedTPEltName.put(tPEltName, validation.describe());
+      deferIllInformed(tPEltName, depth, missingTypeName);
+    }
+    return validation.isValid();
+  }
+
+  /**
+   * Defers the {@code tPEltName} found ill-informed at {@code depth}. If the simple name of the (first) type that made
+   * it ill-informed is known, it will be retried only in a round in which a type with that name is supplied; otherwise,
+   * it is retried in every round. If it is already deferred, i.e. it is now found ill-informed at a shallower depth,
+   * it is retried by its new missing type instead.
+   */
+  private void deferIllInformed(TPEltName tPEltName, SuperficialValidation.Depth depth, Optional<String> missingTypeName) {
+    illInformedTPEltNames.put(tPEltName.getId(), depth);
+    String previousMissingTypeName = missingTypeNameByIllInformedTPEltName.remove(tPEltName);
+    if (previousMissingTypeName != null)
+      illInformedTPEltNamesByMissingTypeName.remove(previousMissingTypeName, tPEltName);
+    missingTypeName
+        .ifPresent(name -> {
+          illInformedTPEltNamesByMissingTypeName.put(name, tPEltName);
+          missingTypeNameByIllInformedTPEltName.put(tPEltName, name);
+        });
+  }
+
+  /**
+   * Removes, and returns, the ill-informed TPEltNames that may have become well-informed by the types supplying
+   * {@code suppliedTypeNames}, together with the ones whose missing type is not known. Each is mapped to the depth at
+   * which it was found ill-informed.
+   */
+  private ImmutableMap<TPEltName, SuperficialValidation.Depth> removeUnblockedIllInformedTPEltNames(Set<String> suppliedTypeNames) {
+    Set<TPEltName> unblockedTPEltNames = new LinkedHashSet<>();
+    BitSet illInformedIds = illInformedTPEltNames.ids();
+    for (int id = illInformedIds.nextSetBit(0); id >= 0; id = illInformedIds.nextSetBit(id + 1)) {
+      TPEltName illInformedTPEltName = tPEltNames.get(id);
+      if (!missingTypeNameByIllInformedTPEltName.containsKey(illInformedTPEltName))
+        unblockedTPEltNames.add(illInformedTPEltName);
+    }
+    for (String suppliedTypeName : suppliedTypeNames) {
+      for (TPEltName unblockedTPEltName : illInformedTPEltNamesByMissingTypeName.removeAll(suppliedTypeName)) {
+        missingTypeNameByIllInformedTPEltName.remove(unblockedTPEltName);
+        unblockedTPEltNames.add(unblockedTPEltName);
+      }
+    }
+
+    ImmutableMap.Builder<TPEltName, SuperficialValidation.Depth> unblocked = ImmutableMap.builder();
+    for (TPEltName unblockedTPEltName : unblockedTPEltNames)
+      unblocked.put(unblockedTPEltName, illInformedTPEltNames.remove(unblockedTPEltName.getId()));
+    return unblocked.build();
+  }
+
   /**
    * Adds {@code element} and its enclosed elements to {@code annotatedElements} if they are
    * annotated with any annotations in {@code annotationTypes}. Does not traverse to member types of
@@ -407,12 +871,13 @@ public abstract class BaseAnnotationProcessor extends AbstractProcessor {
   // The inner class and interface are ignored since they are not (directly) related to the elements definition //TODO (needs a bit more thought)
   private static void addAllInclusiveEnclosedAnnotatedElementsByAnnotations(
       Element element,
-      ImmutableSet<TypeElement> annotationTypes,
+      ImmutableMap<Name, TypeElement> annotationTypesByName,
       ImmutableSetMultimap.Builder<TypeElement, Element> annotatedElements) {
 
     for (Element enclosedElement : element.getEnclosedElements()) {
-      if (!MoreElements.isTypeElement(enclosedElement)) // to skip including the type elements
-        addAllInclusiveEnclosedAnnotatedElementsByAnnotations(enclosedElement, annotationTypes, annotatedElements);
+      // to skip including the type elements, and the packages of a module; they are tracked by their own names
+      if (!MoreElements.isTypeElement(enclosedElement) && enclosedElement.getKind() != ElementKind.PACKAGE)
+        addAllInclusiveEnclosedAnnotatedElementsByAnnotations(enclosedElement, annotationTypesByName, annotatedElements);
     }
 
     // element.getEnclosedElements() does NOT return parameter elements
@@ -426,39 +891,345 @@ public abstract class BaseAnnotationProcessor extends AbstractProcessor {
     // Note that elements of certain kinds can be isolated using methods in ElementFilter.
     if (element.getKind() == ElementKind.METHOD || element.getKind() == ElementKind.CONSTRUCTOR) {
       for (Element parameterElement : MoreElements.asExecutable(element).getParameters()) {
-        addAllInclusiveEnclosedAnnotatedElementsByAnnotations(parameterElement, annotationTypes, annotatedElements);
+        addAllInclusiveEnclosedAnnotatedElementsByAnnotations(parameterElement, annotationTypesByName, annotatedElements);
       }
     }
 
-    for (TypeElement annotationType : annotationTypes) {
-      if (MoreElements.isAnnotationPresent(element, annotationType)) {
+    putByPresentAnnotations(element, element.getAnnotationMirrors(), annotationTypesByName, annotatedElements);
+  }
+
+  /**
+   * Puts {@code element} in {@code annotatedElements} under every annotation type of {@code annotationTypesByName}
+   * that is among {@code annotationMirrors}. Each mirror is looked up by the qualified name of its annotation type,
+   * so the cost is independent of the number of annotation types.
+   */
+  private static void putByPresentAnnotations(
+      Element element,
+      List<? extends AnnotationMirror> annotationMirrors,
+      ImmutableMap<Name, TypeElement> annotationTypesByName,
+      ImmutableSetMultimap.Builder<TypeElement, Element> annotatedElements) {
+
+    for (AnnotationMirror annotationMirror : annotationMirrors) {
+      Element annotationElement = annotationMirror.getAnnotationType().asElement();
+      if (!MoreElements.isTypeElement(annotationElement))
+        continue;
+
+      TypeElement annotationType = annotationTypesByName.get(MoreElements.asTypeElement(annotationElement).getQualifiedName());
+      if (annotationType != null)
         annotatedElements.put(annotationType, element);
+    }
+  }
+
+  private static ImmutableMap<Name, TypeElement> indexByQualifiedName(Set<TypeElement> annotationTypes) {
+    return Maps.uniqueIndex(annotationTypes, TypeElement::getQualifiedName);
+  }
+
+  /**
+   * Scans the root elements of a round once, and buckets every element (including enclosed elements, parameters,
+   * and type parameters) by every one of the given annotation types present on it. It is a single-pass equivalent
+   * of calling {@link RoundEnvironment#getElementsAnnotatedWith(TypeElement)} for each of the annotation types;
+   * in particular, inherited annotations are considered for types, and a package's enclosed types are not
+   * scanned through the package.
+   */
+  private static final class AnnotatedElementsScanner extends ElementScanner9<Void, Void> {
+    private final Elements eltUtils;
+    private final ImmutableMap<Name, TypeElement> annotationTypesByName;
+    private final ImmutableSetMultimap.Builder<TypeElement, Element> annotatedElements = ImmutableSetMultimap.builder();
+    private final Set<String> suppliedTypeNames = new HashSet<>();
+    private final Set<Name> scannedPackageNames = new HashSet<>();
+
+    AnnotatedElementsScanner(Elements eltUtils, ImmutableMap<Name, TypeElement> annotationTypesByName) {
+      this.eltUtils = eltUtils;
+      this.annotationTypesByName = annotationTypesByName;
+    }
+
+    void scanRootElements(Set<? extends Element> rootElements) {
+      scan(rootElements, null);
+    }
+
+    ImmutableSetMultimap<TypeElement, Element> getAnnotatedElements() {
+      return annotatedElements.build();
+    }
+
+    /**
+     * The simple names of all the scanned types, and the segments of their package names. An unresolved type
+     * could be referred to by any of them.
+     */
+    Set<String> getSuppliedTypeNames() {
+      return suppliedTypeNames;
+    }
+
+    @Override
+    public Void scan(Element e, Void ignore) {
+      if (!annotationTypesByName.isEmpty()) {
+        putByPresentAnnotations(
+            e,
+            MoreElements.isTypeElement(e) ? eltUtils.getAllAnnotationMirrors(e) : e.getAnnotationMirrors(),
+            annotationTypesByName,
+            annotatedElements
+        );
       }
+      return e.accept(this, ignore);
+    }
+
+    @Override
+    public Void visitModule(ModuleElement e, Void ignore) {
+      // The packages of the module are root elements by their own right, if they are to be scanned at all.
+      return null;
     }
 
+    @Override
+    public Void visitPackage(PackageElement e, Void ignore) {
+      // The types of the package are root elements by their own right, if they are to be scanned at all.
+      return null;
+    }
+
+    @Override
+    public Void visitType(TypeElement e, Void ignore) {
+      suppliedTypeNames.add(e.getSimpleName().toString());
+      if (e.getNestingKind() == NestingKind.TOP_LEVEL) {
+        Name packageName = MoreElements.getPackage(e).getQualifiedName();
+        if (scannedPackageNames.add(packageName))
+          suppliedTypeNames.addAll(Splitter.on('.').omitEmptyStrings().splitToList(packageName));
+      }
+
+      // Type parameters are not considered to be enclosed by a type.
+      scan(e.getTypeParameters(), ignore);
+      return super.visitType(e, ignore);
+    }
+
+    @Override
+    public Void visitExecutable(ExecutableElement e, Void ignore) {
+      // Type parameters are not considered to be enclosed by an executable.
+      scan(e.getTypeParameters(), ignore);
+      return super.visitExecutable(e, ignore);
+    }
   }
 
   /**
    * Processes the well-informed elements, including those previously deferred by each step.
    */
   private void process(ImmutableSetMultimap<TypeElement, Element> wellInformedElements) {
+    // The renderings of the independent steps, in the order of the steps, to be committed after all the steps are run.
+    Map<ProcessingStep, Future<? extends Runnable>> renderings = new LinkedHashMap<>();
+
     for (ProcessingStep processingStep : this.processingSteps) {
       ImmutableSet<TypeElement> annotationTypes = getSupportedAnnotationTypeElements(processingStep);
+      BitSet tPEltNamesDeferredByProcessingStep =
+          tPEltNamesDeferredByProcessingSteps.getOrDefault(processingStep, EMPTY_IDS);
       ImmutableSetMultimap<TypeElement, Element> processingStepElements =
           new ImmutableSetMultimap.Builder<TypeElement, Element>()
               // Add previously rejected (deferred) elements by processingSteps. Note that all the members are
               // well-informed, since they were passed to at least one processing step.
-              .putAll(getAllInclusiveEnclosedAnnotatedElementsByAnnotations(tPEltNamesDeferredByProcessingSteps.get(processingStep), annotationTypes))
+              .putAll(
+                  tPEltNamesDeferredByProcessingStep.isEmpty()
+                      ? ImmutableSetMultimap.of()
+                      : getAllInclusiveEnclosedAnnotatedElementsByAnnotations(tPEltNamesDeferredByProcessingStep, annotationTypes)
+              )
               .putAll(filterKeys(wellInformedElements, Predicates.in(annotationTypes)))
               .build();
       if (processingStepElements.isEmpty()) {
-        tPEltNamesDeferredByProcessingSteps.removeAll(processingStep);
+        tPEltNamesDeferredByProcessingSteps.remove(processingStep);
       } else {
-        Set<? extends Element> rejectedElements = processingStep.process(toClassNameKeyedMultimap(processingStepElements));
-        //noinspection StaticPseudoFunctionalStyleMethod
-        tPEltNamesDeferredByProcessingSteps.replaceValues(processingStep, transform(rejectedElements, TPEltName::forElement));
+        Set<? extends Element> rejectedElements;
+        long stepStart = startTiming();
+        ProcessingEvents.StepExecution stepEvent = ProcessingEvents.beginStep();
+        enterStep(processingStepElements);
+        try {
+          if (processingStep instanceof IndependentProcessingStep && independentStepsParallelism() > 1) {
+            IndependentProcessingStep.Preparation preparation =
+                ((IndependentProcessingStep) processingStep).prepare(toClassNameKeyedMultimap(processingStepElements));
+            Callable<? extends Runnable> rendering = preparation.getRendering();
+            renderings.put(
+                processingStep,
+                getIndependentStepsExecutor().submit(() -> withinStep(processingStepElements, rendering.call()))
+            );
+            rejectedElements = preparation.getRejectedElements();
+          } else if (processingStep instanceof CacheableProcessingStep && processingCache != null) {
+            rejectedElements = processCacheable(processingStep, processingStepElements);
+          } else {
+            rejectedElements = processingStep.process(toClassNameKeyedMultimap(processingStepElements));
+          }
+        } finally {
+          exitStep();
+          recordTiming(ProcessingMetricsSink.Phase.STEP, processingStep.getClass().getName(), stepStart);
+        }
+        ProcessingEvents.endStep(stepEvent, getClass().getName(), processingStep.getClass().getName(), round,
+            processingStepElements.size(), rejectedElements.size());
+        if (rejectedElements.isEmpty()) {
+          tPEltNamesDeferredByProcessingSteps.remove(processingStep);
+        } else {
+          BitSet rejectedTPEltNames = new BitSet();
+          for (Element rejectedElement : rejectedElements)
+            rejectedTPEltNames.set(tPEltNames.forElement(rejectedElement).getId());
+          tPEltNamesDeferredByProcessingSteps.put(processingStep, rejectedTPEltNames);
+        }
       }
     }
+
+    commitRenderings(renderings);
+  }
+
+  /**
+   * Marks the beginning of running a step on {@code processingStepElements}, for the incrementality checks.
+   */
+  private void enterStep(ImmutableSetMultimap<TypeElement, Element> processingStepElements) {
+    if (incrementalityChecks != null)
+      incrementalityChecks.enterStep(processingStepElements.values());
+  }
+
+  private void exitStep() {
+    if (incrementalityChecks != null)
+      incrementalityChecks.exitStep();
+  }
+
+  /**
+   * Returns {@code commit} running as a part of the step of {@code processingStepElements}. It is created on the
+   * rendering thread, but does not touch the model until it is run on the processor thread.
+   */
+  private Runnable withinStep(ImmutableSetMultimap<TypeElement, Element> processingStepElements, Runnable commit) {
+    if (incrementalityChecks == null)
+      return commit;
+    return () -> {
+      enterStep(processingStepElements);
+      try {
+        commit.run();
+      } finally {
+        exitStep();
+      }
+    };
+  }
+
+  /**
+   * Processes the elements of a {@link CacheableProcessingStep}. The outputs of the unchanged TP-elements are replayed
+   * from the processing cache, and the rest of the elements are processed by the step, while its outputs are recorded
+   * in the cache.
+   */
+  private Set<? extends Element> processCacheable(ProcessingStep processingStep,
+      ImmutableSetMultimap<TypeElement, Element> processingStepElements) {
+    Map<String, Element> tPElementsByName = new HashMap<>();
+    Map<String, String> fingerprintsByTPEltName = new HashMap<>();
+    Map<TypeElement, String> supertypeDigests = new HashMap<>();
+    Map<String, ImmutableList<ProcessingCache.CachedSourceFile>> cachedSourceFilesByTPEltName = new LinkedHashMap<>();
+    for (Element element : processingStepElements.values()) {
+      String tPEltName = tPEltNames.forElement(element).toString();
+      if (tPElementsByName.containsKey(tPEltName))
+        continue;
+
+      Element tPElement = ProcessingCache.tPElementOf(element);
+      String fingerprint = ProcessingCache.fingerprint(tPElement, supertypeDigests);
+      tPElementsByName.put(tPEltName, tPElement);
+      fingerprintsByTPEltName.put(tPEltName, fingerprint);
+      processingCache.lookup(processingStep, tPEltName, fingerprint)
+          .ifPresent(sourceFiles -> cachedSourceFilesByTPEltName.put(tPEltName, sourceFiles));
+    }
+
+    // A file with several originating TP-elements is replayed only if all of them are; otherwise, it is generated
+    // again by the step, from the ones not replayed.
+    boolean isChanged = true;
+    while (isChanged) {
+      isChanged = cachedSourceFilesByTPEltName.values().removeIf(sourceFiles -> sourceFiles.stream().anyMatch(
+          sourceFile -> !cachedSourceFilesByTPEltName.keySet().containsAll(sourceFile.getOriginatingTPEltNames())));
+    }
+    if (!cachedSourceFilesByTPEltName.isEmpty()
+        && !processingCache.replay(Iterables.concat(cachedSourceFilesByTPEltName.values()), tPElementsByName::get, filer))
+      cachedSourceFilesByTPEltName.clear();
+
+    ImmutableSetMultimap<TypeElement, Element> elementsToProcess = ImmutableSetMultimap.copyOf(Multimaps.filterValues(
+        processingStepElements,
+        element -> !cachedSourceFilesByTPEltName.containsKey(tPEltNames.forElement(element).toString())));
+    if (elementsToProcess.isEmpty())
+      return ImmutableSet.of();
+
+    Filer originalFiler = filer;
+    ProcessingCache.RecordingFiler recordingFiler = processingCache.recording(originalFiler);
+    Set<? extends Element> rejectedElements;
+    filer = recordingFiler;
+    try {
+      rejectedElements = processingStep.process(toClassNameKeyedMultimap(elementsToProcess));
+    } finally {
+      filer = originalFiler;
+    }
+
+    // Outputs without an originating element cannot be replayed on behalf of any TP-element.
+    if (recordingFiler.hasUnattributedOutput())
+      return rejectedElements;
+
+    Set<String> uncacheableTPEltNames = new HashSet<>();
+    for (Element rejectedElement : rejectedElements)
+      uncacheableTPEltNames.add(tPEltNames.forElement(rejectedElement).toString());
+    for (Element uncacheableElement : recordingFiler.getUncacheableOriginatingElements())
+      uncacheableTPEltNames.add(tPEltNames.forElement(uncacheableElement).toString());
+
+    // Each file is recorded once, and stored in the entry of each of its originating TP-elements.
+    ListMultimap<String, ProcessingCache.CachedSourceFile> sourceFilesByTPEltName = ArrayListMultimap.create();
+    for (ProcessingCache.RecordedSourceFile recordedSourceFile : recordingFiler.getSourceFiles()) {
+      ImmutableSet<String> originatingTPEltNames = recordedSourceFile.getOriginatingElements().stream()
+          .map(originatingElement -> tPEltNames.forElement(originatingElement).toString())
+          .collect(toImmutableSet());
+      ProcessingCache.CachedSourceFile sourceFile = new ProcessingCache.CachedSourceFile(
+          recordedSourceFile.getName(), originatingTPEltNames, recordedSourceFile.getContent().toString());
+      for (String originatingTPEltName : originatingTPEltNames)
+        sourceFilesByTPEltName.put(originatingTPEltName, sourceFile);
+    }
+    for (String tPEltName : tPElementsByName.keySet()) {
+      // Without any recorded file, the outputs (if any) were not observed; e.g. written through another filer.
+      if (!cachedSourceFilesByTPEltName.containsKey(tPEltName) && !uncacheableTPEltNames.contains(tPEltName)
+          && sourceFilesByTPEltName.containsKey(tPEltName))
+        processingCache.store(processingStep, tPEltName, fingerprintsByTPEltName.get(tPEltName),
+            sourceFilesByTPEltName.get(tPEltName));
+    }
+
+    return rejectedElements;
+  }
+
+  /**
+   * Waits for the renderings of the independent steps, and runs their commit actions on the processor thread, in the
+   * order of the steps.
+   */
+  private void commitRenderings(Map<ProcessingStep, Future<? extends Runnable>> renderings) {
+    for (Map.Entry<ProcessingStep, Future<? extends Runnable>> rendering : renderings.entrySet()) {
+      long commitStart = startTiming();
+      try {
+        rendering.getValue().get().run();
+        recordTiming(ProcessingMetricsSink.Phase.STEP, rendering.getKey().getClass().getName(), commitStart);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for the rendering of " + rendering.getKey() + ".", e);
+      } catch (ExecutionException e) {
+        throwIfUnchecked(e.getCause());
+        throw new IllegalStateException("The rendering of " + rendering.getKey() + " failed.", e.getCause());
+      }
+    }
+  }
+
+  /*
+   * The threads are daemons, and time out when idle; hence, if the compilation ends before the last round (e.g. on
+   * errors), they neither keep the JVM alive nor, for long, the class loader of the processor.
+   */
+  private ExecutorService getIndependentStepsExecutor() {
+    if (independentStepsExecutor == null) {
+      int parallelism = independentStepsParallelism();
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(
+          parallelism, parallelism,
+          INDEPENDENT_STEPS_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(),
+          new ThreadFactoryBuilder()
+              .setNameFormat(getClass().getSimpleName() + "-independent-step-%d")
+              .setDaemon(true)
+              .build()
+      );
+      executor.allowCoreThreadTimeOut(true);
+      independentStepsExecutor = executor;
+    }
+    return independentStepsExecutor;
+  }
+
+  private void shutdownIndependentStepsExecutor() {
+    if (independentStepsExecutor != null) {
+      independentStepsExecutor.shutdown();
+      independentStepsExecutor = null;
+    }
   }
 
 
@@ -470,28 +1241,36 @@ public abstract class BaseAnnotationProcessor extends AbstractProcessor {
     return builder.build();
   }
 
-  private ImmutableSetMultimap<TypeElement, Element> getAllInclusiveEnclosedAnnotatedElementsByAnnotations(Set<TPEltName> annotatedTPEltNames,
+  private ImmutableSetMultimap<TypeElement, Element> getAllInclusiveEnclosedAnnotatedElementsByAnnotations(BitSet annotatedTPEltNames,
       ImmutableSet<TypeElement> annotationTypes) {
     ImmutableSetMultimap.Builder<TypeElement, Element> annotatedElements = ImmutableSetMultimap.builder();
-    for (TPEltName tPEltName : annotatedTPEltNames) {
-      Optional<? extends Element> tPElement = tPEltName.getElement(eltUtils);
-      tPElement.ifPresent(element -> addAllInclusiveEnclosedAnnotatedElementsByAnnotations(element, annotationTypes, annotatedElements));
+    ImmutableMap<Name, TypeElement> annotationTypesByName = indexByQualifiedName(annotationTypes);
+    for (int id = annotatedTPEltNames.nextSetBit(0); id >= 0; id = annotatedTPEltNames.nextSetBit(id + 1)) {
+      Optional<? extends Element> tPElement = tPEltNameResolver.resolve(tPEltNames.get(id));
+      tPElement.ifPresent(element -> addAllInclusiveEnclosedAnnotatedElementsByAnnotations(element, annotationTypesByName, annotatedElements));
     }
     return annotatedElements.build();
   }
 
   /**
-   * A package or type name.
+   * A module, package, or type name.
    *
-   * <p>It's unfortunate that we have to track types and packages separately, but since there are
-   * two different methods to look them up in {@link Elements}, we end up with a lot of parallel
+   * <p>It's unfortunate that we have to track modules, types, and packages separately, but since there are
+   * different methods to look them up in {@link Elements}, we end up with a lot of parallel
    * logic. :(
    *
-   * <p>Packages declared (and annotated) in {@code package-info.java} are tracked as deferred
-   * packages, type elements are tracked directly, and all other elements are tracked via their
-   * nearest enclosing type.
+   * <p>Modules declared (and annotated) in {@code module-info.java} are tracked as deferred modules, packages declared
+   * (and annotated) in {@code package-info.java} are tracked as deferred packages, type elements are tracked directly,
+   * and all other elements are tracked via their nearest enclosing type.
+   *
+   * <p>The packages and types are looked up in the module they were found in, if it is known, by the module-aware
+   * methods of {@link Elements}; the lookups by name alone search all the modules of the compilation.
+   *
+   * <p>The names are interned by a {@link TPEltNamePool}, which numbers them densely; so that the sets of names are
+   * kept as bitsets of their ids, and two names are equal iff their ids are.
    */
   @Data
+  @EqualsAndHashCode(onlyExplicitlyIncluded = true)
   // Needed to save the names of TPElements instead of the elements, since
   //  1. There is no guarantee that any particular element will always be represented by the same object. (Reference: {@link Element})
   //  2. Since an implementation may choose to have a single object implement multiple Element sub-interfaces. (Reference: {@link Element})
@@ -499,35 +1278,34 @@ public abstract class BaseAnnotationProcessor extends AbstractProcessor {
   // make the saved element unreliable.
   private static final class TPEltName {
     private enum Kind {
+      MODULE_NAME,
       PACKAGE_NAME,
       TYPE_NAME,
     }
 
 
+    /**
+     * The id of the name in its {@link TPEltNamePool}.
+     */
+    @EqualsAndHashCode.Include
+    @ToString.Exclude
+    private final int id;
     private final Kind kind;
     /**
      * The fully-qualified name of the element.
      */
     private final String name;
-
-    private TPEltName(Kind kind, Name name) {
-      this.kind = kind;
-      this.name = name.toString();
-    }
-
     /**
-     * An {@link TPEltName} for an element. If {@code element} is a package, it uses the
-     * fully qualified name of the package. If it's a type, it uses its fully qualified name.
-     * Otherwise, uses the fully-qualified name of the nearest enclosing type.
-     *
-     * @param element the element whose nearest enclosing type or package name is inquired
-     * @return the {@linkplain TPEltName} of the nearest enclosing type or package
+     * The name of the module of the element; empty for the unnamed module, and null if not known, e.g. if the
+     * compilation does not support modules.
      */
-    static TPEltName forElement(Element element) {
-      return element.getKind() == ElementKind.PACKAGE
-          //Here since getKing() is used not "instance of", simple casting will also work. Refer to {@link Element} documentation.
-          ? new TPEltName(Kind.PACKAGE_NAME, MoreElements.asPackage(element).getQualifiedName())
-          : new TPEltName(Kind.TYPE_NAME, getEnclosingType(element).getQualifiedName());
+    private final String moduleName;
+
+    private TPEltName(int id, Kind kind, String name, String moduleName) {
+      this.id = id;
+      this.kind = kind;
+      this.name = name;
+      this.moduleName = moduleName;
     }
 
     /**
@@ -539,12 +1317,202 @@ public abstract class BaseAnnotationProcessor extends AbstractProcessor {
      * if the relevant method on {@link Elements} returns {@code null}.
      */
     Optional<? extends Element> getElement(Elements eltUtils) {
+      if (kind == Kind.MODULE_NAME)
+        return Optional.ofNullable(eltUtils.getModuleElement(name));
+
+      ModuleElement module = moduleName != null ? eltUtils.getModuleElement(moduleName) : null;
+      if (module == null)
+        return Optional.ofNullable(kind == Kind.PACKAGE_NAME ? eltUtils.getPackageElement(name) : eltUtils.getTypeElement(name));
       return Optional.ofNullable(
-          this.kind == Kind.PACKAGE_NAME
-              ? eltUtils.getPackageElement(name)
-              : eltUtils.getTypeElement(name));
+          kind == Kind.PACKAGE_NAME ? eltUtils.getPackageElement(module, name) : eltUtils.getTypeElement(module, name));
     }
 
   }
 
+  /**
+   * Interns the {@link TPEltName}s, numbering them densely from {@code 0} in the order of their first appearance.
+   *
+   * <p>The qualified names of the elements are interned by javac; hence, the name of an element is first looked up
+   * by the identity of its qualified {@link Name}, which neither copies nor hashes the name. Only a name not seen
+   * before is copied into a {@link String}.
+   */
+  private static final class TPEltNamePool {
+    private final List<TPEltName> tPEltNamesById = new ArrayList<>();
+    private final Map<String, TPEltName> tPEltNamesByKey = new HashMap<>();
+    private final Map<Name, TPEltName> tPEltNamesByQualifiedName = new IdentityHashMap<>();
+
+    /**
+     * The {@link TPEltName} for an element. If {@code element} is a module or a package, it uses the
+     * fully qualified name of the module or package. If it's a type, it uses its fully qualified name.
+     * Otherwise, uses the fully-qualified name of the nearest enclosing type.
+     *
+     * @param element the element whose nearest enclosing type, package, or module name is inquired
+     * @return the {@linkplain TPEltName} of the nearest enclosing type, or of the package or module
+     */
+    TPEltName forElement(Element element) {
+      //Here since getKind() is used not "instance of", simple casting will also work. Refer to {@link Element} documentation.
+      switch (element.getKind()) {
+        case MODULE:
+          ModuleElement module = (ModuleElement) element;
+          return intern(TPEltName.Kind.MODULE_NAME, module.getQualifiedName(), module);
+        case PACKAGE:
+          PackageElement packageElement = MoreElements.asPackage(element);
+          return intern(TPEltName.Kind.PACKAGE_NAME, packageElement.getQualifiedName(), getModule(packageElement));
+        default:
+          TypeElement enclosingType = getEnclosingType(element);
+          return intern(
+              TPEltName.Kind.TYPE_NAME, enclosingType.getQualifiedName(), getModule(MoreElements.getPackage(enclosingType)));
+      }
+    }
+
+    TPEltName get(int id) {
+      return tPEltNamesById.get(id);
+    }
+
+    private TPEltName intern(TPEltName.Kind kind, Name qualifiedName, ModuleElement module) {
+      TPEltName tPEltName = tPEltNamesByQualifiedName.get(qualifiedName);
+      if (tPEltName != null && tPEltName.getKind() == kind && isNamed(module, tPEltName.getModuleName()))
+        return tPEltName;
+
+      String name = qualifiedName.toString();
+      String moduleName = module != null ? module.getQualifiedName().toString() : null;
+      String key = kind.ordinal() + (moduleName != null ? moduleName + '/' : "") + name;
+      tPEltName = tPEltNamesByKey.get(key);
+      if (tPEltName == null) {
+        tPEltName = new TPEltName(tPEltNamesById.size(), kind, name, moduleName);
+        tPEltNamesById.add(tPEltName);
+        tPEltNamesByKey.put(key, tPEltName);
+      }
+      tPEltNamesByQualifiedName.put(qualifiedName, tPEltName);
+      return tPEltName;
+    }
+
+    private static boolean isNamed(ModuleElement module, String moduleName) {
+      return module == null ? moduleName == null : moduleName != null && module.getQualifiedName().contentEquals(moduleName);
+    }
+
+    /**
+     * Returns the module enclosing {@code packageElement}, or null if the compilation does not support modules.
+     */
+    private static ModuleElement getModule(PackageElement packageElement) {
+      Element enclosingElement = packageElement.getEnclosingElement();
+      return enclosingElement != null && enclosingElement.getKind() == ElementKind.MODULE
+          ? (ModuleElement) enclosingElement
+          : null;
+    }
+  }
+
+  /**
+   * The depths of {@link TPEltName}s, by their ids.
+   */
+  private static final class DepthsById {
+    private final BitSet ids = new BitSet();
+    private SuperficialValidation.Depth[] depths = new SuperficialValidation.Depth[64];
+
+    SuperficialValidation.Depth get(int id) {
+      return id < depths.length ? depths[id] : null;
+    }
+
+    void put(int id, SuperficialValidation.Depth depth) {
+      if (id >= depths.length)
+        depths = Arrays.copyOf(depths, Math.max(2 * depths.length, id + 1));
+      depths[id] = depth;
+      ids.set(id);
+    }
+
+    /**
+     * Puts {@code depth} unless a deeper one is already put.
+     */
+    void putDeeper(int id, SuperficialValidation.Depth depth) {
+      SuperficialValidation.Depth currentDepth = get(id);
+      if (currentDepth == null || depth.compareTo(currentDepth) > 0)
+        put(id, depth);
+    }
+
+    SuperficialValidation.Depth remove(int id) {
+      SuperficialValidation.Depth depth = get(id);
+      if (depth != null) {
+        depths[id] = null;
+        ids.clear(id);
+      }
+      return depth;
+    }
+
+    /**
+     * The ids with a depth; a live view, not to be modified.
+     */
+    BitSet ids() {
+      return ids;
+    }
+  }
+
+  /**
+   * Resolves {@link TPEltName}s to their elements, by the module-aware lookups of {@link TPEltName#getElement(Elements)}.
+   *
+   * <p>The elements found are cached for the round only, since there is no guarantee that an element will be
+   * represented by the same object in the next round. The names found absent, on the other hand, are remembered
+   * across rounds, until a root element of a round could supply them: a type is supplied along with its top-level
+   * type, a package along with a type in it (or its {@code package-info}), and a module along with its
+   * {@code module-info}; all of which are root elements of the round in which they appear.
+   */
+  private static final class TPEltNameResolver {
+    private final Elements eltUtils;
+    private final Map<TPEltName, Element> elementsByTPEltName = new HashMap<>();
+    private final Set<TPEltName> absentTPEltNames = new HashSet<>();
+
+    TPEltNameResolver(Elements eltUtils) {
+      this.eltUtils = eltUtils;
+    }
+
+    /**
+     * Forgets the absence of the names that could be supplied by the root elements of the beginning round.
+     */
+    void beginRound(Set<? extends Element> rootElements) {
+      if (absentTPEltNames.isEmpty() || rootElements.isEmpty())
+        return;
+
+      Set<String> suppliedNames = new HashSet<>();
+      for (Element rootElement : rootElements) {
+        if (rootElement instanceof QualifiedNameable)
+          suppliedNames.add(((QualifiedNameable) rootElement).getQualifiedName().toString());
+        if (MoreElements.isTypeElement(rootElement))
+          suppliedNames.add(MoreElements.getPackage(rootElement).getQualifiedName().toString());
+      }
+      absentTPEltNames.removeIf(absentTPEltName -> isSuppliedBy(absentTPEltName.getName(), suppliedNames));
+    }
+
+    /**
+     * Returns {@code true} iff {@code name}, or one of its enclosing names, is among {@code suppliedNames}.
+     */
+    private static boolean isSuppliedBy(String name, Set<String> suppliedNames) {
+      for (int end = name.length(); end > 0; end = name.lastIndexOf('.', end - 1)) {
+        if (suppliedNames.contains(name.substring(0, end)))
+          return true;
+      }
+      return false;
+    }
+
+    /**
+     * Forgets the elements found in the ending round.
+     */
+    void endRound() {
+      elementsByTPEltName.clear();
+    }
+
+    Optional<? extends Element> resolve(TPEltName tPEltName) {
+      Element element = elementsByTPEltName.get(tPEltName);
+      if (element != null)
+        return Optional.of(element);
+      if (absentTPEltNames.contains(tPEltName))
+        return Optional.empty();
+
+      Optional<? extends Element> resolved = tPEltName.getElement(eltUtils);
+      if (resolved.isPresent())
+        elementsByTPEltName.put(tPEltName, resolved.get());
+      else
+        absentTPEltNames.add(tPEltName);
+      return resolved;
+    }
+  }
+
 }
@@ -0,0 +1,53 @@
+package baseprocessors;
+
+import java.lang.annotation.*;
+import java.util.Locale;
+
+/**
+ * Declares the Gradle incremental annotation processing category of an annotation processor.
+ *
+ * <p>The {@link IncrementalDescriptorProcessor}, if enabled in the build of the processor's artifact, lists every
+ * processor annotated with it in the {@code META-INF/gradle/incremental.annotation.processors} descriptor of the
+ * artifact, so that Gradle can recompile incrementally. A processor extending {@link BaseAnnotationProcessor} additionally checks, while
+ * processing, that it adheres to the restrictions of its category; see {@link Kind}.
+ *
+ * @see <a href="https://docs.gradle.org/current/userguide/java_plugin.html#sec:incremental_annotation_processing">
+ * Gradle incremental annotation processing</a>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface IncrementalAnnotationProcessor {
+
+  /**
+   * @return the incremental annotation processing category of the processor.
+   */
+  Kind value();
+
+  /**
+   * The incremental annotation processing categories.
+   */
+  enum Kind {
+    /**
+     * Every generated file is based on a single annotated type (or package), and is created with exactly that one
+     * originating element. A {@link BaseAnnotationProcessor} reports an error for any file created by a
+     * {@link BaseAnnotationProcessor.ProcessingStep} with no, or several, originating elements, or with an originating
+     * element whose top-level type (or package) was not passed to that step.
+     */
+    ISOLATING,
+    /**
+     * Generated files may be based on any number of annotated types; Gradle reprocesses all of them on every change.
+     * Only annotations of {@code CLASS} or {@code RUNTIME} retention are visible to such processors; a
+     * {@link BaseAnnotationProcessor} reports an error for any of its supported annotations of {@code SOURCE} retention.
+     */
+    AGGREGATING;
+
+    /**
+     * @return the name of the category in the Gradle descriptor.
+     */
+    public String descriptorName() {
+      return name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+}
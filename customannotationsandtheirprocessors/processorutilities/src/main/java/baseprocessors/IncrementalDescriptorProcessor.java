@@ -0,0 +1,93 @@
+package baseprocessors;
+
+import baseprocessors.IncrementalAnnotationProcessor.Kind;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import utils.MoreElements;
+
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Generates the Gradle {@value #DESCRIPTOR_PATH} descriptor, listing the annotation processors annotated with
+ * {@link IncrementalAnnotationProcessor} together with their incremental processing categories.
+ *
+ * <p>It is opt-in: it is not registered as a service of this library, so that it does not run in every compilation
+ * with the library on its processor path. Only the build of an artifact of processors needs it, and enables it
+ * explicitly, e.g. by {@code -processor baseprocessors.IncrementalDescriptorProcessor} (together with its own
+ * processors, if any), or by the {@code annotationProcessors} of the maven-compiler-plugin.
+ */
+@IncrementalAnnotationProcessor(Kind.AGGREGATING)
+public class IncrementalDescriptorProcessor extends BaseAnnotationProcessor {
+
+  static final String DESCRIPTOR_PATH = "META-INF/gradle/incremental.annotation.processors";
+
+  private final Map<String, Kind> kindsByProcessorName = new TreeMap<>();
+  private final Set<Element> processorElements = new LinkedHashSet<>();
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
+  }
+
+  @Override protected void postRoundProcess(RoundEnvironment roundEnv) {
+    if (roundEnv.processingOver() && !kindsByProcessorName.isEmpty())
+      writeDescriptor();
+  }
+
+  @Override
+  protected Iterable<? extends ProcessingStep> processingSteps() {
+    return ImmutableSet.of(
+        new ProcessingStep() {
+          @Override
+          public ImmutableSet<String> annotations() {
+            return ImmutableSet.of(IncrementalAnnotationProcessor.class.getCanonicalName());
+          }
+
+          @Override
+          public ImmutableSet<Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
+            for (Element element : elementsByAnnotation.values()) {
+              if (element.getKind() != ElementKind.CLASS || element.getModifiers().contains(Modifier.ABSTRACT)) {
+                messager.printMessage(Diagnostic.Kind.ERROR,
+                    "@IncrementalAnnotationProcessor can only be applied to concrete annotation processor classes.", element);
+                continue;
+              }
+              TypeElement processorElement = MoreElements.asTypeElement(element);
+              kindsByProcessorName.put(
+                  eltUtils.getBinaryName(processorElement).toString(),
+                  processorElement.getAnnotation(IncrementalAnnotationProcessor.class).value()
+              );
+              processorElements.add(processorElement);
+            }
+            return ImmutableSet.of();
+          }
+        }
+    );
+  }
+
+  private void writeDescriptor() {
+    try (PrintWriter writer = new PrintWriter(
+        filer.createResource(StandardLocation.CLASS_OUTPUT, "", DESCRIPTOR_PATH, processorElements.toArray(new Element[0]))
+            .openWriter())) {
+      kindsByProcessorName.forEach((processorName, kind) -> writer.println(processorName + "," + kind.descriptorName()));
+    } catch (IOException e) {
+      messager.printMessage(Diagnostic.Kind.ERROR, "Could not write " + DESCRIPTOR_PATH + ": " + e.getMessage());
+    }
+  }
+
+}
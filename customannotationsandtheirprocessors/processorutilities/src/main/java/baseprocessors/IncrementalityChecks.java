@@ -0,0 +1,158 @@
+package baseprocessors;
+
+import baseprocessors.IncrementalAnnotationProcessor.Kind;
+import utils.MoreElements;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The checks of the restrictions of the Gradle incremental annotation processing category of a
+ * {@link BaseAnnotationProcessor}, as declared by {@link IncrementalAnnotationProcessor}. Violations are reported as
+ * errors, since Gradle would otherwise silently produce stale outputs.
+ */
+final class IncrementalityChecks {
+
+  private final Kind kind;
+  private final String processorName;
+  private final Messager messager;
+  /* The top-level types (and packages) of the elements passed to the running step; null outside of steps */
+  private Set<Element> stepTopLevelElements;
+  private final Set<String> reportedAnnotationTypeNames = new HashSet<>();
+
+  IncrementalityChecks(Kind kind, String processorName, Messager messager) {
+    this.kind = kind;
+    this.processorName = processorName;
+    this.messager = messager;
+  }
+
+  /**
+   * Returns a {@link Filer} that checks the originating elements of the created files before delegating to
+   * {@code filer}.
+   */
+  Filer checking(Filer filer) {
+    return new CheckingFiler(filer);
+  }
+
+  /**
+   * Marks the beginning of running a step on {@code stepElements}, until {@link #exitStep()}.
+   */
+  void enterStep(Iterable<? extends Element> stepElements) {
+    Set<Element> topLevelElements = new HashSet<>();
+    for (Element stepElement : stepElements)
+      topLevelElements.add(topLevelElementOf(stepElement));
+    stepTopLevelElements = topLevelElements;
+  }
+
+  void exitStep() {
+    stepTopLevelElements = null;
+  }
+
+  /**
+   * Reports the annotation types of {@code SOURCE} retention among {@code annotationTypes}, which are not visible
+   * to {@linkplain Kind#AGGREGATING aggregating} processors.
+   */
+  void checkAnnotationTypes(Set<TypeElement> annotationTypes) {
+    if (kind != Kind.AGGREGATING)
+      return;
+
+    for (TypeElement annotationType : annotationTypes) {
+      Retention retention = annotationType.getAnnotation(Retention.class);
+      // Absent @Retention means CLASS retention.
+      if (retention != null && retention.value() == RetentionPolicy.SOURCE
+          && reportedAnnotationTypeNames.add(annotationType.getQualifiedName().toString())) {
+        messager.printMessage(
+            Diagnostic.Kind.ERROR,
+            errorMessage("supports " + annotationType.getQualifiedName()
+                + ", which has SOURCE retention. Aggregating processors can only read CLASS or RUNTIME retention annotations."),
+            annotationType
+        );
+      }
+    }
+  }
+
+  private void checkOriginatingElements(CharSequence fileName, Element... originatingElements) {
+    if (kind != Kind.ISOLATING)
+      return;
+
+    if (originatingElements.length != 1) {
+      messager.printMessage(
+          Diagnostic.Kind.ERROR,
+          errorMessage("created " + fileName + " with " + originatingElements.length
+              + " originating elements. Isolating processors must provide exactly one originating element per file.")
+      );
+    } else if (stepTopLevelElements != null && !stepTopLevelElements.contains(topLevelElementOf(originatingElements[0]))) {
+      messager.printMessage(
+          Diagnostic.Kind.ERROR,
+          errorMessage("created " + fileName + " from " + originatingElements[0]
+              + ", which was not passed to the processing step. Isolating processors may only read the elements they process."),
+          originatingElements[0]
+      );
+    }
+  }
+
+  private String errorMessage(String violation) {
+    return String.format(
+        "[IncrementalProcessingError: %s ::] The %s processor %s %s",
+        processorName.substring(processorName.lastIndexOf('.') + 1), kind.descriptorName(), processorName, violation);
+  }
+
+  /**
+   * Returns the top-level type enclosing {@code element}, or itself if it is a package or a module.
+   */
+  private static Element topLevelElementOf(Element element) {
+    if (element.getKind() == ElementKind.PACKAGE || element.getKind() == ElementKind.MODULE)
+      return element;
+
+    Element topLevelElement = MoreElements.getEnclosingType(element);
+    while (topLevelElement.getEnclosingElement().getKind() != ElementKind.PACKAGE)
+      topLevelElement = topLevelElement.getEnclosingElement();
+    return topLevelElement;
+  }
+
+  private final class CheckingFiler implements Filer {
+    private final Filer delegate;
+
+    CheckingFiler(Filer delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public JavaFileObject createSourceFile(CharSequence name, Element... originatingElements) throws IOException {
+      checkOriginatingElements(name, originatingElements);
+      return delegate.createSourceFile(name, originatingElements);
+    }
+
+    @Override
+    public JavaFileObject createClassFile(CharSequence name, Element... originatingElements) throws IOException {
+      checkOriginatingElements(name, originatingElements);
+      return delegate.createClassFile(name, originatingElements);
+    }
+
+    @Override
+    public FileObject createResource(JavaFileManager.Location location, CharSequence moduleAndPkg, CharSequence relativeName,
+        Element... originatingElements) throws IOException {
+      checkOriginatingElements(relativeName, originatingElements);
+      return delegate.createResource(location, moduleAndPkg, relativeName, originatingElements);
+    }
+
+    @Override
+    public FileObject getResource(JavaFileManager.Location location, CharSequence moduleAndPkg, CharSequence relativeName)
+        throws IOException {
+      return delegate.getResource(location, moduleAndPkg, relativeName);
+    }
+  }
+
+}
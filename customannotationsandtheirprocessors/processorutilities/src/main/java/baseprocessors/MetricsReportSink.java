@@ -0,0 +1,127 @@
+package baseprocessors;
+
+import lombok.Value;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The default {@link ProcessingMetricsSink}, which aggregates the timings by round, phase, and name, and writes them
+ * at the end of the compilation as {@code META-INF/baseprocessors/metrics/<processor>.json} (or {@code .csv}) under
+ * the class output. The validations of a round are aggregated into a single entry.
+ */
+final class MetricsReportSink implements ProcessingMetricsSink {
+
+  enum Format {
+    JSON,
+    CSV
+  }
+
+  @Value
+  private static class Key {
+    int round;
+    Phase phase;
+    String name;
+  }
+
+  private static final class Stats {
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    void add(long durationNanos) {
+      count++;
+      totalNanos += durationNanos;
+      maxNanos = Math.max(maxNanos, durationNanos);
+    }
+  }
+
+  private final Filer filer;
+  private final Messager messager;
+  private final String processorName;
+  private final Format format;
+  private final Map<Key, Stats> statsByKey = new LinkedHashMap<>();
+
+  MetricsReportSink(Filer filer, Messager messager, String processorName, Format format) {
+    this.filer = filer;
+    this.messager = messager;
+    this.processorName = processorName;
+    this.format = format;
+  }
+
+  @Override
+  public void record(Phase phase, String name, int round, long startNanos, long durationNanos) {
+    statsByKey.computeIfAbsent(new Key(round, phase, phase == Phase.VALIDATION ? "" : name), key -> new Stats())
+        .add(durationNanos);
+  }
+
+  @Override
+  public void processingOver() {
+    String reportName = "META-INF/baseprocessors/metrics/" + processorName + "." + format.name().toLowerCase(Locale.ROOT);
+    // The report is not derived from any element, hence no originating elements.
+    try (PrintWriter writer = new PrintWriter(
+        filer.createResource(StandardLocation.CLASS_OUTPUT, "", reportName).openWriter())) {
+      if (format == Format.JSON)
+        writeJson(writer);
+      else
+        writeCsv(writer);
+    } catch (IOException e) {
+      messager.printMessage(Diagnostic.Kind.WARNING, "Could not write the metrics report " + reportName + ": " + e.getMessage());
+    }
+  }
+
+  private void writeJson(PrintWriter writer) {
+    writer.println("{");
+    writer.println("  \"processor\": \"" + escapeJson(processorName) + "\",");
+    writer.println("  \"entries\": [");
+    int i = 0;
+    for (Map.Entry<Key, Stats> entry : statsByKey.entrySet()) {
+      Key key = entry.getKey();
+      Stats stats = entry.getValue();
+      writer.print(String.format(Locale.ROOT,
+          "    {\"round\": %d, \"phase\": \"%s\", \"name\": \"%s\", \"count\": %d, \"totalNanos\": %d, \"maxNanos\": %d}",
+          key.getRound(), key.getPhase(), escapeJson(key.getName()), stats.count, stats.totalNanos, stats.maxNanos));
+      writer.println(++i < statsByKey.size() ? "," : "");
+    }
+    writer.println("  ]");
+    writer.println("}");
+  }
+
+  private void writeCsv(PrintWriter writer) {
+    writer.println("round,phase,name,count,totalNanos,maxNanos");
+    for (Map.Entry<Key, Stats> entry : statsByKey.entrySet()) {
+      Key key = entry.getKey();
+      Stats stats = entry.getValue();
+      writer.println(key.getRound() + "," + key.getPhase() + "," + escapeCsv(key.getName()) + ","
+          + stats.count + "," + stats.totalNanos + "," + stats.maxNanos);
+    }
+  }
+
+  static String escapeJson(String s) {
+    StringBuilder escaped = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\')
+        escaped.append('\\').append(c);
+      else if (c < 0x20)
+        escaped.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+      else
+        escaped.append(c);
+    }
+    return escaped.toString();
+  }
+
+  private static String escapeCsv(String s) {
+    if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0)
+      return s;
+    return '"' + s.replace("\"", "\"\"") + '"';
+  }
+
+}
@@ -0,0 +1,516 @@
+package baseprocessors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import lombok.Data;
+import lombok.Value;
+import baseprocessors.BaseAnnotationProcessor.ProcessingStep;
+import utils.ElementSnapshots;
+import utils.MoreElements;
+import utils.MoreTypes;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.ModuleElement;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * A persistent, on-disk cache of the source files generated by {@link BaseAnnotationProcessor.CacheableProcessingStep}s, shared across
+ * compilations.
+ *
+ * <p>Every entry belongs to a processor, a step, and a type or package (the TP-element the outputs originate from),
+ * and holds the fingerprint of the TP-element's declaration together with the source files the step generated
+ * from it. Entries with a different fingerprint are ignored, and replaced once the step runs again. Any I/O problem
+ * is reported as a warning, and treated as a cache miss.
+ *
+ * <p>Every entry is also stamped with the version of the code that generated it: the code of the processor, of the
+ * step, and of the other {@linkplain BaseAnnotationProcessor#cacheVersionClasses() classes} the outputs depend on,
+ * together with the processor options. Entries of any other version are ignored; hence, upgrading the processor or
+ * changing its options invalidates the cache.
+ *
+ * <p>A source file with several originating TP-elements is replayed only if all of them are unchanged, and once.
+ *
+ * <p>Fingerprints are computed from the {@linkplain ElementSnapshots immutable snapshot} of the declaration and its
+ * supertypes, since the hashes of {@link utils.MoreTypes#equivalence()} depend on the identities of elements, and
+ * are therefore not stable across compilations.
+ */
+final class ProcessingCache {
+
+  /**
+   * The processor option ({@code -A<option>=<directory>}) that enables the cache, and specifies its directory.
+   */
+  static final String CACHE_DIRECTORY_OPTION = "baseprocessors.cacheDirectory";
+
+  private static final int FORMAT_VERSION = 3;
+
+  private final Path directory;
+  private final String processorName;
+  private final Messager messager;
+  /* The version of the code and the options shared by the steps; see version() */
+  private final String processorVersion;
+  private final Map<Class<?>, String> stepVersions = new HashMap<>();
+  /* The names of the source files replayed or recorded in this compilation; the Filer rejects a second creation */
+  private final Set<String> generatedSourceFileNames = new HashSet<>();
+
+  ProcessingCache(Path directory, String processorName, Messager messager, String processorVersion) {
+    this.directory = directory;
+    this.processorName = processorName;
+    this.messager = messager;
+    this.processorVersion = processorVersion;
+  }
+
+  /* ********************************************************************* */
+  /* Versions ************************************************************ */
+  /* ********************************************************************* */
+
+  /**
+   * Returns the version of the processor: the {@linkplain #codeVersion(Class) code versions} of the given classes,
+   * and the given processor options, except the ones that do not affect the outputs.
+   */
+  static String processorVersion(Iterable<Class<?>> classes, Map<String, String> options) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (Class<?> clazz : classes)
+      hasher.putString(codeVersion(clazz), StandardCharsets.UTF_8);
+    ImmutableSortedMap.copyOf(options).forEach((option, value) -> {
+      if (!option.equals(CACHE_DIRECTORY_OPTION)
+          && !option.equals(ProcessingMetricsSink.METRICS_OPTION) && !option.equals(ProcessingMetricsSink.TRACE_OPTION))
+        hasher.putString(option, StandardCharsets.UTF_8).putChar('=')
+            .putString(String.valueOf(value), StandardCharsets.UTF_8).putChar('\0');
+    });
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns the version of the code of the given class: the hash of the jar it is loaded from or, if it is loaded from
+   * a directory, of its class file. If neither can be read, the name of the class, i.e. no version, is returned.
+   */
+  static String codeVersion(Class<?> clazz) {
+    try {
+      CodeSource codeSource = clazz.getProtectionDomain().getCodeSource();
+      if (codeSource != null && codeSource.getLocation() != null) {
+        Path location = Paths.get(codeSource.getLocation().toURI());
+        if (Files.isRegularFile(location))
+          return MoreFiles.asByteSource(location).hash(Hashing.sha256()).toString();
+      }
+
+      try (InputStream classFile = clazz.getResourceAsStream('/' + clazz.getName().replace('.', '/') + ".class")) {
+        if (classFile != null)
+          return Hashing.sha256().hashBytes(classFile.readAllBytes()).toString();
+      }
+    } catch (IOException | URISyntaxException | IllegalArgumentException | SecurityException e) {
+      // No version; fall through
+    }
+    return clazz.getName();
+  }
+
+  private String version(ProcessingStep processingStep) {
+    String stepVersion = stepVersions.computeIfAbsent(processingStep.getClass(), ProcessingCache::codeVersion);
+    return processorVersion + '/' + stepVersion;
+  }
+
+  /* ********************************************************************* */
+  /* Fingerprints ******************************************************** */
+  /* ********************************************************************* */
+
+  /**
+   * Returns the fingerprint of the declaration of the given type, package, or module element: its annotations
+   * (including the defaulted values), modifiers, members and their signatures (including type parameter bounds,
+   * thrown types, constant values, and annotation element defaults), and the declarations of all its supertypes,
+   * transitively, or, for a module, its directives.
+   *
+   * @param supertypeDigests the memo of the digests of the supertypes' declarations; to be shared by the fingerprints
+   *                         of one step's TP-elements, since they often have supertypes in common
+   */
+  static String fingerprint(Element tPElement, Map<TypeElement, String> supertypeDigests) {
+    Hasher hasher = Hashing.sha256().newHasher()
+        .putInt(FORMAT_VERSION)
+        .putString(ElementSnapshots.snapshot(tPElement).toString(), StandardCharsets.UTF_8);
+    if (MoreElements.isTypeElement(tPElement)) {
+      TypeElement typeElement = MoreElements.asTypeElement(tPElement);
+      putSupertypes(hasher, typeElement, new HashSet<>(Collections.singleton(typeElement)), supertypeDigests);
+      // A non-static nested type may read its enclosing instance
+      if (typeElement.getNestingKind() == NestingKind.MEMBER && !typeElement.getModifiers().contains(Modifier.STATIC))
+        hasher.putString(fingerprint(typeElement.getEnclosingElement(), supertypeDigests), StandardCharsets.UTF_8);
+    } else if (tPElement.getKind() == ElementKind.MODULE) {
+      ModuleElement module = (ModuleElement) tPElement;
+      hasher.putBoolean(module.isOpen());
+      for (ModuleElement.Directive directive : module.getDirectives())
+        hasher.putString(describe(directive), StandardCharsets.UTF_8);
+    }
+    return hasher.hash().toString();
+  }
+
+  /*
+   * Puts the direct supertypes of the type, with their type arguments, and the digests of the declarations of all its
+   * supertypes, transitively; hence, e.g., a changed @Inherited annotation or inherited member changes the fingerprint.
+   */
+  private static void putSupertypes(Hasher hasher, TypeElement typeElement, Set<TypeElement> visited,
+      Map<TypeElement, String> supertypeDigests) {
+    // For interface and java.lang.Object, NoType with kind NONE is returned
+    putSupertype(hasher, typeElement.getSuperclass(), visited, supertypeDigests);
+    for (TypeMirror anInterface : typeElement.getInterfaces())
+      putSupertype(hasher, anInterface, visited, supertypeDigests);
+  }
+
+  private static void putSupertype(Hasher hasher, TypeMirror supertype, Set<TypeElement> visited,
+      Map<TypeElement, String> supertypeDigests) {
+    hasher.putString(supertype.toString(), StandardCharsets.UTF_8);
+    if (supertype.getKind() != TypeKind.DECLARED)
+      return;
+
+    TypeElement supertypeElement = MoreElements.asTypeElement(MoreTypes.asDeclared(supertype).asElement());
+    if (!visited.add(supertypeElement))
+      return;
+
+    hasher.putString(supertypeDigests.computeIfAbsent(supertypeElement, element -> Hashing.sha256()
+        .hashString(ElementSnapshots.snapshot(element).toString(), StandardCharsets.UTF_8).toString()), StandardCharsets.UTF_8);
+    putSupertypes(hasher, supertypeElement, visited, supertypeDigests);
+  }
+
+  private static String describe(ModuleElement.Directive directive) {
+    StringBuilder description = new StringBuilder(directive.getKind().toString());
+    switch (directive.getKind()) {
+      case REQUIRES:
+        ModuleElement.RequiresDirective requires = (ModuleElement.RequiresDirective) directive;
+        description.append(requires.isStatic() ? " static " : " ").append(requires.isTransitive() ? "transitive " : "")
+            .append(requires.getDependency().getQualifiedName());
+        break;
+      case EXPORTS:
+        ModuleElement.ExportsDirective exports = (ModuleElement.ExportsDirective) directive;
+        description.append(' ').append(exports.getPackage().getQualifiedName());
+        if (exports.getTargetModules() != null)
+          exports.getTargetModules().forEach(target -> description.append(' ').append(target.getQualifiedName()));
+        break;
+      case OPENS:
+        ModuleElement.OpensDirective opens = (ModuleElement.OpensDirective) directive;
+        description.append(' ').append(opens.getPackage().getQualifiedName());
+        if (opens.getTargetModules() != null)
+          opens.getTargetModules().forEach(target -> description.append(' ').append(target.getQualifiedName()));
+        break;
+      case USES:
+        description.append(' ').append(((ModuleElement.UsesDirective) directive).getService().getQualifiedName());
+        break;
+      case PROVIDES:
+        ModuleElement.ProvidesDirective provides = (ModuleElement.ProvidesDirective) directive;
+        description.append(' ').append(provides.getService().getQualifiedName());
+        provides.getImplementations().forEach(implementation -> description.append(' ').append(implementation.getQualifiedName()));
+        break;
+      default:
+        description.append(' ').append(directive);
+    }
+    return description.toString();
+  }
+
+  /* ********************************************************************* */
+  /* Entries ************************************************************* */
+  /* ********************************************************************* */
+
+  /**
+   * A source file generated by a step, with the names of all its originating TP-elements.
+   */
+  @Value
+  static class CachedSourceFile {
+    String name;
+    ImmutableSet<String> originatingTPEltNames;
+    String content;
+  }
+
+  /**
+   * Returns the source files the step generated from {@code tPEltName} in a previous compilation, iff its
+   * fingerprint was the same as {@code fingerprint}, and the version of the processor and the step is unchanged.
+   */
+  Optional<ImmutableList<CachedSourceFile>> lookup(ProcessingStep processingStep, String tPEltName, String fingerprint) {
+    Path entry = entryPath(processingStep, tPEltName);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+      if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(version(processingStep))
+          || !in.readUTF().equals(fingerprint))
+        return Optional.empty();
+
+      int nSourceFiles = in.readInt();
+      ImmutableList.Builder<CachedSourceFile> sourceFiles = ImmutableList.builderWithExpectedSize(nSourceFiles);
+      for (int i = 0; i < nSourceFiles; i++) {
+        String name = in.readUTF();
+        int nOriginatingTPEltNames = in.readInt();
+        ImmutableSet.Builder<String> originatingTPEltNames = ImmutableSet.builderWithExpectedSize(nOriginatingTPEltNames);
+        for (int j = 0; j < nOriginatingTPEltNames; j++)
+          originatingTPEltNames.add(in.readUTF());
+        byte[] content = new byte[in.readInt()];
+        in.readFully(content);
+        sourceFiles.add(new CachedSourceFile(name, originatingTPEltNames.build(), new String(content, StandardCharsets.UTF_8)));
+      }
+      return Optional.of(sourceFiles.build());
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      warn("read", entry, e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Stores the source files the step generated from {@code tPEltName} with the given fingerprint.
+   */
+  void store(ProcessingStep processingStep, String tPEltName, String fingerprint, List<CachedSourceFile> sourceFiles) {
+    Path entry = entryPath(processingStep, tPEltName);
+    try {
+      Files.createDirectories(directory);
+      // Written aside and moved, so that concurrent compilations never read a partial entry.
+      Path temporaryEntry = Files.createTempFile(directory, entry.getFileName().toString(), ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryEntry)))) {
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(version(processingStep));
+        out.writeUTF(fingerprint);
+        out.writeInt(sourceFiles.size());
+        for (CachedSourceFile sourceFile : sourceFiles) {
+          byte[] content = sourceFile.getContent().getBytes(StandardCharsets.UTF_8);
+          out.writeUTF(sourceFile.getName());
+          out.writeInt(sourceFile.getOriginatingTPEltNames().size());
+          for (String originatingTPEltName : sourceFile.getOriginatingTPEltNames())
+            out.writeUTF(originatingTPEltName);
+          out.writeInt(content.length);
+          out.write(content);
+        }
+      }
+      Files.move(temporaryEntry, entry, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      warn("write", entry, e);
+    }
+  }
+
+  /**
+   * Replays the given cached source files through {@code filer}, each once, with its originating TP-elements as its
+   * originating elements. The replay is all-or-nothing as far as it can be: no file is created if any of them has
+   * already been generated in this compilation. If the creation of a file still fails after others were created, an
+   * error is reported, since running the step again would create those again.
+   *
+   * @param sourceFiles the cached source files, possibly with duplicates of the files of several originating
+   *                    TP-elements
+   * @param tPElements  the TP-elements by their names, for all the originating TP-elements of the files
+   * @return {@code true} iff the files were replayed, or an error was reported; {@code false} if no file was created
+   */
+  boolean replay(Iterable<CachedSourceFile> sourceFiles, Function<String, Element> tPElements, Filer filer) {
+    Map<String, CachedSourceFile> sourceFilesByName = new LinkedHashMap<>();
+    for (CachedSourceFile sourceFile : sourceFiles)
+      sourceFilesByName.putIfAbsent(sourceFile.getName(), sourceFile);
+    for (String name : sourceFilesByName.keySet()) {
+      if (generatedSourceFileNames.contains(name)) {
+        messager.printMessage(Diagnostic.Kind.WARNING,
+            "Could not replay the cached source file " + name + ": it has already been generated.");
+        return false;
+      }
+    }
+
+    boolean created = false;
+    for (CachedSourceFile sourceFile : sourceFilesByName.values()) {
+      Element[] originatingElements =
+          sourceFile.getOriginatingTPEltNames().stream().map(tPElements).toArray(Element[]::new);
+      try (Writer writer = filer.createSourceFile(sourceFile.getName(), originatingElements).openWriter()) {
+        created = true;
+        generatedSourceFileNames.add(sourceFile.getName());
+        writer.write(sourceFile.getContent());
+      } catch (IOException e) {
+        messager.printMessage(created ? Diagnostic.Kind.ERROR : Diagnostic.Kind.WARNING,
+            "Could not replay the cached source file " + sourceFile.getName() + ": " + e.getMessage()
+                + (created ? "; delete the processing cache in " + directory + ", and build again." : ""));
+        return created;
+      }
+    }
+    return true;
+  }
+
+  private Path entryPath(ProcessingStep processingStep, String tPEltName) {
+    String key = processorName + '\0' + processingStep.getClass().getName() + '\0' + tPEltName;
+    return directory.resolve(Hashing.sha256().hashString(key, StandardCharsets.UTF_8) + ".bin");
+  }
+
+  private void warn(String action, Path entry, IOException e) {
+    messager.printMessage(Diagnostic.Kind.WARNING,
+        "Could not " + action + " the processing cache entry " + entry + ": " + e.getMessage());
+  }
+
+  /* ********************************************************************* */
+  /* Recording *********************************************************** */
+  /* ********************************************************************* */
+
+  /**
+   * Returns a {@link RecordingFiler} writing through {@code delegate}.
+   */
+  RecordingFiler recording(Filer delegate) {
+    return new RecordingFiler(delegate, generatedSourceFileNames);
+  }
+
+  /**
+   * A source file written through a {@link RecordingFiler}; its content is complete once it is closed.
+   */
+  @Data
+  static class RecordedSourceFile {
+    private final String name;
+    private final ImmutableList<Element> originatingElements;
+    private final StringWriter content = new StringWriter();
+    private boolean closed;
+  }
+
+  /**
+   * A {@link Filer} that records the source files written through it, once each, with all their originating
+   * elements. Files created in any other way, written through {@link FileObject#openOutputStream()}, or not
+   * closed by the end of the step, mark their originating elements as uncacheable.
+   */
+  static final class RecordingFiler implements Filer {
+    private final Filer delegate;
+    private final Set<String> generatedSourceFileNames;
+    private final List<RecordedSourceFile> sourceFiles = new ArrayList<>();
+    private final List<Element> uncacheableOriginatingElements = new ArrayList<>();
+    private boolean unattributedOutput;
+
+    private RecordingFiler(Filer delegate, Set<String> generatedSourceFileNames) {
+      this.delegate = delegate;
+      this.generatedSourceFileNames = generatedSourceFileNames;
+    }
+
+    /**
+     * Returns the source files written and closed through this filer.
+     */
+    ImmutableList<RecordedSourceFile> getSourceFiles() {
+      return sourceFiles.stream().filter(RecordedSourceFile::isClosed).collect(ImmutableList.toImmutableList());
+    }
+
+    ImmutableSet<Element> getUncacheableOriginatingElements() {
+      ImmutableSet.Builder<Element> uncacheable = ImmutableSet.<Element>builder().addAll(uncacheableOriginatingElements);
+      for (RecordedSourceFile sourceFile : sourceFiles) {
+        if (!sourceFile.isClosed())
+          uncacheable.addAll(sourceFile.getOriginatingElements());
+      }
+      return uncacheable.build();
+    }
+
+    /**
+     * Returns {@code true} iff a file without any originating element was created.
+     */
+    boolean hasUnattributedOutput() {
+      return unattributedOutput;
+    }
+
+    @Override
+    public JavaFileObject createSourceFile(CharSequence name, Element... originatingElements) throws IOException {
+      if (originatingElements.length == 0)
+        unattributedOutput = true;
+      JavaFileObject fileObject = delegate.createSourceFile(name, originatingElements);
+      generatedSourceFileNames.add(name.toString());
+      RecordedSourceFile sourceFile = new RecordedSourceFile(name.toString(), ImmutableList.copyOf(originatingElements));
+      sourceFiles.add(sourceFile);
+      return new RecordingJavaFileObject(fileObject, sourceFile);
+    }
+
+    @Override
+    public JavaFileObject createClassFile(CharSequence name, Element... originatingElements) throws IOException {
+      markUncacheable(originatingElements);
+      return delegate.createClassFile(name, originatingElements);
+    }
+
+    @Override
+    public FileObject createResource(JavaFileManager.Location location, CharSequence moduleAndPkg, CharSequence relativeName,
+        Element... originatingElements) throws IOException {
+      markUncacheable(originatingElements);
+      return delegate.createResource(location, moduleAndPkg, relativeName, originatingElements);
+    }
+
+    @Override
+    public FileObject getResource(JavaFileManager.Location location, CharSequence moduleAndPkg, CharSequence relativeName)
+        throws IOException {
+      return delegate.getResource(location, moduleAndPkg, relativeName);
+    }
+
+    private void markUncacheable(Element... originatingElements) {
+      if (originatingElements.length == 0)
+        unattributedOutput = true;
+      uncacheableOriginatingElements.addAll(ImmutableList.copyOf(originatingElements));
+    }
+
+    private final class RecordingJavaFileObject extends ForwardingJavaFileObject<JavaFileObject> {
+      private final RecordedSourceFile sourceFile;
+
+      RecordingJavaFileObject(JavaFileObject fileObject, RecordedSourceFile sourceFile) {
+        super(fileObject);
+        this.sourceFile = sourceFile;
+      }
+
+      @Override
+      public OutputStream openOutputStream() throws IOException {
+        uncacheableOriginatingElements.addAll(sourceFile.getOriginatingElements());
+        return super.openOutputStream();
+      }
+
+      @Override
+      public Writer openWriter() throws IOException {
+        Writer writer = super.openWriter();
+        StringWriter recorded = sourceFile.getContent();
+        return new FilterWriter(writer) {
+          private boolean closed;
+
+          @Override
+          public void write(int c) throws IOException {
+            super.write(c);
+            recorded.write(c);
+          }
+
+          @Override
+          public void write(char[] cbuf, int off, int len) throws IOException {
+            super.write(cbuf, off, len);
+            recorded.write(cbuf, off, len);
+          }
+
+          @Override
+          public void write(String str, int off, int len) throws IOException {
+            super.write(str, off, len);
+            recorded.write(str, off, len);
+          }
+
+          @Override
+          public void close() throws IOException {
+            super.close();
+            if (closed)
+              return;
+            closed = true;
+            sourceFile.setClosed(true);
+          }
+        };
+      }
+    }
+  }
+
+  /**
+   * Returns the type, package, or module that is tracked for the given element; see {@link BaseAnnotationProcessor}.
+   */
+  static Element tPElementOf(Element element) {
+    return element.getKind() == ElementKind.PACKAGE || element.getKind() == ElementKind.MODULE
+        ? element
+        : MoreElements.getEnclosingType(element);
+  }
+
+}
@@ -0,0 +1,242 @@
+package baseprocessors;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.function.LongSupplier;
+
+/**
+ * The JDK Flight Recorder events of {@link BaseAnnotationProcessor} and {@link UtilizedBaseAnnotationProcessor}, shown
+ * under the "Annotation Processing" category of a recording (e.g. one started by {@code -XX:StartFlightRecording}).
+ *
+ * <p>The {@code jdk.jfr} module is an optional dependency; if it is not present at run time, or if the type of an
+ * event is not enabled in any running recording, the {@code begin} methods allocate nothing and return {@code null},
+ * and the {@code end} methods ignore {@code null} events. An enabled event is filled in only if it is committed.
+ */
+final class ProcessingEvents {
+
+  private static final String CATEGORY = "Annotation Processing";
+  private static final boolean JFR_AVAILABLE = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+  private ProcessingEvents() {
+  }
+
+  /**
+   * The types of the events; loaded only if {@code jdk.jfr} is present. Whether a type is enabled is read from it
+   * without allocating an event.
+   */
+  private static final class EventTypes {
+    static final EventType ROUND_START = EventType.getEventType(RoundStart.class);
+    static final EventType ROUND_END = EventType.getEventType(RoundEnd.class);
+    static final EventType STEP_EXECUTION = EventType.getEventType(StepExecution.class);
+    static final EventType VALIDATION_CHECK = EventType.getEventType(ValidationCheck.class);
+    static final EventType SOURCE_FILE_WRITTEN = EventType.getEventType(SourceFileWritten.class);
+  }
+
+  /* ********************************************************************* */
+  /* Rounds ************************************************************** */
+  /* ********************************************************************* */
+
+  @Name("baseprocessors.RoundStart")
+  @Label("Round Start")
+  @Description("The start of a round of an annotation processor")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  static final class RoundStart extends Event {
+    @Label("Processor")
+    String processor;
+    @Label("Round")
+    int round;
+  }
+
+  @Name("baseprocessors.RoundEnd")
+  @Label("Round End")
+  @Description("A round of an annotation processor, committed at its end")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  static final class RoundEnd extends Event {
+    @Label("Processor")
+    String processor;
+    @Label("Round")
+    int round;
+    @Label("Last Round")
+    boolean processingOver;
+  }
+
+  /**
+   * Commits a {@link RoundStart} event, and begins the {@link RoundEnd} event of the round.
+   */
+  static RoundEnd beginRound(String processor, int round) {
+    if (!JFR_AVAILABLE)
+      return null;
+
+    if (EventTypes.ROUND_START.isEnabled()) {
+      RoundStart roundStart = new RoundStart();
+      roundStart.processor = processor;
+      roundStart.round = round;
+      roundStart.commit();
+    }
+    if (!EventTypes.ROUND_END.isEnabled())
+      return null;
+
+    RoundEnd roundEnd = new RoundEnd();
+    roundEnd.begin();
+    return roundEnd;
+  }
+
+  static void endRound(RoundEnd roundEnd, String processor, int round, boolean processingOver) {
+    if (roundEnd == null)
+      return;
+
+    roundEnd.end();
+    if (roundEnd.shouldCommit()) {
+      roundEnd.processor = processor;
+      roundEnd.round = round;
+      roundEnd.processingOver = processingOver;
+      roundEnd.commit();
+    }
+  }
+
+  /* ********************************************************************* */
+  /* Steps *************************************************************** */
+  /* ********************************************************************* */
+
+  @Name("baseprocessors.StepExecution")
+  @Label("Step Execution")
+  @Description("The execution of a processing step on the elements of a round")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  static final class StepExecution extends Event {
+    @Label("Processor")
+    String processor;
+    @Label("Step")
+    String step;
+    @Label("Round")
+    int round;
+    @Label("Elements")
+    int elementCount;
+    @Label("Rejected Elements")
+    int rejectedCount;
+  }
+
+  static StepExecution beginStep() {
+    if (!JFR_AVAILABLE || !EventTypes.STEP_EXECUTION.isEnabled())
+      return null;
+
+    StepExecution stepExecution = new StepExecution();
+    stepExecution.begin();
+    return stepExecution;
+  }
+
+  static void endStep(StepExecution stepExecution, String processor, String step, int round,
+      int elementCount, int rejectedCount) {
+    if (stepExecution == null)
+      return;
+
+    stepExecution.end();
+    if (stepExecution.shouldCommit()) {
+      stepExecution.processor = processor;
+      stepExecution.step = step;
+      stepExecution.round = round;
+      stepExecution.elementCount = elementCount;
+      stepExecution.rejectedCount = rejectedCount;
+      stepExecution.commit();
+    }
+  }
+
+  /* ********************************************************************* */
+  /* Validations ********************************************************* */
+  /* ********************************************************************* */
+
+  @Name("baseprocessors.ValidationCheck")
+  @Label("Validation Check")
+  @Description("The superficial validation of a type or package")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  static final class ValidationCheck extends Event {
+    @Label("Processor")
+    String processor;
+    @Label("Type or Package")
+    String typeName;
+    @Label("Valid")
+    boolean valid;
+    @Label("Missing Type")
+    @Description("The simple name of the first unresolved type, if invalid")
+    String missingTypeName;
+  }
+
+  static ValidationCheck beginValidation() {
+    if (!JFR_AVAILABLE || !EventTypes.VALIDATION_CHECK.isEnabled())
+      return null;
+
+    ValidationCheck validationCheck = new ValidationCheck();
+    validationCheck.begin();
+    return validationCheck;
+  }
+
+  static void endValidation(ValidationCheck validationCheck, String processor, String typeName, boolean valid,
+      String missingTypeName) {
+    if (validationCheck == null)
+      return;
+
+    validationCheck.end();
+    if (validationCheck.shouldCommit()) {
+      validationCheck.processor = processor;
+      validationCheck.typeName = typeName;
+      validationCheck.valid = valid;
+      validationCheck.missingTypeName = missingTypeName;
+      validationCheck.commit();
+    }
+  }
+
+  /* ********************************************************************* */
+  /* Generated files ***************************************************** */
+  /* ********************************************************************* */
+
+  @Name("baseprocessors.SourceFileWritten")
+  @Label("Source File Written")
+  @Description("A source file written by an annotation processor")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  static final class SourceFileWritten extends Event {
+    @Label("Processor")
+    String processor;
+    @Label("File")
+    String fileName;
+    @Label("Size")
+    @DataAmount
+    long bytes;
+  }
+
+  static SourceFileWritten beginSourceFile() {
+    if (!JFR_AVAILABLE || !EventTypes.SOURCE_FILE_WRITTEN.isEnabled())
+      return null;
+
+    SourceFileWritten sourceFileWritten = new SourceFileWritten();
+    sourceFileWritten.begin();
+    return sourceFileWritten;
+  }
+
+  /**
+   * Ends the event of writing a source file; its size, in bytes, is computed only if the event is committed.
+   */
+  static void endSourceFile(SourceFileWritten sourceFileWritten, String processor, String fileName, LongSupplier bytes) {
+    if (sourceFileWritten == null)
+      return;
+
+    sourceFileWritten.end();
+    if (sourceFileWritten.shouldCommit()) {
+      sourceFileWritten.processor = processor;
+      sourceFileWritten.fileName = fileName;
+      sourceFileWritten.bytes = bytes.getAsLong();
+      sourceFileWritten.commit();
+    }
+  }
+
+}
@@ -0,0 +1,112 @@
+package baseprocessors;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Receives the timings of the phases of a {@link BaseAnnotationProcessor}.
+ *
+ * <p>A processor records into the sink returned by {@link BaseAnnotationProcessor#createMetricsSink()}. By default,
+ * <ul>
+ *    <li>a per-compilation report is written under the class output if the {@value #METRICS_OPTION} processor option
+ *        is set to {@code json} or {@code csv}, and</li>
+ *    <li>a Chrome trace-event file, {@code trace.json}, is written to the directory given by the
+ *        {@value #TRACE_OPTION} processor option.</li>
+ * </ul>
+ * Without any sink nothing is measured at all.
+ *
+ * <p>The methods are invoked on the processor thread only.
+ */
+public interface ProcessingMetricsSink {
+
+  /**
+   * The processor option ({@code -A<option>=json|csv}) that enables the default metrics report.
+   */
+  String METRICS_OPTION = "baseprocessors.metrics";
+
+  /**
+   * The processor option ({@code -A<option>=<directory>}) that enables the Chrome trace-event file.
+   */
+  String TRACE_OPTION = "baseprocessors.trace";
+
+  /**
+   * The measured phases of a round. The phases other than {@link #ROUND} are nested in the {@code ROUND} phase of
+   * their round, and {@link #VALIDATION} is nested in {@link #SCAN}.
+   */
+  enum Phase {
+    /**
+     * A whole round; named by the round number.
+     */
+    ROUND,
+    /**
+     * The {@code preRoundProcess} hook.
+     */
+    PRE_ROUND,
+    /**
+     * The collection of the annotated elements of a round, including their validation.
+     */
+    SCAN,
+    /**
+     * The superficial validation of a type or package; named by its qualified name.
+     */
+    VALIDATION,
+    /**
+     * A {@linkplain BaseAnnotationProcessor.ProcessingStep processing step}, or the commit action of an
+     * {@linkplain BaseAnnotationProcessor.IndependentProcessingStep independent} one; named by the class of the step.
+     */
+    STEP,
+    /**
+     * A source file written by {@link UtilizedBaseAnnotationProcessor#javaFileWriteTo}; named by the file.
+     */
+    FILE_WRITE,
+    /**
+     * The {@code postRoundProcess} hook.
+     */
+    POST_ROUND
+  }
+
+  /**
+   * Records a measured phase.
+   *
+   * @param phase          the measured phase
+   * @param name           the name of what was measured; see {@link Phase}
+   * @param round          the number of the round, starting from {@code 1}
+   * @param startNanos     the start of the phase as given by {@link System#nanoTime()}
+   * @param durationNanos  the duration of the phase in nanoseconds
+   */
+  void record(Phase phase, String name, int round, long startNanos, long durationNanos);
+
+  /**
+   * Invoked once at the end of the last round, after all the phases are recorded.
+   */
+  default void processingOver() {
+  }
+
+  /**
+   * Returns a sink recording into all the given sinks, in order.
+   *
+   * @param sinks the sinks to be recorded into
+   * @return a sink recording into all of {@code sinks}.
+   */
+  static ProcessingMetricsSink combining(List<? extends ProcessingMetricsSink> sinks) {
+    List<ProcessingMetricsSink> combinedSinks = ImmutableList.copyOf(sinks);
+    if (combinedSinks.size() == 1)
+      return combinedSinks.get(0);
+
+    return new ProcessingMetricsSink() {
+      @Override
+      public void record(Phase phase, String name, int round, long startNanos, long durationNanos) {
+        for (ProcessingMetricsSink sink : combinedSinks)
+          sink.record(phase, name, round, startNanos, durationNanos);
+      }
+
+      @Override
+      public void processingOver() {
+        for (ProcessingMetricsSink sink : combinedSinks)
+          sink.processingOver();
+      }
+    };
+  }
+
+}
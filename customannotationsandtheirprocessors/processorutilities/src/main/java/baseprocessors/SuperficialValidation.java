@@ -1,23 +1,262 @@
 package baseprocessors;
 
+import com.google.common.collect.ImmutableSet;
+import com.sun.source.util.Trees;
+import utils.MoreElements;
 import utils.MoreTypes;
 
+import javax.annotation.processing.ProcessingEnvironment;
 import javax.lang.model.element.*;
 import javax.lang.model.type.*;
 import javax.lang.model.util.AbstractElementVisitor9;
 import javax.lang.model.util.SimpleAnnotationValueVisitor9;
 import javax.lang.model.util.SimpleTypeVisitor9;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.StreamSupport;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.function.Predicate;
 
 /**
  * A utility class that traverses {@link Element} instances and ensures that all type information
  * is present and resolvable.
+ *
+ * <p>The static validators validate from scratch on every invocation, on a work stack reused by all the invocations
+ * of a thread. A {@linkplain #memoizing() memoizing} validator instance, on the other hand, remembers the verdict of
+ * every element and (compound) type it validates, so that the elements and types shared by several validations, such
+ * as the enum constants used in annotation values, or common supertypes, are validated only once. If {@linkplain #memoizing(ProcessingEnvironment) given} the
+ * processing environment, it also takes the elements loaded from class files as valid without traversing them, since
+ * those cannot be distorted by the errors of the ongoing compilation.
+ *
+ * <p>How deep a type is validated is chosen by a {@link Depth}; the validators that do not take one validate
+ * {@linkplain Depth#FULL fully}. A validator instance may also be {@linkplain #memoizing(ProcessingEnvironment, Set)
+ * scoped} to the values of some annotations only, leaving the values of the other annotations of the elements it
+ * validates, but not their types, unvalidated.
+ *
+ * <p>The traversal is iterative: the elements, types, annotations, and annotation values yet to be validated are
+ * kept on an explicit work stack rather than on the call stack, so that arbitrarily deep nesting, such as deeply
+ * nested type arguments of generated code, cannot overflow the thread's stack. The traversal stops at the first
+ * invalid part found; the {@code explain} methods tell which part it is, and where. Apart from the description of a
+ * failure, a validation allocates nothing of its own once its work stack has grown to the depth of the validated
+ * parts; the lists and maps built by the compiler to answer its queries are the remaining allocations. The grown stack
+ * is kept for the next validations, unless it has grown beyond 4096 entries; it is shrunk back when the memo is
+ * {@linkplain #clearCache() cleared}.
  */
 public final class SuperficialValidation {
 
-  private SuperficialValidation() {
+  /**
+   * How much of a type element is validated. Each depth validates everything the shallower ones do; the elements
+   * other than types are always validated fully.
+   */
+  public enum Depth {
+    /**
+     * The type itself, its annotations, type parameters, superclass, and interfaces.
+     */
+    SIGNATURE_ONLY,
+    /**
+     * In addition to {@link #SIGNATURE_ONLY}, the fields, methods, and constructors declared by the type, together
+     * with their annotations, parameters, and default values. Its member types are validated by their signatures only.
+     */
+    MEMBERS,
+    /**
+     * In addition to {@link #MEMBERS}, the member types in their entirety.
+     */
+    FULL
+  }
+
+  /*
+   * The memoized verdicts by identity, or null if not memoizing. A verdict is TRUE if valid; otherwise, it is the
+   * first ErrorType that made it invalid, or FALSE if it is invalid for another reason. The verdicts of the type
+   * elements are memoized by the depth of their validation, and those of the other elements under FULL.
+   */
+  private final Map<Depth, Map<Element, Object>> elementVerdictsByDepth;
+  private final Map<TypeMirror, Object> typeVerdicts;
+  /* Whether a top-level type is loaded from a class file, or null if unknown; and its memoized answers */
+  private final Predicate<TypeElement> isBinaryType;
+  private final Map<TypeElement, Boolean> binaryTypeVerdicts;
+  /*
+   * The qualified names of the annotations whose values are validated when found on an element, or null if all; and
+   * whether each annotation type encountered is one of them.
+   */
+  private final ImmutableSet<String> valueValidatedAnnotations;
+  private final Map<Element, Boolean> valueValidatedAnnotationTypes;
+
+  /*
+   * The validator of the static validators, one per thread, so that they allocate neither a validator nor its work
+   * stack per call. It does not memoize, and its work stack is empty, and trimmed, between validations. It is removed
+   * by releaseStaticValidator(), not to keep this class (and its class loader) reachable from a pooled thread.
+   */
+  private static final ThreadLocal<SuperficialValidation> STATIC_VALIDATOR =
+      ThreadLocal.withInitial(() -> new SuperficialValidation(false));
+
+  private SuperficialValidation(boolean memoizing) {
+    this(memoizing, null, null);
+  }
+
+  private SuperficialValidation(
+      boolean memoizing, Predicate<TypeElement> isBinaryType, ImmutableSet<String> valueValidatedAnnotations) {
+    if (memoizing) {
+      this.elementVerdictsByDepth = new EnumMap<>(Depth.class);
+      for (Depth depth : Depth.values())
+        elementVerdictsByDepth.put(depth, new IdentityHashMap<>());
+    } else {
+      this.elementVerdictsByDepth = null;
+    }
+    this.typeVerdicts = memoizing ? new IdentityHashMap<>() : null;
+    this.isBinaryType = isBinaryType;
+    this.binaryTypeVerdicts = isBinaryType != null ? new IdentityHashMap<>() : null;
+    this.valueValidatedAnnotations = valueValidatedAnnotations;
+    this.valueValidatedAnnotationTypes = valueValidatedAnnotations != null ? new IdentityHashMap<>() : null;
+  }
+
+  /**
+   * Returns a new validator that memoizes the verdicts of the elements and types it validates, by their identities.
+   *
+   * <p>Since there is no guarantee that an element or a type will be represented by the same object, nor that its
+   * validity stays the same, in the next round, the memo should be {@linkplain #clearCache() cleared} at the end of
+   * each round.
+   *
+   * @return a new memoizing validator.
+   */
+  public static SuperficialValidation memoizing() {
+    return new SuperficialValidation(true);
+  }
+
+  /**
+   * Returns a new {@linkplain #memoizing() memoizing} validator that, in addition, takes the elements loaded from
+   * class files as valid. The origin of an element is told by the javac tree API: an element has no source tree iff it
+   * is loaded from a class file. If {@code processingEnv} is not javac's, or if the tree API is not accessible, the
+   * returned validator traverses all elements alike.
+   *
+   * @param processingEnv the processing environment of the compilation of the elements to be validated
+   * @return a new memoizing validator.
+   */
+  public static SuperficialValidation memoizing(ProcessingEnvironment processingEnv) {
+    return new SuperficialValidation(true, binaryTypeProbe(processingEnv), null);
+  }
+
+  /**
+   * Returns a new {@linkplain #memoizing(ProcessingEnvironment) memoizing} validator that validates the values of
+   * only the annotations named in {@code valueValidatedAnnotations}, among the annotations of the elements it
+   * validates. The types of all the annotations are still validated, and so are the values of the annotations nested in
+   * the validated values. This spares the traversal of the (often large) values of the annotations of other tools,
+   * which a processor never reads.
+   *
+   * @param processingEnv             the processing environment of the compilation of the elements to be validated
+   * @param valueValidatedAnnotations the qualified names of the annotations whose values are validated
+   * @return a new memoizing validator, scoped to the values of {@code valueValidatedAnnotations}.
+   */
+  public static SuperficialValidation memoizing(
+      ProcessingEnvironment processingEnv, Set<String> valueValidatedAnnotations) {
+    return new SuperficialValidation(
+        true, binaryTypeProbe(processingEnv), ImmutableSet.copyOf(valueValidatedAnnotations));
+  }
+
+  private static Predicate<TypeElement> binaryTypeProbe(ProcessingEnvironment processingEnv) {
+    try {
+      Trees trees = Trees.instance(processingEnv);
+      // Unlike getPath(), getTree() looks the tree up without scanning the compilation unit for it.
+      return typeElement -> trees.getTree(typeElement) == null;
+    } catch (IllegalArgumentException | LinkageError e) {
+      // Not javac (e.g. a wrapped environment or ECJ), or jdk.compiler is not readable
+      return null;
+    }
+  }
+
+  /**
+   * Returns {@code true} iff {@code element} is known to be loaded from a class file, that is, if its top-level type is.
+   */
+  boolean isFromClassFile(Element element) {
+    if (isBinaryType == null)
+      return false;
+
+    Element topLevelElement = element;
+    for (Element enclosingElement = element.getEnclosingElement();
+         enclosingElement != null && enclosingElement.getKind() != ElementKind.PACKAGE
+             && enclosingElement.getKind() != ElementKind.MODULE;
+         enclosingElement = enclosingElement.getEnclosingElement())
+      topLevelElement = enclosingElement;
+
+    if (!topLevelElement.getKind().isClass() && !topLevelElement.getKind().isInterface())
+      return false;
+
+    TypeElement topLevelType = (TypeElement) topLevelElement;
+    Boolean isBinary = binaryTypeVerdicts.get(topLevelType);
+    if (isBinary == null) {
+      isBinary = isBinaryType.test(topLevelType);
+      binaryTypeVerdicts.put(topLevelType, isBinary);
+    }
+    return isBinary;
+  }
+
+  /**
+   * Releases the validator that the static validation methods keep for the calling thread, if any. To be called on
+   * each thread that ran them, e.g. by the processor when processing is over, so that a long-lived thread (as of a
+   * compiler daemon) does not keep the processor's class loader reachable. A later call of a static validation method
+   * creates a new validator.
+   */
+  public static void releaseStaticValidator() {
+    STATIC_VALIDATOR.remove();
+  }
+
+  /**
+   * Forgets all the memoized verdicts, and shrinks the work stack back to its initial capacity.
+   */
+  public void clearCache() {
+    if (stackSize == 0)
+      trimStack();
+    if (elementVerdictsByDepth != null) {
+      elementVerdictsByDepth.values().forEach(Map::clear);
+      typeVerdicts.clear();
+    }
+    if (binaryTypeVerdicts != null)
+      binaryTypeVerdicts.clear();
+    if (valueValidatedAnnotationTypes != null)
+      valueValidatedAnnotationTypes.clear();
+  }
+
+  /* ********************************************************************* */
+  /* Validation Outcomes ************************************************* */
+  /* ********************************************************************* */
+
+  /**
+   * Validates {@code element} as {@link #validateElement(Element, Depth)} does, and explains the outcome: if invalid,
+   * the first unresolved type, and the path to it. The path is collected during the same traversal, and is described
+   * only if the element is invalid.
+   *
+   * @param element element to be validated
+   * @param depth   how much of the type elements is validated
+   * @return the outcome of the validation.
+   */
+  public static ValidationResult explainElement(Element element, Depth depth) {
+    return STATIC_VALIDATOR.get().explain(element, depth);
+  }
+
+  /**
+   * Validates {@code element} as {@link #isValidElement(Element, Depth)} does, and explains the outcome as
+   * {@link #explainElement(Element, Depth)} does. If the element is invalid by a memoized verdict, the path ends at
+   * the element (or type) with that verdict.
+   *
+   * @param element element to be validated
+   * @param depth   how much of the type elements is validated
+   * @return the outcome of the validation.
+   */
+  public ValidationResult explain(Element element, Depth depth) {
+    tracking = true;
+    try {
+      if (isValidElement(element, depth))
+        return ValidationResult.VALID;
+      return ValidationResult.invalid(lastFailure, lastFailurePath);
+    } finally {
+      tracking = false;
+      lastFailure = null;
+      lastFailurePath = null;
+    }
   }
 
   /* ********************************************************************* */
@@ -31,75 +270,168 @@ public final class SuperficialValidation {
    * @return {@code true} iff all the given elements return true from {@link #validateElement(Element)}
    */
   public static boolean validateElements(Iterable<? extends Element> elements) { //TODO maybe merge the singular and plural methods into one later
-    return StreamSupport.stream(elements.spliterator(), false)
-        .allMatch(SuperficialValidation::validateElement);
+    return STATIC_VALIDATOR.get().areValid(Task.ELEMENT, elements);
   }
 
   /**
    * Returns {@code true} iff all types referenced by the given element are defined. The exact meaning of
    * this depends on the kind of element. For packages, it means that all annotations on the package
-   * are fully defined. For other element kinds, it means that types referenced by the element,
+   * are fully defined. For modules, it means that all annotations on the module, and the services used and provided
+   * by it, together with their implementations, are fully defined. For other element kinds, it means that types referenced by the element,
    * anything it contains, and any of its annotations' element are all defined.
    *
    * @param element element to be validated
    * @return {@code true} iff all types referenced by the given element are defined
    */
   public static boolean validateElement(Element element) {
-    return element.accept(ELEMENT_VALIDATING_VISITOR, null);
+    return STATIC_VALIDATOR.get().isValidElement(element);
   }
 
-  private static final ElementVisitor<Boolean, Void> ELEMENT_VALIDATING_VISITOR =
+  /**
+   * Returns {@code true} iff all types referenced by the given element, to the given depth, are defined. See
+   * {@link #validateElement(Element)}, and {@link Depth}.
+   *
+   * @param element element to be validated
+   * @param depth   how much of the type elements is validated
+   * @return {@code true} iff all types referenced by the given element, to the given depth, are defined
+   */
+  public static boolean validateElement(Element element, Depth depth) {
+    return STATIC_VALIDATOR.get().isValidElement(element, depth);
+  }
+
+  /**
+   * Returns {@code true} iff all types referenced by the given element, to the given depth, are defined, as specified
+   * by {@link #validateElement(Element, Depth)}. See {@link #isValidElement(Element)}.
+   *
+   * @param element element to be validated
+   * @param depth   how much of the type elements is validated
+   * @return {@code true} iff all types referenced by the given element, to the given depth, are defined
+   */
+  public boolean isValidElement(Element element, Depth depth) {
+    return isValid(Task.ELEMENT, element, depth);
+  }
+
+  /**
+   * Returns {@code true} iff all types referenced by the given element are defined, as specified by
+   * {@link #validateElement(Element)}. The verdicts are memoized if this validator is {@linkplain #memoizing() memoizing},
+   * and the elements loaded from class files are not traversed if it is {@linkplain #memoizing(ProcessingEnvironment)
+   * aware} of their origins.
+   *
+   * @param element element to be validated
+   * @return {@code true} iff all types referenced by the given element are defined
+   */
+  public boolean isValidElement(Element element) {
+    return isValidElement(element, Depth.FULL);
+  }
+
+  private Map<Element, Object> elementVerdictsOf(Element element, Depth depth) {
+    return elementVerdictsByDepth.get(MoreElements.isTypeElement(element) ? depth : Depth.FULL);
+  }
+
+  private boolean expandElement(Element element, Depth depth) {
+    if (elementVerdictsByDepth != null) {
+      Map<Element, Object> elementVerdicts = elementVerdictsOf(element, depth);
+      Object verdict = elementVerdicts.get(element);
+      if (verdict != null)
+        return replay(verdict);
+      if (isFromClassFile(element)) {
+        elementVerdicts.put(element, Boolean.TRUE);
+        return true;
+      }
+    }
+    if (elementVerdictsByDepth != null || tracking)
+      push(Task.ELEMENT_END, element, null, depth);
+
+    int mark = stackSize;
+    element.accept(elementExpandingVisitor, depth);
+    reverseFrom(mark);
+    return true;
+  }
+
+  /*
+   * Pushes the parts of an element to be validated, in the order of their validation; see reverseFrom(int).
+   */
+  private final ElementVisitor<Void, Depth> elementExpandingVisitor =
       new AbstractElementVisitor9<>() {
 
-        private boolean isValidBaseElement(Element e) {
-          return validateType(e.asType())
-              && validateAnnotations(e.getAnnotationMirrors())
-              && validateElements(e.getEnclosedElements());
+        private void pushBaseElement(Element e, Depth depth) {
+          push(Task.TYPE, e.asType(), null, depth);
+          pushAll(Task.ELEMENT_ANNOTATION, e.getAnnotationMirrors(), null, depth);
+          pushAll(Task.ELEMENT, e.getEnclosedElements(), null, depth);
         }
 
-        @Override public Boolean visitModule(ModuleElement t, Void ignore) {
-          return visitUnknown(t, ignore); //Ignore Modules
-        } //TODO
+        @Override
+        public Void visitModule(ModuleElement e, Depth depth) {
+          // does not validate enclosed elements because it will return the packages of the module; of the
+          // directives, only the services refer to types.
+          pushAll(Task.ELEMENT_ANNOTATION, e.getAnnotationMirrors(), null, depth);
+          for (ModuleElement.Directive directive : e.getDirectives()) {
+            if (directive.getKind() == ModuleElement.DirectiveKind.USES) {
+              push(Task.TYPE, ((ModuleElement.UsesDirective) directive).getService().asType(), null, depth);
+            } else if (directive.getKind() == ModuleElement.DirectiveKind.PROVIDES) {
+              ModuleElement.ProvidesDirective providesDirective = (ModuleElement.ProvidesDirective) directive;
+              push(Task.TYPE, providesDirective.getService().asType(), null, depth);
+              for (TypeElement implementation : providesDirective.getImplementations())
+                push(Task.TYPE, implementation.asType(), null, depth);
+            }
+          }
+          return null;
+        }
 
         @Override
-        public Boolean visitPackage(PackageElement e, Void ignore) {
+        public Void visitPackage(PackageElement e, Depth depth) {
           // does not validate enclosed elements because it will return types in the package
-          return validateAnnotations(e.getAnnotationMirrors());
+          pushAll(Task.ELEMENT_ANNOTATION, e.getAnnotationMirrors(), null, depth);
+          return null;
         }
 
         @Override
-        public Boolean visitType(TypeElement e, Void ignore) {
-          return isValidBaseElement(e)
-              && validateElements(e.getTypeParameters())
-              && validateTypes(e.getInterfaces())
-              && validateType(e.getSuperclass());
+        public Void visitType(TypeElement e, Depth depth) {
+          push(Task.TYPE, e.asType(), null, depth);
+          pushAll(Task.ELEMENT_ANNOTATION, e.getAnnotationMirrors(), null, depth);
+          // The member types of a type validated to its members are validated by their signatures only.
+          if (depth != Depth.SIGNATURE_ONLY)
+            pushAll(Task.ELEMENT, e.getEnclosedElements(), null, depth == Depth.MEMBERS ? Depth.SIGNATURE_ONLY : depth);
+          pushAll(Task.ELEMENT, e.getTypeParameters(), null, depth);
+          pushAll(Task.TYPE, e.getInterfaces(), null, depth);
+          push(Task.TYPE, e.getSuperclass(), null, depth);
+          return null;
         }
 
         @Override
-        public Boolean visitVariable(VariableElement e, Void ignore) {
-          return isValidBaseElement(e);
+        public Void visitVariable(VariableElement e, Depth depth) {
+          pushBaseElement(e, depth);
+          return null;
         }
 
         @Override
-        public Boolean visitExecutable(ExecutableElement e, Void ignore) {
+        public Void visitExecutable(ExecutableElement e, Depth depth) {
+          // The executable type, which consists of the parts below, comes last; so that an invalid parameter is found
+          // through its element, and is on the path to the failure.
+          pushAll(Task.ELEMENT_ANNOTATION, e.getAnnotationMirrors(), null, depth);
+          pushAll(Task.ELEMENT, e.getEnclosedElements(), null, depth);
           AnnotationValue defaultValue = e.getDefaultValue();
-          return isValidBaseElement(e)
-              && (defaultValue == null || validateAnnotationValue(defaultValue, e.getReturnType()))
-              && validateType(e.getReturnType())
-              && validateTypes(e.getThrownTypes())
-              && validateElements(e.getTypeParameters())
-              && validateElements(e.getParameters());
+          if (defaultValue != null)
+            push(Task.ANNOTATION_VALUE, defaultValue, e.getReturnType(), depth);
+          push(Task.TYPE, e.getReturnType(), null, depth);
+          pushAll(Task.TYPE, e.getThrownTypes(), null, depth);
+          pushAll(Task.ELEMENT, e.getTypeParameters(), null, depth);
+          pushAll(Task.ELEMENT, e.getParameters(), null, depth);
+          push(Task.TYPE, e.asType(), null, depth);
+          return null;
         }
 
         @Override
-        public Boolean visitTypeParameter(TypeParameterElement e, Void ignore) {
-          return isValidBaseElement(e) && validateTypes(e.getBounds());
+        public Void visitTypeParameter(TypeParameterElement e, Depth depth) {
+          pushBaseElement(e, depth);
+          pushAll(Task.TYPE, e.getBounds(), null, depth);
+          return null;
         }
 
         @Override
-        public Boolean visitUnknown(Element e, Void ignore) {
+        public Void visitUnknown(Element e, Depth depth) {
           // just assume that unknown elements are OK
-          return true;
+          return null;
         }
       };
 
@@ -114,10 +446,7 @@ public final class SuperficialValidation {
    * @return {@code true} iff all the given type-mirrors return true from {@link #validateType(TypeMirror)}
    */
   public static boolean validateTypes(Iterable<? extends TypeMirror> types) {
-    for (TypeMirror type : types)
-      if (!validateType(type))
-        return false;
-    return true;
+    return STATIC_VALIDATOR.get().areValid(Task.TYPE, types);
   }
 
   /**
@@ -130,15 +459,50 @@ public final class SuperficialValidation {
    * @return {@code true} iff the given {@linkplain TypeMirror} is fully defined
    */
   public static boolean validateType(TypeMirror type) {
-    return type.accept(TYPE_VALIDATING_VISITOR, null);
+    return STATIC_VALIDATOR.get().isValidType(type);
+  }
+
+  /**
+   * Returns {@code true} iff the given type is fully defined, as specified by {@link #validateType(TypeMirror)}.
+   * The verdicts of declared and executable types are memoized if this validator is
+   * {@linkplain #memoizing() memoizing}; the rest are cheaper to validate than to look up.
+   *
+   * @param type the {@linkplain TypeMirror} whose definition is to be validated
+   * @return {@code true} iff the given {@linkplain TypeMirror} is fully defined
+   */
+  public boolean isValidType(TypeMirror type) {
+    return isValid(Task.TYPE, type, Depth.FULL);
+  }
+
+  private static boolean isMemoizable(TypeMirror type) {
+    return type.getKind() == TypeKind.DECLARED || type.getKind() == TypeKind.EXECUTABLE;
+  }
+
+  private boolean expandType(TypeMirror type) {
+    if (typeVerdicts != null && isMemoizable(type)) {
+      Object verdict = typeVerdicts.get(type);
+      if (verdict != null)
+        return replay(verdict);
+      push(Task.TYPE_END, type, null, Depth.FULL);
+    } else if (tracking && type.getKind() != TypeKind.ERROR) {
+      push(Task.TYPE_END, type, null, Depth.FULL);
+    }
+
+    int mark = stackSize;
+    boolean isValid = type.accept(typeExpandingVisitor, null);
+    reverseFrom(mark);
+    return isValid;
   }
 
   /*
+   * Pushes the component types of a type to be validated, in the order of their validation, and returns false iff
+   * the type itself is an error.
+   *
    * This visitor does not test type variables specifically, but it seems that that is not actually
    * an issue.  Javac turns the whole type parameter into an error type if it can't figure out the
    * bounds.
    */
-  private static final TypeVisitor<Boolean, Void> TYPE_VALIDATING_VISITOR =
+  private final TypeVisitor<Boolean, Void> typeExpandingVisitor =
       new SimpleTypeVisitor9<>() {
         @Override
         protected Boolean defaultAction(TypeMirror t, Void ignore) {
@@ -147,16 +511,19 @@ public final class SuperficialValidation {
 
         @Override
         public Boolean visitArray(ArrayType t, Void ignore) {
-          return validateType(t.getComponentType());
+          push(Task.TYPE, t.getComponentType(), null, Depth.FULL);
+          return true;
         }
 
         @Override
         public Boolean visitDeclared(DeclaredType t, Void ignore) {
-          return validateTypes(t.getTypeArguments());
+          pushAll(Task.TYPE, t.getTypeArguments(), null, Depth.FULL);
+          return true;
         }
 
         @Override
         public Boolean visitError(ErrorType t, Void ignore) {
+          failure = t;
           return false;
         }
 
@@ -167,19 +534,23 @@ public final class SuperficialValidation {
         }
 
         @Override
-        public Boolean visitWildcard(WildcardType t, Void ignored) {
+        public Boolean visitWildcard(WildcardType t, Void ignore) {
           TypeMirror extendsBound = t.getExtendsBound();
           TypeMirror superBound = t.getSuperBound();
-          return (extendsBound == null || validateType(extendsBound))
-              && (superBound == null || validateType(superBound));
+          if (extendsBound != null)
+            push(Task.TYPE, extendsBound, null, Depth.FULL);
+          if (superBound != null)
+            push(Task.TYPE, superBound, null, Depth.FULL);
+          return true;
         }
 
         @Override
-        public Boolean visitExecutable(ExecutableType t, Void ignored) {
-          return validateTypes(t.getParameterTypes())
-              && validateType(t.getReturnType())
-              && validateTypes(t.getThrownTypes())
-              && validateTypes(t.getTypeVariables());
+        public Boolean visitExecutable(ExecutableType t, Void ignore) {
+          pushAll(Task.TYPE, t.getParameterTypes(), null, Depth.FULL);
+          push(Task.TYPE, t.getReturnType(), null, Depth.FULL);
+          pushAll(Task.TYPE, t.getThrownTypes(), null, Depth.FULL);
+          pushAll(Task.TYPE, t.getTypeVariables(), null, Depth.FULL);
+          return true;
         }
       };
 
@@ -195,10 +566,7 @@ public final class SuperficialValidation {
    * @return {@code true} iff all the given annotation-mirrors return true from {@link #validateAnnotation(AnnotationMirror)}
    */
   public static boolean validateAnnotations(Iterable<? extends AnnotationMirror> annotationMirrors) {
-    for (AnnotationMirror annotationMirror : annotationMirrors)
-      if (!validateAnnotation(annotationMirror))
-        return false;
-    return true;
+    return STATIC_VALIDATOR.get().areValid(Task.ANNOTATION, annotationMirrors);
   }
 
   /**
@@ -210,31 +578,79 @@ public final class SuperficialValidation {
    * @return {@code true} iff the given {@linkplain AnnotationMirror} is fully defined
    */
   public static boolean validateAnnotation(AnnotationMirror annotationMirror) {
-    return validateType(annotationMirror.getAnnotationType())
-        && validateAnnotationValues(annotationMirror.getElementValues());
+    return STATIC_VALIDATOR.get().isValidAnnotation(annotationMirror);
   }
 
-  private static boolean validateAnnotationValues(Map<? extends ExecutableElement, ? extends AnnotationValue> valueMap) {
-    return valueMap.entrySet().stream()
-        .allMatch(
-            valueEntry -> {
-              TypeMirror expectedType = valueEntry.getKey().getReturnType();
-              return validateAnnotationValue(valueEntry.getValue(), expectedType);
-            }
-        );
+  /**
+   * Returns {@code true} iff the given annotationMirror is fully defined, as specified by
+   * {@link #validateAnnotation(AnnotationMirror)}. Its values are validated even if this validator is
+   * {@linkplain #memoizing(ProcessingEnvironment, Set) scoped} to the values of other annotations.
+   *
+   * @param annotationMirror the {@linkplain AnnotationMirror} whose definition is to be validated
+   * @return {@code true} iff the given {@linkplain AnnotationMirror} is fully defined
+   */
+  public boolean isValidAnnotation(AnnotationMirror annotationMirror) {
+    return isValid(Task.ANNOTATION, annotationMirror, Depth.FULL);
+  }
+
+  private void expandAnnotation(AnnotationMirror annotationMirror, boolean validatesValues) {
+    if (tracking)
+      push(Task.ANNOTATION_END, annotationMirror, null, Depth.FULL);
+    int mark = stackSize;
+    push(Task.TYPE, annotationMirror.getAnnotationType(), null, Depth.FULL);
+    if (validatesValues) {
+      // javac builds the map of the values anew on every call; there is no cheaper way to visit them.
+      for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> valueEntry
+          : annotationMirror.getElementValues().entrySet())
+        push(Task.ANNOTATION_VALUE, valueEntry.getValue(), valueEntry.getKey().getReturnType(), Depth.FULL);
+    }
+    reverseFrom(mark);
   }
 
-  private static boolean validateAnnotationValue(AnnotationValue annotationValue, TypeMirror expectedType) {
-    return annotationValue.accept(VALUE_VALIDATING_VISITOR, expectedType);
+  /**
+   * Returns {@code true} iff the values of {@code annotationMirror}, found on an element, are to be validated.
+   */
+  private boolean isValueValidated(AnnotationMirror annotationMirror) {
+    if (valueValidatedAnnotations == null)
+      return true;
+
+    Element annotationType = annotationMirror.getAnnotationType().asElement();
+    Boolean isValueValidated = valueValidatedAnnotationTypes.get(annotationType);
+    if (isValueValidated == null) {
+      // The type of the annotation is not validated yet; even if it is an error, its element is named.
+      isValueValidated = annotationType instanceof QualifiedNameable
+          && valueValidatedAnnotations.contains(((QualifiedNameable) annotationType).getQualifiedName().toString());
+      valueValidatedAnnotationTypes.put(annotationType, isValueValidated);
+    }
+    return isValueValidated;
   }
 
-  private static final AnnotationValueVisitor<Boolean, TypeMirror> VALUE_VALIDATING_VISITOR =
+  private boolean expandAnnotationValue(AnnotationValue annotationValue, TypeMirror expectedType) {
+    int mark = stackSize;
+    boolean isValid = annotationValue.accept(valueExpandingVisitor, expectedType);
+    reverseFrom(mark);
+    return isValid;
+  }
+
+  /*
+   * Checks the value itself against the expected type, by its kind rather than by MoreTypes.isExactTypeOf() which
+   * dispatches on the type for each check, and pushes its components to be validated, in the order of
+   * their validation.
+   */
+  private final AnnotationValueVisitor<Boolean, TypeMirror> valueExpandingVisitor =
       new SimpleAnnotationValueVisitor9<>() {
         @Override
         protected Boolean defaultAction(Object o, TypeMirror expectedType) {
           return MoreTypes.isExactTypeOf(o.getClass(), expectedType);
         }
 
+        @Override
+        public Boolean visitString(String s, TypeMirror expectedType) {
+          return expectedType.getKind() == TypeKind.DECLARED
+              && MoreElements.asTypeElement(MoreTypes.asDeclared(expectedType).asElement())
+                  .getQualifiedName().contentEquals("java.lang.String");
+        }
+
         @Override
         public Boolean visitUnknown(AnnotationValue av, TypeMirror expectedType) {
           // just take the default action for the unknown
@@ -243,8 +659,11 @@ public final class SuperficialValidation {
 
         @Override
         public Boolean visitAnnotation(AnnotationMirror a, TypeMirror expectedType) {
-          return MoreTypes.equivalence().equivalent(a.getAnnotationType(), expectedType)
-              && validateAnnotation(a);
+          if (!MoreTypes.equivalence().equivalent(a.getAnnotationType(), expectedType))
+            return false;
+
+          push(Task.ANNOTATION, a, null, Depth.FULL);
+          return true;
         }
 
         @Override
@@ -252,14 +671,17 @@ public final class SuperficialValidation {
           if (expectedType.getKind() != TypeKind.ARRAY)
             return false;
 
-          TypeMirror componentType = MoreTypes.asArray(expectedType).getComponentType();
-          return values.stream().allMatch(value -> value.accept(this, componentType));
+          pushAll(Task.ANNOTATION_VALUE, values, MoreTypes.asArray(expectedType).getComponentType(), Depth.FULL);
+          return true;
         }
 
         @Override
         public Boolean visitEnumConstant(VariableElement enumConstant, TypeMirror expectedType) {
-          return MoreTypes.equivalence().equivalent(enumConstant.asType(), expectedType)
-              && validateElement(enumConstant);
+          if (!MoreTypes.equivalence().equivalent(enumConstant.asType(), expectedType))
+            return false;
+
+          push(Task.ELEMENT, enumConstant, null, Depth.FULL);
+          return true;
         }
 
         @Override
@@ -268,48 +690,286 @@ public final class SuperficialValidation {
           // isn't really the sort of thing that shows up in a bad AST from upstream compilation
           // we ignore the expected type and just validate the type.  It might be wrong, but
           // it's valid.
-          return validateType(type);
+          push(Task.TYPE, type, null, Depth.FULL);
+          return true;
         }
 
         @Override
         public Boolean visitBoolean(boolean b, TypeMirror expectedType) {
-          return MoreTypes.isExactTypeOf(Boolean.TYPE, expectedType);
+          return expectedType.getKind() == TypeKind.BOOLEAN;
         }
 
         @Override
         public Boolean visitByte(byte b, TypeMirror expectedType) {
-          return MoreTypes.isExactTypeOf(Byte.TYPE, expectedType);
+          return expectedType.getKind() == TypeKind.BYTE;
         }
 
         @Override
         public Boolean visitChar(char c, TypeMirror expectedType) {
-          return MoreTypes.isExactTypeOf(Character.TYPE, expectedType);
+          return expectedType.getKind() == TypeKind.CHAR;
         }
 
         @Override
         public Boolean visitDouble(double d, TypeMirror expectedType) {
-          return MoreTypes.isExactTypeOf(Double.TYPE, expectedType);
+          return expectedType.getKind() == TypeKind.DOUBLE;
         }
 
         @Override
         public Boolean visitFloat(float f, TypeMirror expectedType) {
-          return MoreTypes.isExactTypeOf(Float.TYPE, expectedType);
+          return expectedType.getKind() == TypeKind.FLOAT;
         }
 
         @Override
         public Boolean visitInt(int i, TypeMirror expectedType) {
-          return MoreTypes.isExactTypeOf(Integer.TYPE, expectedType);
+          return expectedType.getKind() == TypeKind.INT;
         }
 
         @Override
         public Boolean visitLong(long l, TypeMirror expectedType) {
-          return MoreTypes.isExactTypeOf(Long.TYPE, expectedType);
+          return expectedType.getKind() == TypeKind.LONG;
         }
 
         @Override
         public Boolean visitShort(short s, TypeMirror expectedType) {
-          return MoreTypes.isExactTypeOf(Short.TYPE, expectedType);
+          return expectedType.getKind() == TypeKind.SHORT;
         }
       };
 
+  /* ********************************************************************* */
+  /* Validation Engine *************************************************** */
+  /* ********************************************************************* */
+
+  /**
+   * The kinds of the entries of the work stack. An {@code *_END} entry lies beneath the parts of its element, type, or
+   * annotation, and is reached only once they are all validated, which is when the element or type is memoized as
+   * valid. Until then, it is on the path to any invalid part found. An {@code ELEMENT_ANNOTATION} is an annotation of
+   * an element, whose values are validated only if the validator is scoped to them.
+   */
+  private enum Task {
+    ELEMENT,
+    TYPE,
+    ANNOTATION,
+    ELEMENT_ANNOTATION,
+    ANNOTATION_VALUE,
+    ELEMENT_END,
+    TYPE_END,
+    ANNOTATION_END
+  }
+
+  private static final int INITIAL_STACK_CAPACITY = 64;
+  /* The capacity above which the work stack is not kept for the next validations */
+  private static final int MAX_RETAINED_STACK_CAPACITY = 4096;
+
+  /*
+   * The work stack, as parallel arrays; reused by all the validations of this instance. The expected type is that of
+   * an annotation value, and the depth is that of an element.
+   */
+  private Task[] stackTasks = new Task[INITIAL_STACK_CAPACITY];
+  private Object[] stackNodes = new Object[INITIAL_STACK_CAPACITY];
+  private TypeMirror[] stackExpectedTypes = new TypeMirror[INITIAL_STACK_CAPACITY];
+  private Depth[] stackDepths = new Depth[INITIAL_STACK_CAPACITY];
+  private int stackSize;
+  /* The ErrorType that has failed the running validation, if any */
+  private ErrorType failure;
+  /* Whether the path to the failure is to be kept; see explain() */
+  private boolean tracking;
+  /* The failure, and the path to it if tracking, of the last failed validation */
+  private ErrorType lastFailure;
+  private List<Object> lastFailurePath;
+
+  private boolean isValid(Task task, Object node, Depth depth) {
+    int bottom = stackSize;
+    push(task, node, null, depth);
+    return run(bottom);
+  }
+
+  private boolean areValid(Task task, Iterable<?> nodes) {
+    int bottom = stackSize;
+    if (nodes instanceof List)
+      pushAll(task, (List<?>) nodes, null, Depth.FULL);
+    else
+      for (Object node : nodes)
+        push(task, node, null, Depth.FULL);
+    reverseFrom(bottom);
+    return run(bottom);
+  }
+
+  /**
+   * Validates the entries of the stack above {@code bottom}, until it is exhausted or an invalid part is found. If
+   * the validation is abruptly ended by an exception, the stack is unwound to {@code bottom} without memoizing
+   * anything, so that the next validation starts afresh.
+   */
+  private boolean run(int bottom) {
+    try {
+      return drain(bottom);
+    } finally {
+      if (stackSize > bottom) {
+        Arrays.fill(stackNodes, bottom, stackSize, null);
+        Arrays.fill(stackExpectedTypes, bottom, stackSize, null);
+        stackSize = bottom;
+        failure = null;
+      }
+      if (stackSize == 0 && stackTasks.length > MAX_RETAINED_STACK_CAPACITY)
+        trimStack();
+    }
+  }
+
+  /**
+   * Shrinks the (empty) work stack back to its initial capacity, so that it does not keep the size of the deepest
+   * validation ever run.
+   */
+  private void trimStack() {
+    if (stackTasks.length == INITIAL_STACK_CAPACITY)
+      return;
+
+    stackTasks = new Task[INITIAL_STACK_CAPACITY];
+    stackNodes = new Object[INITIAL_STACK_CAPACITY];
+    stackExpectedTypes = new TypeMirror[INITIAL_STACK_CAPACITY];
+    stackDepths = new Depth[INITIAL_STACK_CAPACITY];
+  }
+
+  private boolean drain(int bottom) {
+    while (stackSize > bottom) {
+      int top = --stackSize;
+      Task task = stackTasks[top];
+      Object node = stackNodes[top];
+      TypeMirror expectedType = stackExpectedTypes[top];
+      Depth depth = stackDepths[top];
+      stackNodes[top] = null;
+      stackExpectedTypes[top] = null;
+
+      boolean isValid;
+      switch (task) {
+        case ELEMENT:
+          isValid = expandElement((Element) node, depth);
+          break;
+        case TYPE:
+          isValid = expandType((TypeMirror) node);
+          break;
+        case ANNOTATION:
+          expandAnnotation((AnnotationMirror) node, true);
+          isValid = true;
+          break;
+        case ELEMENT_ANNOTATION:
+          expandAnnotation((AnnotationMirror) node, isValueValidated((AnnotationMirror) node));
+          isValid = true;
+          break;
+        case ANNOTATION_VALUE:
+          isValid = expandAnnotationValue((AnnotationValue) node, expectedType);
+          break;
+        case ELEMENT_END:
+          if (elementVerdictsByDepth != null)
+            elementVerdictsOf((Element) node, depth).put((Element) node, Boolean.TRUE);
+          isValid = true;
+          break;
+        case TYPE_END:
+          if (typeVerdicts != null && isMemoizable((TypeMirror) node))
+            typeVerdicts.put((TypeMirror) node, Boolean.TRUE);
+          isValid = true;
+          break;
+        default:
+          isValid = true;
+      }
+
+      if (!isValid) {
+        fail(bottom, node);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Unwinds the stack down to {@code bottom} after {@code failingNode} has failed. All the elements and types whose
+   * verdicts are pending contain the failing part; hence, they are memoized as invalid by the same {@link ErrorType},
+   * if any.
+   */
+  private void fail(int bottom, Object failingNode) {
+    if (tracking) {
+      List<Object> path = new ArrayList<>();
+      for (int i = bottom; i < stackSize; i++) {
+        Task task = stackTasks[i];
+        if (task == Task.ELEMENT_END || task == Task.TYPE_END || task == Task.ANNOTATION_END)
+          path.add(stackNodes[i]);
+      }
+      // An element or a type failed by its memoized verdict is on the path, but not the unresolved type itself.
+      if (failingNode instanceof Element || (failingNode instanceof TypeMirror && failingNode != failure))
+        path.add(failingNode);
+      lastFailurePath = path;
+    }
+
+    Object verdict = failure != null ? failure : Boolean.FALSE;
+    for (int i = stackSize - 1; i >= bottom; i--) {
+      if (stackTasks[i] == Task.ELEMENT_END && elementVerdictsByDepth != null)
+        elementVerdictsOf((Element) stackNodes[i], stackDepths[i]).put((Element) stackNodes[i], verdict);
+      else if (stackTasks[i] == Task.TYPE_END && typeVerdicts != null && isMemoizable((TypeMirror) stackNodes[i]))
+        typeVerdicts.put((TypeMirror) stackNodes[i], verdict);
+      stackNodes[i] = null;
+      stackExpectedTypes[i] = null;
+    }
+    stackSize = bottom;
+
+    lastFailure = failure;
+    failure = null;
+  }
+
+  /**
+   * Fails with the memoized {@code verdict} unless it is valid.
+   */
+  private boolean replay(Object verdict) {
+    if (verdict == Boolean.TRUE)
+      return true;
+    if (verdict instanceof ErrorType)
+      failure = (ErrorType) verdict;
+    return false;
+  }
+
+  private void push(Task task, Object node, TypeMirror expectedType, Depth depth) {
+    if (stackSize == stackTasks.length) {
+      int capacity = stackSize * 2;
+      stackTasks = Arrays.copyOf(stackTasks, capacity);
+      stackNodes = Arrays.copyOf(stackNodes, capacity);
+      stackExpectedTypes = Arrays.copyOf(stackExpectedTypes, capacity);
+      stackDepths = Arrays.copyOf(stackDepths, capacity);
+    }
+    stackTasks[stackSize] = task;
+    stackNodes[stackSize] = node;
+    stackExpectedTypes[stackSize] = expectedType;
+    stackDepths[stackSize] = depth;
+    stackSize++;
+  }
+
+  /**
+   * Pushes all of {@code nodes}; by index if the list is random-access, so as not to allocate an iterator per list.
+   * Those that are not, such as the lists of javac, are iterated.
+   */
+  private void pushAll(Task task, List<?> nodes, TypeMirror expectedType, Depth depth) {
+    if (nodes instanceof RandomAccess) {
+      for (int i = 0, size = nodes.size(); i < size; i++)
+        push(task, nodes.get(i), expectedType, depth);
+    } else {
+      for (Iterator<?> iterator = nodes.iterator(); iterator.hasNext(); )
+        push(task, iterator.next(), expectedType, depth);
+    }
+  }
+
+  /**
+   * Reverses the entries pushed since {@code mark}. The parts of an element or a type are pushed in the order of
+   * their validation, and then reversed, so that they are popped in that order.
+   */
+  private void reverseFrom(int mark) {
+    for (int i = mark, j = stackSize - 1; i < j; i++, j--) {
+      swap(stackTasks, i, j);
+      swap(stackNodes, i, j);
+      swap(stackExpectedTypes, i, j);
+      swap(stackDepths, i, j);
+    }
+  }
+
+  private static <T> void swap(T[] array, int i, int j) {
+    T t = array[i];
+    array[i] = array[j];
+    array[j] = t;
+  }
+
 }
@@ -0,0 +1,111 @@
+package baseprocessors;
+
+import javax.annotation.processing.Messager;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A {@link ProcessingMetricsSink} writing the recorded phases as complete events of the Chrome trace-event format
+ * to {@code trace.json} in the directory given by the {@value ProcessingMetricsSink#TRACE_OPTION} processor option, to
+ * be loaded in a trace viewer (e.g. {@code chrome://tracing} or Perfetto).
+ *
+ * <p>All the processors of a compilation tracing into the same directory share the trace file, each on a track of its
+ * own. The file is rewritten whenever one of them finishes processing, and a new trace is started with the next
+ * compilation.
+ */
+final class TraceEventSink implements ProcessingMetricsSink {
+
+  static final String TRACE_FILE_NAME = "trace.json";
+
+  /* Guarded by itself; an entry is removed once all the tracks of its trace have been flushed */
+  private static final Map<Path, SharedTrace> TRACES_BY_PATH = new HashMap<>();
+
+  /**
+   * The events of a compilation traced into a file.
+   */
+  private static final class SharedTrace {
+    /* The element utilities identify the compilation */
+    private WeakReference<Elements> compilation = new WeakReference<>(null);
+    private final List<String> events = new ArrayList<>();
+    private int nTracks;
+    private int nFlushedTracks;
+  }
+
+  private final Path traceFile;
+  private final Messager messager;
+  private final SharedTrace trace;
+  private final int track;
+
+  TraceEventSink(Path directory, String processorName, Elements eltUtils, Messager messager) {
+    this.traceFile = directory.resolve(TRACE_FILE_NAME).toAbsolutePath().normalize();
+    this.messager = messager;
+    synchronized (TRACES_BY_PATH) {
+      this.trace = TRACES_BY_PATH.computeIfAbsent(traceFile, path -> new SharedTrace());
+    }
+    synchronized (trace) {
+      if (trace.compilation.get() != eltUtils) {
+        trace.compilation = new WeakReference<>(eltUtils);
+        trace.events.clear();
+        trace.nTracks = 0;
+        trace.nFlushedTracks = 0;
+      }
+      this.track = ++trace.nTracks;
+      trace.events.add(String.format(Locale.ROOT,
+          "{\"name\": \"thread_name\", \"ph\": \"M\", \"pid\": 1, \"tid\": %d, \"args\": {\"name\": \"%s\"}}",
+          track, MetricsReportSink.escapeJson(processorName)));
+    }
+  }
+
+  @Override
+  public void record(Phase phase, String name, int round, long startNanos, long durationNanos) {
+    // Locale.ROOT, since a decimal comma would make the trace invalid JSON
+    String event = String.format(Locale.ROOT,
+        "{\"name\": \"%s\", \"cat\": \"%s\", \"ph\": \"X\", \"ts\": %.3f, \"dur\": %.3f, \"pid\": 1, \"tid\": %d, "
+            + "\"args\": {\"round\": %d}}",
+        MetricsReportSink.escapeJson(phase == Phase.ROUND ? "Round " + name : name.isEmpty() ? phase.name() : name),
+        phase, startNanos / 1000.0, durationNanos / 1000.0, track, round);
+    synchronized (trace) {
+      trace.events.add(event);
+    }
+  }
+
+  @Override
+  public void processingOver() {
+    boolean isLastTrack;
+    synchronized (trace) {
+      try {
+        Files.createDirectories(traceFile.getParent());
+        try (Writer writer = Files.newBufferedWriter(traceFile, StandardCharsets.UTF_8)) {
+          writer.write("{\"traceEvents\": [\n");
+          for (int i = 0; i < trace.events.size(); i++) {
+            writer.write(trace.events.get(i));
+            writer.write(i + 1 < trace.events.size() ? ",\n" : "\n");
+          }
+          writer.write("], \"displayTimeUnit\": \"ms\"}\n");
+        }
+      } catch (IOException e) {
+        messager.printMessage(Diagnostic.Kind.WARNING, "Could not write the trace " + traceFile + ": " + e.getMessage());
+      }
+      isLastTrack = ++trace.nFlushedTracks == trace.nTracks;
+    }
+
+    // Not to keep the events of the compilation reachable, e.g. in a long-lived compiler daemon
+    if (isLastTrack) {
+      synchronized (TRACES_BY_PATH) {
+        TRACES_BY_PATH.remove(traceFile, trace);
+      }
+    }
+  }
+
+}
@@ -1,12 +1,17 @@
 package baseprocessors;
 
+import com.google.common.collect.ImmutableSet;
 import com.squareup.javapoet.AnnotationSpec;
 import com.squareup.javapoet.JavaFile;
 import com.squareup.javapoet.TypeSpec;
 
 import javax.annotation.processing.Generated;
+import javax.lang.model.element.Element;
 import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 
 /**
@@ -23,6 +28,14 @@ import java.time.LocalDateTime;
  */
 public abstract class UtilizedBaseAnnotationProcessor extends BaseAnnotationProcessor {
 
+  /**
+   * {@inheritDoc} Besides the class of the processor, it includes JavaPoet, by which the sources are generated.
+   */
+  @Override
+  protected Iterable<Class<?>> cacheVersionClasses() {
+    return ImmutableSet.of(getClass(), JavaFile.class);
+  }
+
   /* ********************************************************************* */
   /* JavaPoet (processor dependant) utilities **************************** */
   /* ********************************************************************* */
@@ -46,12 +59,14 @@ public abstract class UtilizedBaseAnnotationProcessor extends BaseAnnotationProc
    * Creates a source java file in {@code packageName} directory and writes the content
    * of the given {@link TypeSpec} in it.
    *
-   * @param packageName the package name of new java file.
-   * @param typeSpec    the content of the new file given as {@linkplain TypeSpec}
+   * @param packageName         the package name of new java file.
+   * @param typeSpec            the content of the new file given as {@linkplain TypeSpec}
+   * @param originatingElements the elements the file is generated from, in addition to the
+   *                            {@linkplain TypeSpec#originatingElements originating elements} of {@code typeSpec}
    */
-  public void javaFileWriteTo(String packageName, TypeSpec typeSpec) {
+  public void javaFileWriteTo(String packageName, TypeSpec typeSpec, Element... originatingElements) {
     JavaFile javaFile = JavaFile.builder(packageName, typeSpec).build();
-    javaFileWriteTo(javaFile);
+    javaFileWriteTo(javaFile, originatingElements);
   }
 
   /**
@@ -59,15 +74,50 @@ public abstract class UtilizedBaseAnnotationProcessor extends BaseAnnotationProc
    * it using the processors' {@link javax.annotation.processing.Filer}.
    * Reports if IO problem occurs.
    *
-   * @param javaFile the java file to be created.
+   * <p>The file is created with the {@linkplain TypeSpec#originatingElements originating elements}
+   * of the {@code javaFile}'s type together with {@code originatingElements}; incremental builds,
+   * and the checks of {@link IncrementalAnnotationProcessor}, rely on them.
+   *
+   * @param javaFile            the java file to be created.
+   * @param originatingElements the elements the file is generated from
    */
-  public void javaFileWriteTo(JavaFile javaFile) {
+  public void javaFileWriteTo(JavaFile javaFile, Element... originatingElements) {
+    String fileName = javaFile.packageName.isEmpty()
+        ? javaFile.typeSpec.name
+        : javaFile.packageName + "." + javaFile.typeSpec.name;
+    Element[] allOriginatingElements = ImmutableSet.<Element>builder()
+        .addAll(javaFile.typeSpec.originatingElements)
+        .add(originatingElements)
+        .build()
+        .toArray(new Element[0]);
+
+    long writeStart = startTiming();
+    ProcessingEvents.SourceFileWritten writeEvent = ProcessingEvents.beginSourceFile();
     try {
-      javaFile.writeTo(filer);
+      writeTo(javaFile, fileName, allOriginatingElements);
     } catch (IOException e) {
       messager.printMessage(Diagnostic.Kind.ERROR, "(IOExceptione) Annotation processor " +
           this.getClass().toString() + "'s javaFileWriteTo() failed unexpectedly:: " + e.getMessage());
-      e.printStackTrace();
+    }
+    recordTiming(ProcessingMetricsSink.Phase.FILE_WRITE, fileName, writeStart);
+    ProcessingEvents.endSourceFile(writeEvent, getClass().getName(), fileName,
+        () -> javaFile.toString().getBytes(StandardCharsets.UTF_8).length);
+  }
+
+  /**
+   * The same as {@link JavaFile#writeTo(javax.annotation.processing.Filer)}, with the given originating elements: the
+   * file is streamed into, and deleted if the writing fails.
+   */
+  private void writeTo(JavaFile javaFile, String fileName, Element[] originatingElements) throws IOException {
+    JavaFileObject sourceFile = filer.createSourceFile(fileName, originatingElements);
+    try (Writer writer = sourceFile.openWriter()) {
+      javaFile.writeTo(writer);
+    } catch (Exception e) {
+      try {
+        sourceFile.delete();
+      } catch (Exception ignored) {
+      }
+      throw e;
     }
   }
 
@@ -0,0 +1,138 @@
+package baseprocessors;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.type.ErrorType;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The outcome of a superficial validation, as explained by {@link SuperficialValidation#explainElement(Element,
+ * SuperficialValidation.Depth)}. An invalid result carries the first unresolved {@link ErrorType} found, if the
+ * validated element is invalid because of one, and the path from the validated element to it; e.g.
+ * {@code Foo.bar(param x) -> List<Missing>} for the missing type {@code Missing} of
+ *
+ * <pre><code>
+ *   class Foo {
+ *     void bar(List&lt;Missing&gt; x) {}
+ *   }
+ * </code></pre>
+ */
+public final class ValidationResult {
+
+  static final ValidationResult VALID = new ValidationResult(true, null, "");
+
+  private final boolean valid;
+  private final ErrorType firstErrorType;
+  private final String path;
+
+  private ValidationResult(boolean valid, ErrorType firstErrorType, String path) {
+    this.valid = valid;
+    this.firstErrorType = firstErrorType;
+    this.path = path;
+  }
+
+  /**
+   * Returns an invalid result failed by {@code firstErrorType} (null if failed otherwise) at the end of {@code path},
+   * the elements, types, and annotations enclosing it, outermost first.
+   */
+  static ValidationResult invalid(ErrorType firstErrorType, List<Object> path) {
+    return new ValidationResult(false, firstErrorType, describe(path));
+  }
+
+  public boolean isValid() {
+    return valid;
+  }
+
+  /**
+   * Returns the first {@link ErrorType} that made the validated element invalid. Empty if the element is valid,
+   * or if it is invalid for another reason, such as an annotation value not matching its expected type.
+   *
+   * @return the first unresolved type, if any.
+   */
+  public Optional<ErrorType> getFirstErrorType() {
+    return Optional.ofNullable(firstErrorType);
+  }
+
+  /**
+   * Returns the simple name of the {@linkplain #getFirstErrorType() first unresolved type}, by which it can be
+   * supplied later, e.g. by a generated source.
+   *
+   * @return the simple name of the first unresolved type, if any.
+   */
+  public Optional<String> getMissingTypeName() {
+    return getFirstErrorType()
+        .map(errorType -> errorType.asElement().getSimpleName().toString())
+        .filter(name -> !name.isEmpty());
+  }
+
+  /**
+   * Returns the path from the validated element to the part that made it invalid, such as
+   * {@code Foo.bar(param x) -> List<Missing>}; empty if valid. The unresolved type itself ends the path only if it is
+   * nested in a type, as {@code Missing} in the example.
+   *
+   * @return the path to the first invalid part.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Returns a description of the invalidity, such as {@code Missing in Foo.bar(param x) -> List<Missing>}; empty if
+   * valid.
+   *
+   * @return a description of the invalidity.
+   */
+  public String describe() {
+    if (valid)
+      return "";
+
+    String missing = firstErrorType != null ? firstErrorType.toString() : "an invalid part";
+    return path.isEmpty() ? missing : missing + " in " + path;
+  }
+
+  @Override
+  public String toString() {
+    return valid ? "valid" : "invalid: " + describe();
+  }
+
+  /**
+   * Chains the consecutive elements as qualified by their enclosing elements, with parameters inside the parentheses
+   * of their methods, and the rest by arrows.
+   */
+  private static String describe(List<Object> path) {
+    StringBuilder description = new StringBuilder();
+    for (int i = 0; i < path.size(); i++) {
+      Object segment = path.get(i);
+      Object previous = i > 0 ? path.get(i - 1) : null;
+      if (segment instanceof Element) {
+        Element element = (Element) segment;
+        if (element.getKind() == ElementKind.PARAMETER && previous instanceof ExecutableElement) {
+          description.append("(param ").append(element.getSimpleName()).append(')');
+          continue;
+        }
+
+        if (previous != null)
+          description.append(previous instanceof Element ? "." : " -> ");
+        description.append(element.getKind() == ElementKind.PACKAGE || element.getKind() == ElementKind.MODULE
+            ? element.toString()
+            : element.getSimpleName());
+        boolean isFollowedByParameter = i + 1 < path.size() && path.get(i + 1) instanceof Element
+            && ((Element) path.get(i + 1)).getKind() == ElementKind.PARAMETER;
+        if (element instanceof ExecutableElement && !isFollowedByParameter)
+          description.append("()");
+      } else {
+        if (previous != null)
+          description.append(" -> ");
+        if (segment instanceof AnnotationMirror)
+          description.append('@').append(((AnnotationMirror) segment).getAnnotationType().asElement().getSimpleName());
+        else
+          description.append(segment);
+      }
+    }
+    return description.toString();
+  }
+
+}
@@ -5,7 +5,8 @@
  *
  * <h3>Classes:</h3>
  * <ul>
- *    <li><strong>SuperficialValidation:</strong> very simple scanner to ensure an Element is valid and free from distortion from upstream compilation errors</li>
+ *    <li><strong>SuperficialValidation/ValidationResult:</strong> very simple scanner to ensure an Element is valid and free from distortion from upstream compilation errors,
+ *      and the explanation of its outcome</li>
  *    <li><strong>BaseAnnotationProcessor/ProcessingStep:</strong> simple types that
  *        <ul>
  *          <li>implement a validating annotation processor</li>
@@ -13,6 +14,10 @@
  *          <li>break processor actions into multiple processing steps (which each may handle different annotations)</li>
  *        </ul>
  *    </li>
+ *    <li><strong>IncrementalAnnotationProcessor/IncrementalDescriptorProcessor:</strong> declaration of the Gradle
+ *      incremental annotation processing category of a processor, and the generation of the Gradle descriptor listing them
+ *    </li>
+ *    <li><strong>ProcessingMetricsSink:</strong> the SPI receiving the timings of the phases of a BaseAnnotationProcessor</li>
  *    <li><strong>UtilizedBaseAnnotationProcessor:</strong>
  *      Adds some frequently used processor-environment dependent utility methods to the BaseAnnotationProcessor.
  *    </li>
@@ -9,6 +9,8 @@ module processorutilities {
   exports utils;
   requires static com.google.auto.service;
   requires static java.compiler;
+  requires static jdk.compiler;
+  requires static jdk.jfr;
   requires static com.google.common;
   requires static lombok;
 
@@ -0,0 +1,305 @@
+package utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import lombok.Value;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.SimpleAnnotationValueVisitor9;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, thread-safe snapshots of {@link Element}s, their annotations, and their types.
+ *
+ * <p>The objects of {@code javax.lang.model} are not thread-safe, and may only be accessed by the thread
+ * running the annotation processor. A snapshot copies everything it holds out of the model at the time of its
+ * creation; therefore, it can be handed over to, and processed or rendered by, other threads while the processor
+ * thread keeps the ownership of the model. Snapshots are value objects: two snapshots of the same (unchanged)
+ * element are equal.
+ *
+ * <p>The snapshots must be taken on the processor thread.
+ */
+public final class ElementSnapshots {
+
+  private ElementSnapshots() {
+  }
+
+  /* ********************************************************************* */
+  /* Snapshot Factories ************************************************** */
+  /* ********************************************************************* */
+
+  /**
+   * Returns an {@link ElementSnapshot} of the given element, including snapshots of its annotations, its type,
+   * its type parameters and their bounds, its parameters and thrown types (if it is executable), its constant value
+   * (if it is a constant field), its default value (if it is an annotation element), and recursively its enclosed
+   * elements.
+   *
+   * @param element the element to be snapshot
+   * @return an immutable snapshot of {@code element}
+   */
+  public static ElementSnapshot snapshot(Element element) {
+    boolean isExecutable = element.getKind() == ElementKind.METHOD || element.getKind() == ElementKind.CONSTRUCTOR;
+    ExecutableElement executable = isExecutable ? MoreElements.asExecutable(element) : null;
+
+    ImmutableList<ElementSnapshot> typeParameters;
+    if (isExecutable)
+      typeParameters = snapshotAll(executable.getTypeParameters());
+    else if (MoreElements.isTypeElement(element))
+      typeParameters = snapshotAll(MoreElements.asTypeElement(element).getTypeParameters());
+    else
+      typeParameters = ImmutableList.of();
+    ImmutableList<TypeSnapshot> bounds = element.getKind() == ElementKind.TYPE_PARAMETER
+        ? snapshotTypes(((TypeParameterElement) element).getBounds())
+        : ImmutableList.of();
+    ImmutableList<ElementSnapshot> enclosedElements =
+        element.getKind() == ElementKind.PACKAGE // a package encloses its types, which are snapshot on their own
+            ? ImmutableList.of()
+            : snapshotAll(element.getEnclosedElements());
+    AnnotationValue defaultValue = isExecutable ? executable.getDefaultValue() : null;
+
+    return new ElementSnapshot(
+        element.getKind(),
+        element.getSimpleName().toString(),
+        qualifiedNameOf(element),
+        ImmutableSet.copyOf(element.getModifiers()),
+        snapshot(element.asType()),
+        snapshotAnnotations(element.getAnnotationMirrors()),
+        typeParameters,
+        bounds,
+        isExecutable ? snapshotAll(executable.getParameters()) : ImmutableList.of(),
+        isExecutable ? snapshotTypes(executable.getThrownTypes()) : ImmutableList.of(),
+        element.getKind() == ElementKind.FIELD ? ((VariableElement) element).getConstantValue() : null,
+        defaultValue != null ? snapshotValue(defaultValue) : null,
+        enclosedElements
+    );
+  }
+
+  private static String qualifiedNameOf(Element element) {
+    switch (element.getKind()) {
+      case PACKAGE:
+        return MoreElements.asPackage(element).getQualifiedName().toString();
+      case MODULE:
+        return ((ModuleElement) element).getQualifiedName().toString();
+      default:
+        return MoreElements.isTypeElement(element) ? MoreElements.asTypeElement(element).getQualifiedName().toString() : "";
+    }
+  }
+
+  private static ImmutableList<ElementSnapshot> snapshotAll(List<? extends Element> elements) {
+    ImmutableList.Builder<ElementSnapshot> snapshots = ImmutableList.builderWithExpectedSize(elements.size());
+    for (Element element : elements)
+      snapshots.add(snapshot(element));
+    return snapshots.build();
+  }
+
+  /**
+   * Returns an {@link AnnotationSnapshot} of the given annotation mirror. The values of all the annotation elements,
+   * including the defaulted ones, are snapshot as given by {@link AnnotationMirrors#getAnnotationValuesWithDefaults}.
+   *
+   * @param annotationMirror the annotation mirror to be snapshot
+   * @return an immutable snapshot of {@code annotationMirror}
+   */
+  public static AnnotationSnapshot snapshot(AnnotationMirror annotationMirror) {
+    ImmutableMap<ExecutableElement, AnnotationValue> valuesWithDefaults =
+        AnnotationMirrors.getAnnotationValuesWithDefaults(annotationMirror);
+
+    ImmutableMap.Builder<String, Object> values = ImmutableMap.builderWithExpectedSize(valuesWithDefaults.size());
+    for (Map.Entry<ExecutableElement, AnnotationValue> value : valuesWithDefaults.entrySet())
+      values.put(value.getKey().getSimpleName().toString(), snapshotValue(value.getValue()));
+
+    return new AnnotationSnapshot(snapshot(annotationMirror.getAnnotationType()), values.build());
+  }
+
+  private static ImmutableList<AnnotationSnapshot> snapshotAnnotations(List<? extends AnnotationMirror> annotationMirrors) {
+    ImmutableList.Builder<AnnotationSnapshot> snapshots = ImmutableList.builderWithExpectedSize(annotationMirrors.size());
+    for (AnnotationMirror annotationMirror : annotationMirrors)
+      snapshots.add(snapshot(annotationMirror));
+    return snapshots.build();
+  }
+
+  /**
+   * Returns a {@link TypeSnapshot} of the given type.
+   *
+   * @param type the type to be snapshot
+   * @return an immutable snapshot of {@code type}
+   */
+  public static TypeSnapshot snapshot(TypeMirror type) {
+    if (type.getKind() != TypeKind.DECLARED)
+      return new TypeSnapshot(type.getKind(), type.toString(), "", ImmutableList.of());
+
+    DeclaredType declaredType = MoreTypes.asDeclared(type);
+    List<? extends TypeMirror> typeArguments = declaredType.getTypeArguments();
+    ImmutableList.Builder<TypeSnapshot> typeArgumentSnapshots = ImmutableList.builderWithExpectedSize(typeArguments.size());
+    for (TypeMirror typeArgument : typeArguments)
+      typeArgumentSnapshots.add(snapshot(typeArgument));
+
+    return new TypeSnapshot(
+        type.getKind(),
+        type.toString(),
+        MoreElements.asTypeElement(declaredType.asElement()).getQualifiedName().toString(),
+        typeArgumentSnapshots.build()
+    );
+  }
+
+  private static ImmutableList<TypeSnapshot> snapshotTypes(List<? extends TypeMirror> types) {
+    ImmutableList.Builder<TypeSnapshot> snapshots = ImmutableList.builderWithExpectedSize(types.size());
+    for (TypeMirror type : types)
+      snapshots.add(snapshot(type));
+    return snapshots.build();
+  }
+
+  private static Object snapshotValue(AnnotationValue annotationValue) {
+    return annotationValue.accept(ValueSnapshotVisitor.INSTANCE, null);
+  }
+
+  /**
+   * Maps annotation values to their immutable counterparts: primitives and strings to themselves, class literals to
+   * {@link TypeSnapshot}s, enum constants to {@link EnumConstantSnapshot}s, annotations to {@link AnnotationSnapshot}s,
+   * and arrays to {@link ImmutableList}s of the former.
+   */
+  private static final class ValueSnapshotVisitor extends SimpleAnnotationValueVisitor9<Object, Void> {
+    private static final ValueSnapshotVisitor INSTANCE = new ValueSnapshotVisitor();
+
+    @Override
+    protected Object defaultAction(Object o, Void ignore) {
+      // Boxed primitives and strings are immutable.
+      return o;
+    }
+
+    @Override
+    public Object visitType(TypeMirror t, Void ignore) {
+      return snapshot(t);
+    }
+
+    @Override
+    public Object visitEnumConstant(VariableElement c, Void ignore) {
+      return new EnumConstantSnapshot(snapshot(c.asType()), c.getSimpleName().toString());
+    }
+
+    @Override
+    public Object visitAnnotation(AnnotationMirror a, Void ignore) {
+      return snapshot(a);
+    }
+
+    @Override
+    public Object visitArray(List<? extends AnnotationValue> values, Void ignore) {
+      ImmutableList.Builder<Object> snapshots = ImmutableList.builderWithExpectedSize(values.size());
+      for (AnnotationValue value : values)
+        snapshots.add(value.accept(this, ignore));
+      return snapshots.build();
+    }
+  }
+
+  /* ********************************************************************* */
+  /* Snapshots *********************************************************** */
+  /* ********************************************************************* */
+
+  /**
+   * An immutable snapshot of an {@link Element}.
+   */
+  @Value
+  public static class ElementSnapshot {
+    ElementKind kind;
+    String simpleName;
+    /**
+     * The fully-qualified name of the element, if it is a type or a package; empty otherwise.
+     */
+    String qualifiedName;
+    ImmutableSet<Modifier> modifiers;
+    TypeSnapshot type;
+    ImmutableList<AnnotationSnapshot> annotations;
+    /**
+     * The type parameters of the element, if it is a type, a method, or a constructor; empty otherwise.
+     */
+    ImmutableList<ElementSnapshot> typeParameters;
+    /**
+     * The bounds of the element, if it is a type parameter; empty otherwise. (The signature of a type variable does
+     * not include them.)
+     */
+    ImmutableList<TypeSnapshot> bounds;
+    /**
+     * The parameters of the element, if it is a method or a constructor; empty otherwise.
+     */
+    ImmutableList<ElementSnapshot> parameters;
+    /**
+     * The types of the {@code throws} clause of the element, if it is a method or a constructor; empty otherwise.
+     */
+    ImmutableList<TypeSnapshot> thrownTypes;
+    /**
+     * The value of the element, if it is a constant field; {@code null} otherwise.
+     */
+    @Nullable Object constantValue;
+    /**
+     * The default value of the element, if it is an annotation element with one; {@code null} otherwise. See
+     * {@link ValueSnapshotVisitor} for the representation of values.
+     */
+    @Nullable Object defaultValue;
+    /**
+     * The elements enclosed by the element as given by {@link Element#getEnclosedElements()}, except that the
+     * types of a package are not included.
+     */
+    ImmutableList<ElementSnapshot> enclosedElements;
+
+    /**
+     * Returns the snapshot of the annotation of the given fully-qualified annotation type name on the element, if any.
+     *
+     * @param annotationName the fully-qualified name of the annotation type
+     * @return the snapshot of the annotation of type {@code annotationName} if present; {@code null} otherwise.
+     */
+    public AnnotationSnapshot getAnnotation(String annotationName) {
+      for (AnnotationSnapshot annotation : annotations)
+        if (annotation.getAnnotationType().getQualifiedName().equals(annotationName))
+          return annotation;
+      return null;
+    }
+  }
+
+  /**
+   * An immutable snapshot of an {@link AnnotationMirror}, including its defaulted values.
+   */
+  @Value
+  public static class AnnotationSnapshot {
+    TypeSnapshot annotationType;
+    /**
+     * The values of the annotation keyed by the names of the annotation elements, in the order of their declaration.
+     * See {@link ValueSnapshotVisitor} for the representation of values.
+     */
+    ImmutableMap<String, Object> values;
+  }
+
+  /**
+   * An immutable snapshot of a {@link TypeMirror}.
+   */
+  @Value
+  public static class TypeSnapshot {
+    TypeKind kind;
+    /**
+     * The signature of the type as given by the implementation's {@link TypeMirror#toString()}.
+     */
+    String signature;
+    /**
+     * The fully-qualified name of the raw type, if it is a declared type; empty otherwise.
+     */
+    String qualifiedName;
+    /**
+     * The snapshots of the type arguments, if it is a declared type; empty otherwise.
+     */
+    ImmutableList<TypeSnapshot> typeArguments;
+  }
+
+  /**
+   * An immutable snapshot of an enum constant used as an annotation value.
+   */
+  @Value
+  public static class EnumConstantSnapshot {
+    TypeSnapshot enumType;
+    String name;
+  }
+
+}
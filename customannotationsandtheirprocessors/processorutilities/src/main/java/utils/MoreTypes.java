@@ -13,10 +13,12 @@ import javax.lang.model.element.TypeParameterElement;
 import javax.lang.model.type.*;
 import javax.lang.model.util.SimpleTypeVisitor9;
 import javax.lang.model.util.Types;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
  * Utilities related to {@link TypeMirror} instances.
@@ -55,12 +57,12 @@ public final class MoreTypes {
 
     @Override
     protected boolean doEquivalent(@Nullable TypeMirror a, @Nullable TypeMirror b) {
-      return MoreTypes.areEqual(a, b, ImmutableSet.of());
+      return MoreTypes.areEqual(a, b, null);
     }
 
     @Override
     protected int doHash(@Nullable TypeMirror t) {
-      return MoreTypes.hash(t, ImmutableSet.of());
+      return MoreTypes.hash(t, null);
     }
 
     @Override
@@ -69,9 +71,153 @@ public final class MoreTypes {
     }
   }
 
+  /**
+   * Returns a new {@link HashCachingTypeEquivalence}: the same as {@link #equivalence()}, except that it computes the
+   * structural hash of each mirror at most once. It is opt-in since the cache pins the mirrors it has seen; create one
+   * per round, or {@linkplain HashCachingTypeEquivalence#clear() clear} it when the round is over.
+   *
+   * @return a new, empty, {@link HashCachingTypeEquivalence}.
+   */
+  public static HashCachingTypeEquivalence hashCachingEquivalence() {
+    return new HashCachingTypeEquivalence();
+  }
+
+  /**
+   * Returns a {@link HashedType} of {@code type} under {@link #equivalence()}.
+   *
+   * @param type the type to be wrapped.
+   * @return a {@link HashedType} of {@code type}.
+   */
+  public static HashedType hashed(@Nullable TypeMirror type) {
+    return new HashedType(type, hash(type, null));
+  }
+
+  /**
+   * An {@link Equivalence} equal to {@link #equivalence()} that caches the structural hashes of the mirrors, by their
+   * identity. The mirrors of a round are immutable, and javac hands the same mirror out repeatedly; hence, map- and
+   * set-heavy code pays the structural hash once per mirror. The cache is round-scoped: mirrors of earlier rounds must
+   * not be compared with those of later ones anyway, and keeping them would only pin the compiler's data.
+   * Not thread-safe.
+   */
+  public static final class HashCachingTypeEquivalence extends Equivalence<TypeMirror> {
+    private final Map<TypeMirror, Integer> hashes = new IdentityHashMap<>();
+
+    private HashCachingTypeEquivalence() {
+    }
+
+    @Override
+    protected boolean doEquivalent(TypeMirror a, TypeMirror b) {
+      Integer aHash = hashes.get(a);
+      Integer bHash = hashes.get(b);
+      if (aHash != null && bHash != null && !aHash.equals(bHash))
+        return false;
+
+      return MoreTypes.areEqual(a, b, null);
+    }
+
+    @Override
+    protected int doHash(TypeMirror t) {
+      Integer hash = hashes.get(t);
+      if (hash == null) {
+        hash = MoreTypes.hash(t, null);
+        hashes.put(t, hash);
+      }
+      return hash;
+    }
+
+    /**
+     * Returns a {@link HashedType} of {@code type}, computing its hash through this cache. Use it instead of
+     * {@link #wrap(Object)} whenever the wrapper is rehashed, e.g. as a key of a growing {@link HashMap}.
+     *
+     * @param type the type to be wrapped.
+     * @return a {@link HashedType} of {@code type}.
+     */
+    public HashedType hashed(@Nullable TypeMirror type) {
+      return new HashedType(type, hash(type));
+    }
+
+    /**
+     * Forgets every cached hash; to be called at the end of each round.
+     */
+    public void clear() {
+      hashes.clear();
+    }
+
+    @Override
+    public String toString() {
+      return "MoreTypes.hashCachingEquivalence()";
+    }
+  }
+
+  /**
+   * A variant of {@link Equivalence.Wrapper} for {@link #equivalence()} that stores the structural hash of the wrapped
+   * type; hence, {@link #hashCode()} is free, and {@link #equals(Object)} compares the types only if their hashes are
+   * equal.
+   */
+  public static final class HashedType {
+    private final @Nullable TypeMirror type;
+    private final int hash;
+
+    private HashedType(@Nullable TypeMirror type, int hash) {
+      this.type = type;
+      this.hash = hash;
+    }
+
+    /**
+     * @return the wrapped type.
+     */
+    public @Nullable TypeMirror get() {
+      return type;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+      if (obj == this)
+        return true;
+      if (!(obj instanceof HashedType))
+        return false;
+
+      HashedType that = (HashedType) obj;
+      return hash == that.hash && TypeEquivalence.INSTANCE.equivalent(type, that.type);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public String toString() {
+      return "MoreTypes.hashed(" + type + ")";
+    }
+  }
+
   /* doHash() */
 
-  private static int hashList(List<? extends TypeMirror> mirrors, Set<Element> visited) {
+  /**
+   * The declared types being hashed, innermost first; i.e. a persistent linked path from the type being visited to the
+   * hashed type. Entering a declared type prepends one node to the path of its enclosing visit, and leaves that path
+   * untouched; hence, the path is neither copied nor restored. {@code null} is the empty path.
+   */
+  private static final class VisitedElements {
+    final Element element;
+    final @Nullable VisitedElements next;
+
+    VisitedElements(Element element, @Nullable VisitedElements next) {
+      this.element = element;
+      this.next = next;
+    }
+
+    static boolean contains(@Nullable VisitedElements visited, Element element) {
+      for (VisitedElements node = visited; node != null; node = node.next) {
+        if (node.element.equals(element))
+          return true;
+      }
+      return false;
+    }
+  }
+
+  private static int hashList(List<? extends TypeMirror> mirrors, @Nullable VisitedElements visited) {
     int result = HASH_SEED;
     for (TypeMirror mirror : mirrors) {
       result *= HASH_MULTIPLIER;
@@ -80,7 +226,7 @@ public final class MoreTypes {
     return result;
   }
 
-  private static int hash(@Nullable TypeMirror mirror, Set<Element> visited) {
+  private static int hash(@Nullable TypeMirror mirror, @Nullable VisitedElements visited) {
     return mirror == null ? 0 : mirror.accept(HashVisitor.INSTANCE, visited);
   }
 
@@ -88,7 +234,7 @@ public final class MoreTypes {
   private static final int HASH_MULTIPLIER = 31;
 
 
-  private static final class HashVisitor extends SimpleTypeVisitor9<Integer, Set<Element>> {
+  private static final class HashVisitor extends SimpleTypeVisitor9<Integer, VisitedElements> {
     private static final HashVisitor INSTANCE = new HashVisitor();
 
     int hashKind(@SuppressWarnings("SameParameterValue") int seed, TypeMirror t) {
@@ -96,12 +242,12 @@ public final class MoreTypes {
     }
 
     @Override
-    protected Integer defaultAction(TypeMirror e, Set<Element> visited) {
+    protected Integer defaultAction(TypeMirror e, VisitedElements visited) {
       return hashKind(HASH_SEED, e);
     }
 
     @Override
-    public Integer visitArray(ArrayType t, Set<Element> visited) {
+    public Integer visitArray(ArrayType t, VisitedElements visited) {
       int result = hashKind(HASH_SEED, t);
       result *= HASH_MULTIPLIER;
       result += t.getComponentType().accept(this, visited);
@@ -109,13 +255,12 @@ public final class MoreTypes {
     }
 
     @Override
-    public Integer visitDeclared(DeclaredType t, Set<Element> visited) {
+    public Integer visitDeclared(DeclaredType t, VisitedElements visited) {
       Element element = t.asElement();
-      if (visited.contains(element))
+      if (VisitedElements.contains(visited, element))
         return 0;
 
-      Set<Element> newVisited = new HashSet<>(visited);
-      newVisited.add(element);
+      VisitedElements newVisited = new VisitedElements(element, visited);
       int result = hashKind(HASH_SEED, t);
       result *= HASH_MULTIPLIER;
       result += t.asElement().hashCode();
@@ -127,7 +272,7 @@ public final class MoreTypes {
     }
 
     @Override
-    public Integer visitExecutable(ExecutableType t, Set<Element> visited) {
+    public Integer visitExecutable(ExecutableType t, VisitedElements visited) {
       int result = hashKind(HASH_SEED, t);
       result *= HASH_MULTIPLIER;
       result += hashList(t.getParameterTypes(), visited);
@@ -141,7 +286,7 @@ public final class MoreTypes {
     }
 
     @Override
-    public Integer visitTypeVariable(TypeVariable t, Set<Element> visited) {
+    public Integer visitTypeVariable(TypeVariable t, VisitedElements visited) {
       int result = hashKind(HASH_SEED, t);
       result *= HASH_MULTIPLIER;
       result += t.getLowerBound().accept(this, visited);
@@ -154,7 +299,7 @@ public final class MoreTypes {
     }
 
     @Override
-    public Integer visitWildcard(WildcardType t, Set<Element> visited) {
+    public Integer visitWildcard(WildcardType t, VisitedElements visited) {
       int result = hashKind(HASH_SEED, t);
       result *= HASH_MULTIPLIER;
       result += (t.getExtendsBound() == null) ? 0 : t.getExtendsBound().accept(this, visited);
@@ -164,14 +309,14 @@ public final class MoreTypes {
     }
 
     @Override
-    public Integer visitUnknown(TypeMirror t, Set<Element> visited) {
+    public Integer visitUnknown(TypeMirror t, VisitedElements visited) {
       throw new UnsupportedOperationException();
     }
   }
 
   /* doEquivalence() */
 
-  private static boolean areEqualLists(List<? extends TypeMirror> a, List<? extends TypeMirror> b, Set<ComparedElements> visited) {
+  private static boolean areEqualLists(List<? extends TypeMirror> a, List<? extends TypeMirror> b, @Nullable ComparedElements visited) {
     if (a.size() != b.size())
       return false;
 
@@ -189,7 +334,7 @@ public final class MoreTypes {
     return true;
   }
 
-  private static boolean areEqual(@Nullable TypeMirror a, @Nullable TypeMirror b, Set<ComparedElements> visited) {
+  private static boolean areEqual(@Nullable TypeMirror a, @Nullable TypeMirror b, @Nullable ComparedElements visited) {
     if (a == b)
       return true;
     if (a == null || b == null)
@@ -228,64 +373,64 @@ public final class MoreTypes {
   // encountered so far.
   private static final class EqualVisitorParam {
     TypeMirror type;
-    Set<ComparedElements> visited;
+    @Nullable ComparedElements visited;
   }
 
 
-  private static class ComparedElements {
+  /**
+   * The pairs of elements being compared, innermost first; a persistent linked path like {@link VisitedElements}. The
+   * type arguments of the compared types are kept as they are, rather than copied, since they are only read.
+   */
+  private static final class ComparedElements {
     final Element a;
-    final ImmutableList<TypeMirror> aArguments;
+    final List<? extends TypeMirror> aArguments;
     final Element b;
-    final ImmutableList<TypeMirror> bArguments;
+    final List<? extends TypeMirror> bArguments;
+    final @Nullable ComparedElements next;
 
     ComparedElements(
-        Element a, ImmutableList<TypeMirror> aArguments,
-        Element b, ImmutableList<TypeMirror> bArguments) {
+        Element a, List<? extends TypeMirror> aArguments,
+        Element b, List<? extends TypeMirror> bArguments,
+        @Nullable ComparedElements next) {
       this.a = a;
       this.aArguments = aArguments;
       this.b = b;
       this.bArguments = bArguments;
+      this.next = next;
     }
 
-    protected boolean canEqual(@Nullable Object o) {
-      return o instanceof ComparedElements;
+    static boolean contains(
+        @Nullable ComparedElements visited,
+        Element a, List<? extends TypeMirror> aArguments,
+        Element b, List<? extends TypeMirror> bArguments) {
+      for (ComparedElements node = visited; node != null; node = node.next) {
+        if (node.a.equals(a) && node.b.equals(b)
+            && areSameArguments(node.aArguments, aArguments) && areSameArguments(node.bArguments, bArguments))
+          return true;
+      }
+      return false;
     }
 
-    @Override
-    public boolean equals(@Nullable Object o) {
-      if (!(o instanceof ComparedElements))
-        return false;
-      ComparedElements that = (ComparedElements) o;
-      if (!that.canEqual(this))
-        return false;
-
-      int nArguments = aArguments.size();
-      if (nArguments != that.aArguments.size())
-        return false;
-      // The arguments must be the same size, but we check anyway.
-      if (nArguments != this.bArguments.size() || nArguments != that.bArguments.size())
-        return false;
+    /**
+     * The arguments are the same if they are identical or, since a type may not be represented by one object (as with
+     * some versions of the Eclipse compiler), if they print the same.
+     */
+    private static boolean areSameArguments(List<? extends TypeMirror> arguments1, List<? extends TypeMirror> arguments2) {
+      if (arguments1 == arguments2)
+        return true;
 
-      if (!this.a.equals(that.a) || !this.b.equals(that.b))
+      int nArguments = arguments1.size();
+      if (nArguments != arguments2.size())
         return false;
 
       for (int i = 0; i < nArguments; i++) {
-        if (!this.aArguments.get(i).toString().equals(that.aArguments.get(i).toString()))
-          return false;
-        if (!this.bArguments.get(i).toString().equals(that.bArguments.get(i).toString()))
+        TypeMirror argument1 = arguments1.get(i);
+        TypeMirror argument2 = arguments2.get(i);
+        if (argument1 != argument2 && !argument1.toString().equals(argument2.toString()))
           return false;
       }
-
       return true;
     }
-
-    @Override
-    // As mentioned in other comments as well, a type may not be represented by one object (in fact
-    // as mentioned in some versions of Eclipse compiler it is not.) Therefore, for the Hashset<>
-    // to work correctly, hashCode needs to be implemented as well.
-    public int hashCode() {
-      return a.hashCode() * 31 + b.hashCode();
-    }
   }
 
   /**
@@ -306,26 +451,7 @@ public final class MoreTypes {
   private static final class EqualVisitor extends SimpleTypeVisitor9<Boolean, EqualVisitorParam> {
     private static final EqualVisitor INSTANCE = new EqualVisitor();
 
-    private Set<ComparedElements> addToVisited(Set<ComparedElements> visited, Element a, Element b) {
-      ImmutableList<TypeMirror> noArguments = ImmutableList.of();
-      return addToVisited(visited, a, noArguments, b, noArguments);
-    }
-
-    private Set<ComparedElements> addToVisited(
-        Set<ComparedElements> visited,
-        Element a,
-        List<? extends TypeMirror> aArguments,
-        Element b,
-        List<? extends TypeMirror> bArguments) {
-      ComparedElements comparedElements =
-          new ComparedElements(
-              a, ImmutableList.copyOf(aArguments),
-              b, ImmutableList.copyOf(bArguments)
-          );
-      Set<ComparedElements> newVisited = new HashSet<>(visited);
-      newVisited.add(comparedElements);
-      return newVisited;
-    }
+    private static final ImmutableList<TypeMirror> NO_ARGUMENTS = ImmutableList.of();
 
     @Override
     protected Boolean defaultAction(TypeMirror a, EqualVisitorParam p) {
@@ -349,8 +475,9 @@ public final class MoreTypes {
       DeclaredType b = (DeclaredType) p.type;
       Element aElement = a.asElement();
       Element bElement = b.asElement();
-      Set<ComparedElements> newVisited = addToVisited(p.visited, aElement, a.getTypeArguments(), bElement, b.getTypeArguments());
-      if (newVisited.equals(p.visited)) {
+      List<? extends TypeMirror> aArguments = a.getTypeArguments();
+      List<? extends TypeMirror> bArguments = b.getTypeArguments();
+      if (ComparedElements.contains(p.visited, aElement, aArguments, bElement, bArguments)) {
         // We have already visited this pair of elements.
         // This can happen for example with Enum in Enum<E extends Enum<E>>. Return a
         // provisional true value since if the Elements are not in fact equal the original
@@ -359,9 +486,10 @@ public final class MoreTypes {
         // differs at exactly this point.
         return true;
       }
+      ComparedElements newVisited = new ComparedElements(aElement, aArguments, bElement, bArguments, p.visited);
       return aElement.equals(bElement)
           && areEqual(enclosingType(a), enclosingType(b), newVisited)
-          && areEqualLists(a.getTypeArguments(), b.getTypeArguments(), newVisited);
+          && areEqualLists(aArguments, bArguments, newVisited);
     }
 
     @Override
@@ -398,13 +526,13 @@ public final class MoreTypes {
       TypeVariable b = (TypeVariable) p.type;
       TypeParameterElement aElement = (TypeParameterElement) a.asElement();
       TypeParameterElement bElement = (TypeParameterElement) b.asElement();
-      Set<ComparedElements> newVisited = addToVisited(p.visited, aElement, bElement);
-      if (newVisited.equals(p.visited)) {
+      if (ComparedElements.contains(p.visited, aElement, NO_ARGUMENTS, bElement, NO_ARGUMENTS)) {
         // We have already visited this pair of elements.
         // This can happen with our friend Eclipse when looking at <T extends Comparable<T>>.
         // It incorrectly reports the upper bound of T as T itself.
         return true;
       }
+      ComparedElements newVisited = new ComparedElements(aElement, NO_ARGUMENTS, bElement, NO_ARGUMENTS, p.visited);
       // We use aElement.getBounds() instead of a.getUpperBound() to avoid having to deal with
       // the different way intersection types (like <T extends Number & Comparable<T>>) are
       // represented before and after Java 8. We do have an issue that this code may consider
@@ -445,39 +573,42 @@ public final class MoreTypes {
    * <p> Note: The representation need not be exact. For example,
    * {@linkplain java.util.ArrayList} represents {@linkplain  List}.
    *
+   * <p> To check many types against the same class, prefer a {@link TypeMatcher}, which memoizes the verdicts for
+   * the supertypes.
+   *
    * @param type  the investigated {@linkplain TypeMirror} whose type is being compared with
    * @param clazz the {@linkplain Class} whose type is being compared to
    * @return {@code true} iff the underlying raw type of {@code type} represents that of {@code clazz}
    * @throws IllegalArgumentException if the {@linkplain TypeMirror} does not represent a type that can be referenced by a {@linkplain  Class}
    */
   public static boolean isTypeOf(final Class<?> clazz, TypeMirror type) {
-    return type.accept(new isTypeOf(clazz), null);
+    return type.accept(IsTypeOfVisitor.INSTANCE, Preconditions.checkNotNull(clazz));
   }
 
-  private static final class isTypeOf extends SimpleTypeVisitor9<Boolean, Void> {
-    private final Class<?> clazz;
-
-    isTypeOf(Class<?> clazz) {
-      this.clazz = Preconditions.checkNotNull(clazz);
-    }
+  /**
+   * The visitor of {@link #isTypeOf(Class, TypeMirror)}; the class is its parameter so that it is not allocated per
+   * call.
+   */
+  private static final class IsTypeOfVisitor extends SimpleTypeVisitor9<Boolean, Class<?>> {
+    private static final IsTypeOfVisitor INSTANCE = new IsTypeOfVisitor();
 
     @Override
-    protected Boolean defaultAction(TypeMirror type, Void ignore) {
+    protected Boolean defaultAction(TypeMirror type, Class<?> clazz) {
       return isExactTypeOf(clazz, type);
     }
 
     @Override
-    public Boolean visitArray(ArrayType array, Void ignore) {
+    public Boolean visitArray(ArrayType array, Class<?> clazz) {
       return clazz.isArray() && isTypeOf(clazz.getComponentType(), array.getComponentType());
     }
 
     @Override
-    public Boolean visitDeclared(DeclaredType type, Void ignore) {
+    public Boolean visitDeclared(DeclaredType type, Class<?> clazz) {
       return isDeclaredTypeOf(clazz, type);
     }
 
     @Override
-    public Boolean visitTypeVariable(TypeVariable type, Void ignore) {
+    public Boolean visitTypeVariable(TypeVariable type, Class<?> clazz) {
       TypeMirror upperBoundType = type.getUpperBound();
       if (!(upperBoundType instanceof IntersectionType))
         return isTypeOf(clazz, upperBoundType);
@@ -491,7 +622,7 @@ public final class MoreTypes {
     }
 
     @Override
-    public Boolean visitWildcard(WildcardType type, Void ignore) {
+    public Boolean visitWildcard(WildcardType type, Class<?> clazz) {
       TypeMirror upperBoundType = type.getExtendsBound();
       return (upperBoundType == null && clazz.equals(Object.class)) ||
           (upperBoundType != null && isTypeOf(clazz, upperBoundType));
@@ -519,29 +650,31 @@ public final class MoreTypes {
    * type as the given {@link Class} and throws an {@link IllegalArgumentException} if the {@link
    * TypeMirror} does not represent a type that can be referenced by a {@link Class}
    *
+   * <p> To check many types against the same class, prefer a {@link TypeMatcher}.
+   *
    * @param type  the investigated {@linkplain TypeMirror} whose type is being compared with
    * @param clazz the {@linkplain Class} whose type is being compared to
    * @return {@code true} iff the underlying raw type of {@code type} and {@code clazz} are the same.
    * @throws IllegalArgumentException if the {@linkplain TypeMirror} does not represent a type that can be referenced by a {@linkplain  Class}
    */
   public static boolean isExactTypeOf(final Class<?> clazz, TypeMirror type) {
-    return type.accept(new isExactTypeOf(clazz), null);
+    return type.accept(IsExactTypeOfVisitor.INSTANCE, Preconditions.checkNotNull(clazz));
   }
 
-  private static final class isExactTypeOf extends SimpleTypeVisitor9<Boolean, Void> {
-    private final Class<?> clazz;
-
-    isExactTypeOf(Class<?> clazz) {
-      this.clazz = Preconditions.checkNotNull(clazz);
-    }
+  /**
+   * The visitor of {@link #isExactTypeOf(Class, TypeMirror)}; the class is its parameter so that it is not allocated
+   * per call.
+   */
+  private static final class IsExactTypeOfVisitor extends SimpleTypeVisitor9<Boolean, Class<?>> {
+    private static final IsExactTypeOfVisitor INSTANCE = new IsExactTypeOfVisitor();
 
     @Override
-    protected Boolean defaultAction(TypeMirror type, Void ignore) {
+    protected Boolean defaultAction(TypeMirror type, Class<?> clazz) {
       throw new IllegalArgumentException(type + " cannot be represented as a Class<?>.");
     }
 
     @Override
-    public Boolean visitNoType(NoType noType, Void ignore) {
+    public Boolean visitNoType(NoType noType, Class<?> clazz) {
       if (noType.getKind() == TypeKind.VOID)
         return clazz.equals(Void.TYPE);
 
@@ -549,12 +682,12 @@ public final class MoreTypes {
     }
 
     @Override
-    public Boolean visitError(ErrorType errorType, Void ignore) {
+    public Boolean visitError(ErrorType errorType, Class<?> clazz) {
       return false;
     }
 
     @Override
-    public Boolean visitPrimitive(PrimitiveType type, Void ignore) {
+    public Boolean visitPrimitive(PrimitiveType type, Class<?> clazz) {
       switch (type.getKind()) {
         case BOOLEAN:
           return clazz.equals(Boolean.TYPE);
@@ -578,12 +711,12 @@ public final class MoreTypes {
     }
 
     @Override
-    public Boolean visitArray(ArrayType array, Void ignore) {
+    public Boolean visitArray(ArrayType array, Class<?> clazz) {
       return clazz.isArray() && isExactTypeOf(clazz.getComponentType(), array.getComponentType());
     }
 
     @Override
-    public Boolean visitDeclared(DeclaredType type, Void ignore) {
+    public Boolean visitDeclared(DeclaredType type, Class<?> clazz) {
       TypeElement typeElement = MoreElements.asTypeElement(type.asElement());
       return typeElement.getQualifiedName().contentEquals(clazz.getCanonicalName());
     }
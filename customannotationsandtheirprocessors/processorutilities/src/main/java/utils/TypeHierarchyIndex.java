@@ -0,0 +1,185 @@
+package utils;
+
+import com.google.common.collect.ImmutableList;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the supertypes of {@link TypeElement}s, for subtype queries by qualified name, in both directions.
+ *
+ * <p>The qualified names are interned into dense ids, and the supertype closure of each type element, i.e. the type
+ * itself together with its superclasses and superinterfaces, transitively, is computed once, as a sorted array of
+ * the ids; hence, each type takes as much memory as it has supertypes, however many types are indexed. Since the
+ * closure of a type is the (merged) union of those of its direct supertypes, which are memoized as well, a hierarchy
+ * is walked once for all the types in it. Then, {@link #isSubtypeOf(TypeElement, String)} is a hash lookup and a
+ * binary search among the few supertypes of the type. As in {@link MoreTypes#isTypeOf(Class, TypeMirror)}, the supertypes are the ones declared by the
+ * types; hence, an interface is not a subtype of {@code java.lang.Object}.
+ *
+ * <p>For the reverse query, {@link #subtypesOf(String)}, the types of the round, i.e. the root elements and their
+ * member types, must be {@linkplain #indexRootElements(Collection) indexed}.
+ *
+ * <p>The index is round-scoped, since the hierarchy of a type in the making may change from one round to the next:
+ * create an index per round, or {@linkplain #clear() clear} it when the round is over. Not thread-safe.
+ */
+public final class TypeHierarchyIndex {
+  private final Map<String, Integer> nameIds = new HashMap<>();
+  /**
+   * The sorted, distinct ids of the supertype closure of each type element.
+   */
+  private final Map<TypeElement, int[]> supertypeIds = new HashMap<>();
+  /**
+   * The indexed root types that are subtypes of each qualified name, by its id.
+   */
+  private final List<List<TypeElement>> subtypesById = new ArrayList<>();
+  private final Set<TypeElement> rootTypes = new HashSet<>();
+
+  /**
+   * Returns {@code true} iff the given type element is, or declares as a transitive supertype, the type of the given
+   * qualified name.
+   *
+   * @param typeElement   the investigated {@linkplain TypeElement}
+   * @param qualifiedName the qualified name of the supertype, e.g. {@code "java.util.Collection"}
+   * @return {@code true} iff {@code typeElement} is a subtype of {@code qualifiedName}
+   */
+  public boolean isSubtypeOf(TypeElement typeElement, String qualifiedName) {
+    int[] ids = supertypeIdsOf(typeElement);
+    Integer id = nameIds.get(qualifiedName);
+    return id != null && Arrays.binarySearch(ids, id) >= 0;
+  }
+
+  /**
+   * The same as {@link #isSubtypeOf(TypeElement, String)} for the element of a declared type.
+   *
+   * @param type          the investigated {@linkplain TypeMirror}
+   * @param qualifiedName the qualified name of the supertype, e.g. {@code "java.util.Collection"}
+   * @return {@code true} iff {@code type} is a declared type, and a subtype of {@code qualifiedName}
+   */
+  public boolean isSubtypeOf(TypeMirror type, String qualifiedName) {
+    return type.getKind() == TypeKind.DECLARED
+        && isSubtypeOf(MoreElements.asTypeElement(MoreTypes.asDeclared(type).asElement()), qualifiedName);
+  }
+
+  /**
+   * Indexes the type elements among the given root elements, and their member types, recursively, for
+   * {@link #subtypesOf(String)}. Other kinds of elements, e.g. packages, are ignored.
+   *
+   * @param rootElements the root elements of the round
+   */
+  public void indexRootElements(Collection<? extends Element> rootElements) {
+    for (TypeElement typeElement : ElementFilter.typesIn(rootElements))
+      indexRootType(typeElement);
+  }
+
+  private void indexRootType(TypeElement typeElement) {
+    if (!rootTypes.add(typeElement))
+      return;
+
+    for (int id : supertypeIdsOf(typeElement))
+      subtypesById.get(id).add(typeElement);
+
+    for (TypeElement memberType : ElementFilter.typesIn(typeElement.getEnclosedElements()))
+      indexRootType(memberType);
+  }
+
+  /**
+   * Returns the indexed root types that are subtypes of the type of the given qualified name, including itself if it
+   * is indexed, in the order of their indexing.
+   *
+   * @param qualifiedName the qualified name of the supertype, e.g. {@code "java.util.Collection"}
+   * @return the indexed root types that are subtypes of {@code qualifiedName}
+   */
+  public ImmutableList<TypeElement> subtypesOf(String qualifiedName) {
+    Integer id = nameIds.get(qualifiedName);
+    return id == null ? ImmutableList.of() : ImmutableList.copyOf(subtypesById.get(id));
+  }
+
+  private int[] supertypeIdsOf(TypeElement typeElement) {
+    int[] ids = supertypeIds.get(typeElement);
+    if (ids == null) {
+      ids = new int[]{idOf(typeElement.getQualifiedName().toString())};
+      // put (the type alone) before the walk so that an (erroneous) cyclic hierarchy terminates
+      supertypeIds.put(typeElement, ids);
+      for (TypeMirror i : typeElement.getInterfaces())
+        ids = withSupertypeIds(ids, i);
+      // For interface and java.lang.Object, NoType with kind NONE is returned
+      ids = withSupertypeIds(ids, typeElement.getSuperclass());
+      supertypeIds.put(typeElement, ids);
+    }
+    return ids;
+  }
+
+  /*
+   * Error types are included by their (possibly simple) name; they will have been resolved, if at all, by the time of
+   * the next round's index.
+   */
+  private int[] withSupertypeIds(int[] ids, TypeMirror supertype) {
+    if (supertype.getKind() != TypeKind.DECLARED && supertype.getKind() != TypeKind.ERROR)
+      return ids;
+
+    Element element = ((DeclaredType) supertype).asElement();
+    return element instanceof TypeElement ? union(ids, supertypeIdsOf((TypeElement) element)) : ids;
+  }
+
+  /**
+   * Merges two sorted arrays of distinct ids.
+   */
+  private static int[] union(int[] ids, int[] otherIds) {
+    int[] merged = new int[ids.length + otherIds.length];
+    int i = 0, j = 0, n = 0;
+    while (i < ids.length && j < otherIds.length) {
+      if (ids[i] < otherIds[j])
+        merged[n++] = ids[i++];
+      else if (ids[i] > otherIds[j])
+        merged[n++] = otherIds[j++];
+      else {
+        merged[n++] = ids[i++];
+        j++;
+      }
+    }
+    while (i < ids.length)
+      merged[n++] = ids[i++];
+    while (j < otherIds.length)
+      merged[n++] = otherIds[j++];
+    return n == merged.length ? merged : Arrays.copyOf(merged, n);
+  }
+
+  private int idOf(String qualifiedName) {
+    Integer id = nameIds.get(qualifiedName);
+    if (id == null) {
+      id = nameIds.size();
+      nameIds.put(qualifiedName, id);
+      subtypesById.add(new ArrayList<>());
+    }
+    return id;
+  }
+
+  /**
+   * @return the number of the type elements whose supertypes are indexed.
+   */
+  public int size() {
+    return supertypeIds.size();
+  }
+
+  /**
+   * Forgets every indexed type; to be called at the end of each round.
+   */
+  public void clear() {
+    nameIds.clear();
+    supertypeIds.clear();
+    subtypesById.clear();
+    rootTypes.clear();
+  }
+}
@@ -0,0 +1,72 @@
+package utils;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.lang.model.type.TypeMirror;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A pool that maps the structurally equal {@link TypeMirror}s, as judged by {@link MoreTypes#equivalence()}, to one
+ * canonical instance: the first one interned. After interning, the types can be compared by reference, and be used as
+ * the keys of {@link IdentityHashMap}s; hence, a cache keyed by them holds a single copy of each (large generic)
+ * type, rather than one per mirror that javac happens to create for it.
+ *
+ * <p>Each type is hashed structurally only the first time it is interned; interning the same mirror again is an
+ * identity lookup. The pool pins every mirror it has seen, and the mirrors of different rounds must not be mixed;
+ * therefore, a pool is round-scoped: create one per round, or {@linkplain #clear() clear} it when the round is over.
+ *
+ * <p>Not thread-safe.
+ */
+public final class TypeInterner {
+  /**
+   * The canonical instance of each structural type.
+   */
+  private final Map<MoreTypes.HashedType, TypeMirror> canonicalTypes = new HashMap<>();
+  /**
+   * The canonical instance of each mirror already interned.
+   */
+  private final Map<TypeMirror, TypeMirror> internedTypes = new IdentityHashMap<>();
+
+  /**
+   * Returns the canonical instance of {@code type}: the first interned type that is equivalent to it under
+   * {@link MoreTypes#equivalence()}. If there is none, {@code type} becomes the canonical instance.
+   *
+   * @param type the type to be interned.
+   * @return the canonical instance of {@code type}; {@code null} if {@code type} is {@code null}.
+   */
+  public @Nullable TypeMirror intern(@Nullable TypeMirror type) {
+    if (type == null)
+      return null;
+
+    TypeMirror canonicalType = internedTypes.get(type);
+    if (canonicalType == null) {
+      canonicalType = canonicalTypes.putIfAbsent(MoreTypes.hashed(type), type);
+      if (canonicalType == null)
+        canonicalType = type;
+      internedTypes.put(type, canonicalType);
+    }
+    return canonicalType;
+  }
+
+  /**
+   * @return the number of the canonical types, i.e. of the structurally distinct types interned.
+   */
+  public int size() {
+    return canonicalTypes.size();
+  }
+
+  /**
+   * Forgets every interned type; to be called at the end of each round.
+   */
+  public void clear() {
+    canonicalTypes.clear();
+    internedTypes.clear();
+  }
+
+  @Override
+  public String toString() {
+    return "TypeInterner" + canonicalTypes.values();
+  }
+}
@@ -0,0 +1,177 @@
+package utils;
+
+import com.google.common.base.Preconditions;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.IntersectionType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.WildcardType;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@link MoreTypes#isTypeOf(Class, TypeMirror)} and {@link MoreTypes#isExactTypeOf(Class, TypeMirror)}, compiled once
+ * from a {@link Class}: what the class is matched by, i.e. its canonical name, its primitive kind, or the matcher of
+ * its component type, is computed at the creation of the matcher rather than per check. Moreover, the verdict of
+ * {@link #matches(TypeMirror)} for each visited {@link TypeElement}, including the supertypes walked to reach it, is
+ * memoized; hence, the hierarchy of a type is walked at most once.
+ *
+ * <p>The memoized verdicts are round-scoped, since the hierarchy of a type in the making may change from one round to
+ * the next: create a matcher per round, or {@linkplain #clear() clear} it when the round is over. Not thread-safe.
+ */
+public final class TypeMatcher {
+  private final Class<?> clazz;
+  /**
+   * The canonical name of the class; {@code null} if the class is primitive, an array, or has no canonical name.
+   */
+  private final @Nullable String canonicalName;
+  /**
+   * The kind of the class if it is primitive, and {@link TypeKind#VOID} if it is {@code void}; {@code null} otherwise.
+   */
+  private final @Nullable TypeKind primitiveKind;
+  /**
+   * The matcher of the component type of the class; {@code null} if the class is not an array.
+   */
+  private final @Nullable TypeMatcher componentMatcher;
+  private final Map<TypeElement, Boolean> verdicts = new HashMap<>();
+
+  private TypeMatcher(Class<?> clazz) {
+    this.clazz = clazz;
+    this.canonicalName = (clazz.isPrimitive() || clazz.isArray()) ? null : clazz.getCanonicalName();
+    this.primitiveKind = clazz.isPrimitive() ? TypeKind.valueOf(clazz.getName().toUpperCase(Locale.ROOT)) : null;
+    this.componentMatcher = clazz.isArray() ? new TypeMatcher(clazz.getComponentType()) : null;
+  }
+
+  /**
+   * Returns a new {@link TypeMatcher} of the given class.
+   *
+   * @param clazz the {@linkplain Class} to be matched
+   * @return a new {@linkplain TypeMatcher} of {@code clazz}
+   */
+  public static TypeMatcher of(Class<?> clazz) {
+    return new TypeMatcher(Preconditions.checkNotNull(clazz));
+  }
+
+  /**
+   * @return the matched class.
+   */
+  public Class<?> getMatchedClass() {
+    return clazz;
+  }
+
+  /**
+   * The same as {@link MoreTypes#isTypeOf(Class, TypeMirror)} for the matched class.
+   *
+   * @param type the investigated {@linkplain TypeMirror}
+   * @return {@code true} iff the underlying raw type of {@code type} represents that of the matched class
+   * @throws IllegalArgumentException if the {@linkplain TypeMirror} does not represent a type that can be referenced by a {@linkplain  Class}
+   */
+  public boolean matches(TypeMirror type) {
+    switch (type.getKind()) {
+      case ARRAY:
+        return componentMatcher != null && componentMatcher.matches(((ArrayType) type).getComponentType());
+      case DECLARED:
+        return matches(MoreElements.asTypeElement(MoreTypes.asDeclared(type).asElement()));
+      case TYPEVAR:
+        TypeMirror upperBoundType = ((TypeVariable) type).getUpperBound();
+        if (!(upperBoundType instanceof IntersectionType))
+          return matches(upperBoundType);
+
+        for (TypeMirror UBType : ((IntersectionType) upperBoundType).getBounds())
+          if (matches(UBType))
+            return true;
+
+        return false;
+      case WILDCARD:
+        TypeMirror extendsBoundType = ((WildcardType) type).getExtendsBound();
+        return extendsBoundType == null ? clazz.equals(Object.class) : matches(extendsBoundType);
+      default:
+        return matchesExactly(type);
+    }
+  }
+
+  private boolean matches(TypeElement typeElement) {
+    Boolean verdict = verdicts.get(typeElement);
+    if (verdict == null) {
+      // Provisionally false while its supertypes are walked, so that an (erroneous) cyclic hierarchy terminates
+      verdicts.put(typeElement, Boolean.FALSE);
+      verdict = isSubtype(typeElement);
+      verdicts.put(typeElement, verdict);
+    }
+    return verdict;
+  }
+
+  private boolean isSubtype(TypeElement typeElement) {
+    if (isNamed(typeElement))
+      return true;
+
+    for (TypeMirror i : typeElement.getInterfaces())
+      if (supertypeMatches(i))
+        return true;
+
+    // For interface and java.lang.Object, NoType with kind NONE is returned
+    return supertypeMatches(typeElement.getSuperclass());
+  }
+
+  /*
+   * Erroneous supertypes, e.g. not yet generated ones in early rounds, do not match.
+   */
+  private boolean supertypeMatches(TypeMirror supertype) {
+    return supertype.getKind() == TypeKind.DECLARED
+        && matches(MoreElements.asTypeElement(MoreTypes.asDeclared(supertype).asElement()));
+  }
+
+  private boolean isNamed(TypeElement typeElement) {
+    return canonicalName != null && typeElement.getQualifiedName().contentEquals(canonicalName);
+  }
+
+  /**
+   * The same as {@link MoreTypes#isExactTypeOf(Class, TypeMirror)} for the matched class.
+   *
+   * @param type the investigated {@linkplain TypeMirror}
+   * @return {@code true} iff the underlying raw type of {@code type} and the matched class are the same.
+   * @throws IllegalArgumentException if the {@linkplain TypeMirror} does not represent a type that can be referenced by a {@linkplain  Class}
+   */
+  public boolean matchesExactly(TypeMirror type) {
+    TypeKind kind = type.getKind();
+    switch (kind) {
+      case BOOLEAN:
+      case BYTE:
+      case CHAR:
+      case DOUBLE:
+      case FLOAT:
+      case INT:
+      case LONG:
+      case SHORT:
+      case VOID:
+        return kind == primitiveKind;
+      case ERROR:
+        return false;
+      case ARRAY:
+        return componentMatcher != null && componentMatcher.matchesExactly(((ArrayType) type).getComponentType());
+      case DECLARED:
+        return isNamed(MoreElements.asTypeElement(MoreTypes.asDeclared(type).asElement()));
+      default:
+        throw new IllegalArgumentException(type + " cannot be represented as a Class<?>.");
+    }
+  }
+
+  /**
+   * Forgets every memoized verdict; to be called at the end of each round.
+   */
+  public void clear() {
+    verdicts.clear();
+    if (componentMatcher != null)
+      componentMatcher.clear();
+  }
+
+  @Override
+  public String toString() {
+    return "TypeMatcher.of(" + clazz.getTypeName() + ")";
+  }
+}
@@ -20,6 +20,20 @@
  *    <li><strong>AnnotationValues:</strong> Provides {@link com.google.common.base.Equivalence} for equivalency
  *      and the corresponding hashing. Also, provides static getter methods for annotation values.
  *    </li>
+ *    <li><strong>ElementSnapshots:</strong> Immutable, thread-safe snapshots of
+ *      {@link javax.lang.model.element.Element}s, their annotations, and their types, which can be processed
+ *      off the annotation processor's thread.
+ *    </li>
+ *    <li><strong>TypeMatcher:</strong> {@code MoreTypes.isTypeOf()} and {@code MoreTypes.isExactTypeOf()} compiled
+ *      once from a {@link java.lang.Class Class}, memoizing the verdicts for the visited type elements.
+ *    </li>
+ *    <li><strong>TypeHierarchyIndex:</strong> Memoized supertype closures of
+ *      {@link javax.lang.model.element.TypeElement TypeElement}s, for subtype queries by qualified name, and for the
+ *      subtypes of a type among the root elements of a round.
+ *    </li>
+ *    <li><strong>TypeInterner:</strong> Maps structurally equal {@link javax.lang.model.type.TypeMirror TypeMirror}s
+ *      to one canonical instance, so that they can be compared by reference.
+ *    </li>
  *    <li><strong>AnnotationOutput:</strong> Provides string representation of
  *      {@link javax.lang.model.element.AnnotationMirror}s and {@link javax.lang.model.element.AnnotationValue}s
  *      suitable for inclusion in a Java source file as the initializer of a variable of the appropriate type.
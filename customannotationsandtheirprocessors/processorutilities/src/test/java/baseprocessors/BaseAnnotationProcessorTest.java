@@ -7,21 +7,38 @@ import com.google.common.collect.SetMultimap;
 import com.google.common.truth.Correspondence;
 import com.google.testing.compile.Compilation;
 import com.google.testing.compile.JavaFileObjects;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import javax.annotation.processing.Filer;
 import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.TypeElement;
 import javax.tools.JavaFileObject;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.collect.Lists.transform;
 import static com.google.common.collect.Multimaps.transformValues;
 import static com.google.common.truth.Truth.assertAbout;
 import static com.google.common.truth.Truth.assertThat;
@@ -30,6 +47,7 @@ import static com.google.testing.compile.Compiler.javac;
 import static com.google.testing.compile.JavaSourceSubjectFactory.javaSource;
 import static com.google.testing.compile.JavaSourcesSubjectFactory.javaSources;
 import static javax.tools.Diagnostic.Kind.ERROR;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
 import static javax.tools.StandardLocation.SOURCE_OUTPUT;
 
 @RunWith(JUnit4.class)
@@ -51,6 +69,10 @@ public class BaseAnnotationProcessorTest {
 
   /* Tests */
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  /* The option by which the module test, if compiled, reads the annotations of this class, on the class path */
+  private static final String READS_TEST_CLASSES = "--add-reads=test=ALL-UNNAMED";
   //  @Rule public CompilationRule compilation = new CompilationRule(); //TODO remove (and make the assertions consistent)
 
   @Test
@@ -86,6 +108,39 @@ public class BaseAnnotationProcessorTest {
     assertThat(requiresGeneratedCodeProcessor.rejectedRounds).isEqualTo(0);
   }
 
+  @Test
+  public void properlyDefersProcessing_qualifiedMissingType() {
+    JavaFileObject classAFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + RequiresGeneratedCode.class.getCanonicalName(),
+            "public class ClassA {",
+            "  java.util.List<test.SomeGeneratedClass> sgcs;",
+            "}"
+        );
+
+    JavaFileObject classBFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.ClassB",
+            "package test;",
+            "",
+            "@" + GeneratesCode.class.getCanonicalName(),
+            "public class ClassB {}"
+        );
+
+    RequiresGeneratedCodeProcessor requiresGeneratedCodeProcessor = new RequiresGeneratedCodeProcessor();
+    assertAbout(javaSources())
+        .that(ImmutableList.of(classAFileObject, classBFileObject))
+        .processedWith(requiresGeneratedCodeProcessor, new GeneratesCodeProcessor())
+        .compilesWithoutError()
+        .and()
+        .generatesFileNamed(
+            SOURCE_OUTPUT, "test", "GeneratedByRequiresGeneratedCodeProcessor.java");
+    assertThat(requiresGeneratedCodeProcessor.rejectedRounds).isEqualTo(0);
+  }
+
   @Test
   public void properlyDefersProcessing_nestedTypeValidBeforeOuterType() {
     JavaFileObject source =
@@ -282,6 +337,28 @@ public class BaseAnnotationProcessorTest {
         .onLine(4);
   }
 
+  @Test
+  public void reportsMissingTypeWithItsPath() {
+    JavaFileObject classAFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + RequiresGeneratedCode.class.getCanonicalName(),
+            "public class ClassA {",
+            "  void bar(java.util.List<SomeGeneratedClass> sgcs) {}",
+            "}"
+        );
+
+    assertAbout(javaSources())
+        .that(ImmutableList.of(classAFileObject))
+        .processedWith(new RequiresGeneratedCodeProcessor())
+        .failsToCompile()
+        .withErrorContaining("unresolved: SomeGeneratedClass in ClassA.bar(param sgcs) -> java.util.List<SomeGeneratedClass>")
+        .in(classAFileObject)
+        .onLine(4);
+  }
+
   @Test
   public void reportsMissingTypeSuppressedWhenOtherErrors() {
     JavaFileObject classAFileObject =
@@ -301,106 +378,607 @@ public class BaseAnnotationProcessorTest {
         .withErrorContaining("purposeful");
   }
 
-  /* Annotations and their corresponding processor(s) */
-
+  @Test
+  public void resolvesSupportedAnnotationTypesOncePerRound_skipsNonexistentAnnotations() {
+    JavaFileObject source =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassA {",
+            "}"
+        );
 
-  @Retention(RetentionPolicy.SOURCE)
-  public @interface GeneratesCode {
+    NonexistentAnnotationProcessor missingAnnotationProcessor = new NonexistentAnnotationProcessor();
+    assertThat(javac().withProcessors(missingAnnotationProcessor).compile(source)).succeeded();
+    assertThat(missingAnnotationProcessor.getResolvedAnnotationNames())
+        .containsExactly(AnAnnotation.class.getCanonicalName());
   }
 
+  @Test
+  public void resolvesSupportedAnnotationTypesOncePerRound_generatedAnnotationType() {
+    JavaFileObject source =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + GeneratesAnnotatedCode.class.getCanonicalName(),
+            "public class ClassA {",
+            "}"
+        );
 
-  /**
-   * Generates a class called {@code test.SomeGeneratedClass}.
-   */
-  public static class GeneratesCodeProcessor extends BaseAnnotationProcessorTestContainer {
+    GeneratedAnnotationProcessor generatedAnnotationProcessor = new GeneratedAnnotationProcessor();
+    assertThat(
+        javac().withProcessors(new GeneratesAnnotatedCodeProcessor(), generatedAnnotationProcessor).compile(source)
+    ).succeeded();
+    assertThat(generatedAnnotationProcessor.processedElementNames).containsExactly("test.AnnotatedByGeneratedAnnotation");
+  }
 
-    @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
-    }
+  @Test
+  public void independentStepsRenderConcurrentlyAndCommitOnProcessorThread() {
+    JavaFileObject source =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassA {",
+            "  @" + AnAnnotation.class.getCanonicalName(),
+            "  static class ClassB {}",
+            "}"
+        );
 
-    @Override protected void postRoundProcess(RoundEnvironment roundEnv) {
-    }
+    IndependentStepsProcessor independentStepsProcessor = new IndependentStepsProcessor();
+    Compilation compilation = javac().withProcessors(independentStepsProcessor).compile(source);
+    assertThat(compilation).succeeded();
+    assertThat(compilation).generatedSourceFile("test.ClassAFirst");
+    assertThat(compilation).generatedSourceFile("test.ClassBSecond");
+    assertThat(independentStepsProcessor.renderingThreads).doesNotContain(independentStepsProcessor.processorThread);
+    assertThat(independentStepsProcessor.commitThreads).containsExactly(independentStepsProcessor.processorThread);
+  }
 
-    @Override
-    protected Iterable<? extends ProcessingStep> processingSteps() {
-      return ImmutableSet.of(
-          new ProcessingStep() {
-            @Override
-            public ImmutableSet<String> annotations() {
-              return ImmutableSet.of(ENCLOSING_CLASS_NAME + ".GeneratesCode");
-            }
+  @Test
+  public void validatesEnclosingTypesToTheDepthOfEachStep() {
+    JavaFileObject classAFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "@" + RequiresGeneratedCode.class.getCanonicalName(),
+            "public class ClassA {",
+            "  SomeGeneratedClass sgc;",
+            "}"
+        );
 
-            @Override
-            public ImmutableSet<? extends Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
-              generateClass(processingEnv.getFiler(), "SomeGeneratedClass");
-              return ImmutableSet.of();
-            }
-          }
-      );
-    }
+    JavaFileObject classBFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.ClassB",
+            "package test;",
+            "",
+            "@" + GeneratesCode.class.getCanonicalName(),
+            "public class ClassB {}"
+        );
 
+    ValidationDepthProcessor validationDepthProcessor = new ValidationDepthProcessor();
+    assertAbout(javaSources())
+        .that(ImmutableList.of(classAFileObject, classBFileObject))
+        .processedWith(validationDepthProcessor, new GeneratesCodeProcessor())
+        .compilesWithoutError();
+    // The signature of ClassA is well-informed in the first round, but its field is only in the second.
+    assertThat(validationDepthProcessor.signatureOnlyRounds).containsExactly(1);
+    assertThat(validationDepthProcessor.fullRounds).containsExactly(2);
   }
 
+  @Test
+  public void cacheableStepReplaysUnchangedTypesAcrossCompilations() throws IOException {
+    String cacheDirectory = "-A" + ProcessingCache.CACHE_DIRECTORY_OPTION + "=" + temporaryFolder.newFolder().getPath();
+    JavaFileObject source =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassA {}"
+        );
+    JavaFileObject changedSource =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassA {",
+            "  void method() {}",
+            "}"
+        );
 
-  @Retention(RetentionPolicy.SOURCE)
-  public @interface RequiresGeneratedCode {
+    CacheableStepProcessor firstProcessor = new CacheableStepProcessor();
+    Compilation firstCompilation = javac().withOptions(cacheDirectory).withProcessors(firstProcessor).compile(source);
+    assertThat(firstCompilation).succeeded();
+    assertThat(firstCompilation).generatedSourceFile("test.ClassACached");
+    assertThat(firstProcessor.processedElementNames).containsExactly("test.ClassA");
+
+    CacheableStepProcessor secondProcessor = new CacheableStepProcessor();
+    Compilation secondCompilation = javac().withOptions(cacheDirectory).withProcessors(secondProcessor).compile(source);
+    assertThat(secondCompilation).succeeded();
+    assertThat(secondCompilation).generatedSourceFile("test.ClassACached");
+    assertThat(secondProcessor.processedElementNames).isEmpty();
+
+    CacheableStepProcessor thirdProcessor = new CacheableStepProcessor();
+    Compilation thirdCompilation = javac().withOptions(cacheDirectory).withProcessors(thirdProcessor).compile(changedSource);
+    assertThat(thirdCompilation).succeeded();
+    assertThat(thirdCompilation).generatedSourceFile("test.ClassACached");
+    assertThat(thirdProcessor.processedElementNames).containsExactly("test.ClassA");
   }
 
+  @Test
+  public void cacheableStepIsNotReplayedForChangedTypeParameterBounds() throws IOException {
+    assertChangeIsNotReplayed(
+        ImmutableList.of(annotatedClassA("public class ClassA<T extends Number> {}")),
+        ImmutableList.of(annotatedClassA("public class ClassA<T extends CharSequence> {}")));
+  }
 
-  /**
-   * Reject elements unless the class generated by {@link GeneratesCode}'s processor is present.
-   */
-  private static class RequiresGeneratedCodeProcessor extends BaseAnnotationProcessorTestContainer {
-
-    @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
-    }
+  @Test
+  public void cacheableStepIsNotReplayedForChangedThrownTypes() throws IOException {
+    assertChangeIsNotReplayed(
+        ImmutableList.of(annotatedClassA("public class ClassA {", "  void method() throws java.io.IOException {}", "}")),
+        ImmutableList.of(annotatedClassA("public class ClassA {", "  void method() throws Exception {}", "}")));
+  }
 
-    @Override protected void postRoundProcess(RoundEnvironment roundEnv) {
-    }
+  @Test
+  public void cacheableStepIsNotReplayedForChangedConstants() throws IOException {
+    assertChangeIsNotReplayed(
+        ImmutableList.of(annotatedClassA("public class ClassA {", "  static final int CONSTANT = 1;", "}")),
+        ImmutableList.of(annotatedClassA("public class ClassA {", "  static final int CONSTANT = 2;", "}")));
+  }
 
-    int rejectedRounds;
-    // processArguments will contain the arguments; i.e. elementsByAnnotation, passed to the processor.
-    // processArguments is helpful to check if the correct elements are deferred.
-    // For an example, see properlyDefersProcessing_rejectsElement()
-    final ImmutableList.Builder<ImmutableSetMultimap<String, Element>> processArguments = ImmutableList.builder();
+  @Test
+  public void cacheableStepIsNotReplayedForChangedAnnotationElementDefaults() throws IOException {
+    assertChangeIsNotReplayed(
+        ImmutableList.of(annotatedClassA("public class ClassA {", "  @interface Member { int value() default 1; }", "}")),
+        ImmutableList.of(annotatedClassA("public class ClassA {", "  @interface Member { int value() default 2; }", "}")));
+  }
 
-    ImmutableList<ImmutableSetMultimap<String, Element>> processArguments() {
-      return processArguments.build();
-    }
+  @Test
+  public void cacheableStepIsNotReplayedForChangedInheritedAnnotations() throws IOException {
+    JavaFileObject classA = annotatedClassA("public class ClassA extends Base {}");
+    JavaFileObject marker = JavaFileObjects.forSourceLines(
+        "test.Marker",
+        "package test;",
+        "",
+        "@java.lang.annotation.Inherited",
+        "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)",
+        "public @interface Marker { int value(); }");
+    assertChangeIsNotReplayed(
+        ImmutableList.of(classA, marker,
+            JavaFileObjects.forSourceLines("test.Base", "package test;", "", "@Marker(1)", "public class Base {}")),
+        ImmutableList.of(classA, marker,
+            JavaFileObjects.forSourceLines("test.Base", "package test;", "", "@Marker(2)", "public class Base {}")));
+  }
 
-    @Override
-    protected Iterable<? extends ProcessingStep> processingSteps() {
-      return ImmutableSet.of(
-          new ProcessingStep() {
-            @Override
-            public ImmutableSet<String> annotations() {
-              return ImmutableSet.of(ENCLOSING_CLASS_NAME + ".RequiresGeneratedCode");
-            }
+  @Test
+  public void cacheableStepIsNotReplayedForChangedSupertypeMembers() throws IOException {
+    JavaFileObject classA = annotatedClassA("public class ClassA extends Base implements Named {}");
+    JavaFileObject base = JavaFileObjects.forSourceLines("test.Base", "package test;", "", "public class Base {}");
+    assertChangeIsNotReplayed(
+        ImmutableList.of(classA, base,
+            JavaFileObjects.forSourceLines("test.Named", "package test;", "", "public interface Named {}")),
+        ImmutableList.of(classA, base,
+            JavaFileObjects.forSourceLines("test.Named", "package test;", "",
+                "public interface Named {", "  default String name() { return null; }", "}")));
+  }
 
-            @Override
-            public ImmutableSet<? extends Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
-              processArguments.add(ImmutableSetMultimap.copyOf(elementsByAnnotation));
-              TypeElement requiredClass = processingEnv.getElementUtils().getTypeElement("test.SomeGeneratedClass");
-              if (requiredClass == null) {
-                rejectedRounds++;
-                return ImmutableSet.copyOf(elementsByAnnotation.values());
-              }
-              generateClass(processingEnv.getFiler(), "GeneratedByRequiresGeneratedCodeProcessor");
-              return ImmutableSet.of();
-            }
-          }
-      );
-    }
+  @Test
+  public void cacheableStepIsNotReplayedForAnotherVersionOfTheProcessor() throws IOException {
+    String cacheDirectory = "-A" + ProcessingCache.CACHE_DIRECTORY_OPTION + "=" + temporaryFolder.newFolder().getPath();
+    JavaFileObject source =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassA {}"
+        );
 
+    CacheableStepProcessor firstProcessor = new CacheableStepProcessor();
+    assertThat(javac().withOptions(cacheDirectory).withProcessors(firstProcessor).compile(source)).succeeded();
+    assertThat(firstProcessor.processedElementNames).containsExactly("test.ClassA");
+
+    // Another value of a processor option
+    CacheableStepProcessor secondProcessor = new CacheableStepProcessor();
+    Compilation secondCompilation =
+        javac().withOptions(cacheDirectory, "-Atest.option=changed").withProcessors(secondProcessor).compile(source);
+    assertThat(secondCompilation).succeeded();
+    assertThat(secondCompilation).generatedSourceFile("test.ClassACached");
+    assertThat(secondProcessor.processedElementNames).containsExactly("test.ClassA");
+
+    // Back to the options of the first compilation; its entry was replaced by the second's
+    CacheableStepProcessor thirdProcessor = new CacheableStepProcessor();
+    assertThat(javac().withOptions(cacheDirectory).withProcessors(thirdProcessor).compile(source)).succeeded();
+    assertThat(thirdProcessor.processedElementNames).containsExactly("test.ClassA");
   }
 
+  @Test
+  public void cacheableStepReplaysFilesOfSeveralOriginatingTypesOnce() throws IOException {
+    String cacheDirectory = "-A" + ProcessingCache.CACHE_DIRECTORY_OPTION + "=" + temporaryFolder.newFolder().getPath();
+    JavaFileObject classAFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassA {}"
+        );
+    JavaFileObject classBFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.ClassB",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassB {}"
+        );
+    JavaFileObject changedClassBFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.ClassB",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassB {",
+            "  void method() {}",
+            "}"
+        );
 
-  public @interface AnAnnotation {
+    CacheableStepProcessor firstProcessor = new CacheableStepProcessor(true);
+    Compilation firstCompilation =
+        javac().withOptions(cacheDirectory).withProcessors(firstProcessor).compile(classAFileObject, classBFileObject);
+    assertThat(firstCompilation).succeeded();
+    assertThat(firstCompilation).generatedSourceFile("test.AllCached");
+    assertThat(firstProcessor.processedElementNames).containsExactly("test.ClassA", "test.ClassB");
+
+    // Both are unchanged: the file is replayed once
+    CacheableStepProcessor secondProcessor = new CacheableStepProcessor(true);
+    Compilation secondCompilation =
+        javac().withOptions(cacheDirectory).withProcessors(secondProcessor).compile(classAFileObject, classBFileObject);
+    assertThat(secondCompilation).succeeded();
+    assertThat(secondCompilation).generatedSourceFile("test.AllCached");
+    assertThat(secondProcessor.processedElementNames).isEmpty();
+
+    // ClassB is changed: the file is not replayed on behalf of ClassA, but generated again from both
+    CacheableStepProcessor thirdProcessor = new CacheableStepProcessor(true);
+    Compilation thirdCompilation = javac().withOptions(cacheDirectory).withProcessors(thirdProcessor)
+        .compile(classAFileObject, changedClassBFileObject);
+    assertThat(thirdCompilation).succeeded();
+    assertThat(thirdCompilation).generatedSourceFile("test.AllCached");
+    assertThat(thirdProcessor.processedElementNames).containsExactly("test.ClassA", "test.ClassB");
   }
 
+  @Test
+  public void cacheableStepIsNotCachedWithoutRecordedOutputs() throws IOException {
+    String cacheDirectory = "-A" + ProcessingCache.CACHE_DIRECTORY_OPTION + "=" + temporaryFolder.newFolder().getPath();
+    JavaFileObject source =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassA {}"
+        );
 
-  /**
-   * When annotating a type {@code Foo}, generates a class called {@code FooXYZ}.
-   */
+    for (int i = 0; i < 2; i++) {
+      BypassingCacheableStepProcessor processor = new BypassingCacheableStepProcessor();
+      Compilation compilation = javac().withOptions(cacheDirectory).withProcessors(processor).compile(source);
+      assertThat(compilation).succeeded();
+      assertThat(compilation).generatedSourceFile("test.ClassABypassed");
+      assertThat(processor.processedElementNames).containsExactly("test.ClassA");
+    }
+  }
+
+  @Test
+  public void cacheableStepReplaysUnchangedModulesAcrossCompilations() throws IOException {
+    String cacheDirectory = "-A" + ProcessingCache.CACHE_DIRECTORY_OPTION + "=" + temporaryFolder.newFolder().getPath();
+    JavaFileObject moduleInfo =
+        JavaFileObjects.forSourceLines(
+            "module-info",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "module test {",
+            "}"
+        );
+    JavaFileObject changedModuleInfo =
+        JavaFileObjects.forSourceLines(
+            "module-info",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "module test {",
+            "  requires java.logging;",
+            "}"
+        );
+
+    CacheableStepProcessor firstProcessor = new CacheableStepProcessor();
+    Compilation firstCompilation = javac().withOptions(cacheDirectory, READS_TEST_CLASSES)
+        .withProcessors(firstProcessor).compile(moduleInfo);
+    assertThat(firstCompilation).succeeded();
+    assertThat(firstCompilation).generatedSourceFile("test.testCached");
+    assertThat(firstProcessor.processedElementNames).containsExactly("test");
+
+    CacheableStepProcessor secondProcessor = new CacheableStepProcessor();
+    Compilation secondCompilation = javac().withOptions(cacheDirectory, READS_TEST_CLASSES)
+        .withProcessors(secondProcessor).compile(moduleInfo);
+    assertThat(secondCompilation).succeeded();
+    assertThat(secondCompilation).generatedSourceFile("test.testCached");
+    assertThat(secondProcessor.processedElementNames).isEmpty();
+
+    // A changed directive
+    CacheableStepProcessor thirdProcessor = new CacheableStepProcessor();
+    Compilation thirdCompilation = javac().withOptions(cacheDirectory, READS_TEST_CLASSES)
+        .withProcessors(thirdProcessor).compile(changedModuleInfo);
+    assertThat(thirdCompilation).succeeded();
+    assertThat(thirdCompilation).generatedSourceFile("test.testCached");
+    assertThat(thirdProcessor.processedElementNames).containsExactly("test");
+  }
+
+  @Test
+  public void isolatingProcessorCreatesFilesFromItsOwnElements() {
+    JavaFileObject source =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassA {",
+            "  @" + AnAnnotation.class.getCanonicalName(),
+            "  void method() {}",
+            "}"
+        );
+
+    Compilation compilation = javac().withProcessors(new IsolatingProcessor(true)).compile(source);
+    assertThat(compilation).succeeded();
+    assertThat(compilation).generatedSourceFile("test.ClassAIsolated");
+    assertThat(compilation).generatedSourceFile("test.methodIsolated");
+  }
+
+  @Test
+  public void isolatingProcessorCreatesFilesFromModules() {
+    JavaFileObject moduleInfo =
+        JavaFileObjects.forSourceLines(
+            "module-info",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "module test {",
+            "}"
+        );
+
+    Compilation compilation = javac().withOptions(READS_TEST_CLASSES).withProcessors(new IsolatingProcessor(true))
+        .compile(moduleInfo);
+    assertThat(compilation).succeeded();
+    assertThat(compilation).generatedSourceFile("test.testIsolated");
+  }
+
+  @Test
+  public void isolatingProcessorReportsFilesWithoutOriginatingElement() {
+    JavaFileObject source =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassA {}"
+        );
+
+    Compilation compilation = javac().withProcessors(new IsolatingProcessor(false)).compile(source);
+    assertThat(compilation).failed();
+    assertThat(compilation).hadErrorContaining("exactly one originating element");
+  }
+
+  @Test
+  public void aggregatingProcessorReportsSourceRetentionAnnotations() {
+    JavaFileObject source =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + GeneratesCode.class.getCanonicalName(),
+            "public class ClassA {}"
+        );
+
+    Compilation compilation = javac().withProcessors(new AggregatingProcessor()).compile(source);
+    assertThat(compilation).failed();
+    assertThat(compilation).hadErrorContaining("SOURCE retention");
+  }
+
+  @Test
+  public void writesMetricsReportWhenEnabled() {
+    JavaFileObject source =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassA {}"
+        );
+
+    Compilation compilation = javac()
+        .withOptions("-A" + ProcessingMetricsSink.METRICS_OPTION + "=csv")
+        .withProcessors(new AnAnnotationProcessor())
+        .compile(source);
+    assertThat(compilation).succeeded();
+    assertThat(compilation)
+        .generatedFile(CLASS_OUTPUT, "META-INF/baseprocessors/metrics/" + AnAnnotationProcessor.class.getName() + ".csv")
+        .contentsAsUtf8String()
+        .containsMatch("(?s)^round,phase,name,count,totalNanos,maxNanos\\R1,PRE_ROUND,.*\\R1,STEP,.*\\R1,ROUND,1,1,");
+  }
+
+  @Test
+  public void writesChromeTraceWhenEnabled() throws IOException {
+    File traceDirectory = temporaryFolder.newFolder();
+    JavaFileObject source =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassA {}"
+        );
+
+    // A locale with a decimal comma
+    Locale defaultLocale = Locale.getDefault();
+    Compilation compilation;
+    Locale.setDefault(Locale.GERMANY);
+    try {
+      compilation = javac()
+          .withOptions("-A" + ProcessingMetricsSink.TRACE_OPTION + "=" + traceDirectory.getPath())
+          .withProcessors(new AnAnnotationProcessor(), new GeneratesCodeProcessor())
+          .compile(source);
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+    assertThat(compilation).succeeded();
+
+    String trace = new String(
+        Files.readAllBytes(traceDirectory.toPath().resolve(TraceEventSink.TRACE_FILE_NAME)), StandardCharsets.UTF_8);
+    assertThat(trace).startsWith("{\"traceEvents\": [");
+    assertThat(trace).contains("\"args\": {\"name\": \"" + AnAnnotationProcessor.class.getName() + "\"}");
+    assertThat(trace).contains("\"args\": {\"name\": \"" + GeneratesCodeProcessor.class.getName() + "\"}");
+    assertThat(trace).contains("\"name\": \"Round 1\", \"cat\": \"ROUND\"");
+    assertThat(trace).contains("\"name\": \"test.ClassA\", \"cat\": \"VALIDATION\"");
+    assertThat(trace).contains("\"cat\": \"STEP\"");
+    assertThat(trace).containsMatch("\"ts\": \\d+\\.\\d{3}, \"dur\": \\d+\\.\\d{3},");
+  }
+
+  @Test
+  public void emitsFlightRecorderEvents() throws IOException {
+    Path recordingFile = temporaryFolder.newFile("processing.jfr").toPath();
+    JavaFileObject source =
+        JavaFileObjects.forSourceLines(
+            "test.ClassA",
+            "package test;",
+            "",
+            "@" + AnAnnotation.class.getCanonicalName(),
+            "public class ClassA {}"
+        );
+
+    try (Recording recording = new Recording()) {
+      for (String eventName : ImmutableList.of("RoundStart", "RoundEnd", "StepExecution", "ValidationCheck"))
+        recording.enable("baseprocessors." + eventName).withoutThreshold();
+      recording.start();
+      assertThat(javac().withProcessors(new AnAnnotationProcessor()).compile(source)).succeeded();
+      recording.stop();
+      recording.dump(recordingFile);
+    }
+
+    List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile);
+    assertThat(transform(events, event -> event.getEventType().getName()))
+        .containsAtLeast("baseprocessors.RoundStart", "baseprocessors.RoundEnd", "baseprocessors.StepExecution",
+            "baseprocessors.ValidationCheck");
+    for (RecordedEvent event : events) {
+      if (event.getEventType().getName().equals("baseprocessors.StepExecution")) {
+        assertThat(event.getInt("elementCount")).isEqualTo(1);
+        assertThat(event.getInt("rejectedCount")).isEqualTo(0);
+      } else if (event.getEventType().getName().equals("baseprocessors.ValidationCheck")) {
+        assertThat(event.getString("typeName")).isEqualTo("test.ClassA");
+        assertThat(event.getBoolean("valid")).isTrue();
+      }
+    }
+  }
+
+  /* Annotations and their corresponding processor(s) */
+
+
+  @Retention(RetentionPolicy.SOURCE)
+  public @interface GeneratesCode {
+  }
+
+
+  /**
+   * Generates a class called {@code test.SomeGeneratedClass}.
+   */
+  public static class GeneratesCodeProcessor extends BaseAnnotationProcessorTestContainer {
+
+    @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override protected void postRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override
+    protected Iterable<? extends ProcessingStep> processingSteps() {
+      return ImmutableSet.of(
+          new ProcessingStep() {
+            @Override
+            public ImmutableSet<String> annotations() {
+              return ImmutableSet.of(ENCLOSING_CLASS_NAME + ".GeneratesCode");
+            }
+
+            @Override
+            public ImmutableSet<? extends Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
+              generateClass(processingEnv.getFiler(), "SomeGeneratedClass");
+              return ImmutableSet.of();
+            }
+          }
+      );
+    }
+
+  }
+
+
+  @Retention(RetentionPolicy.SOURCE)
+  public @interface RequiresGeneratedCode {
+  }
+
+
+  /**
+   * Reject elements unless the class generated by {@link GeneratesCode}'s processor is present.
+   */
+  private static class RequiresGeneratedCodeProcessor extends BaseAnnotationProcessorTestContainer {
+
+    @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override protected void postRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    int rejectedRounds;
+    // processArguments will contain the arguments; i.e. elementsByAnnotation, passed to the processor.
+    // processArguments is helpful to check if the correct elements are deferred.
+    // For an example, see properlyDefersProcessing_rejectsElement()
+    final ImmutableList.Builder<ImmutableSetMultimap<String, Element>> processArguments = ImmutableList.builder();
+
+    ImmutableList<ImmutableSetMultimap<String, Element>> processArguments() {
+      return processArguments.build();
+    }
+
+    @Override
+    protected Iterable<? extends ProcessingStep> processingSteps() {
+      return ImmutableSet.of(
+          new ProcessingStep() {
+            @Override
+            public ImmutableSet<String> annotations() {
+              return ImmutableSet.of(ENCLOSING_CLASS_NAME + ".RequiresGeneratedCode");
+            }
+
+            @Override
+            public ImmutableSet<? extends Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
+              processArguments.add(ImmutableSetMultimap.copyOf(elementsByAnnotation));
+              TypeElement requiredClass = processingEnv.getElementUtils().getTypeElement("test.SomeGeneratedClass");
+              if (requiredClass == null) {
+                rejectedRounds++;
+                return ImmutableSet.copyOf(elementsByAnnotation.values());
+              }
+              generateClass(processingEnv.getFiler(), "GeneratedByRequiresGeneratedCodeProcessor");
+              return ImmutableSet.of();
+            }
+          }
+      );
+    }
+
+  }
+
+
+  public @interface AnAnnotation {
+  }
+
+
+  /**
+   * When annotating a type {@code Foo}, generates a class called {@code FooXYZ}.
+   */
   public static class AnAnnotationProcessor extends BaseAnnotationProcessorTestContainer {
 
     @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
@@ -443,11 +1021,16 @@ public class BaseAnnotationProcessorTest {
     }
 
     private ImmutableSetMultimap<String, Element> elementsByAnnotation;
-    
+    private ImmutableSet<String> resolvedAnnotationNames;
+
     ImmutableSetMultimap<String, Element> getElementsByAnnotation() {
       return elementsByAnnotation;
     }
 
+    ImmutableSet<String> getResolvedAnnotationNames() {
+      return resolvedAnnotationNames;
+    }
+
     @Override
     protected Iterable<? extends ProcessingStep> processingSteps() {
       return ImmutableSet.of(
@@ -460,6 +1043,10 @@ public class BaseAnnotationProcessorTest {
             @Override
             public ImmutableSet<Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
               NonexistentAnnotationProcessor.this.elementsByAnnotation = elementsByAnnotation;
+              NonexistentAnnotationProcessor.this.resolvedAnnotationNames =
+                  getSupportedAnnotationTypeElements(this).stream()
+                      .map(annotationType -> annotationType.getQualifiedName().toString())
+                      .collect(ImmutableSet.toImmutableSet());
               for (Element element : elementsByAnnotation.values()) {
                 generateClass(processingEnv.getFiler(), element.getSimpleName() + "XYZ");
               }
@@ -472,6 +1059,363 @@ public class BaseAnnotationProcessorTest {
   }
 
 
+  @Retention(RetentionPolicy.SOURCE)
+  public @interface GeneratesAnnotatedCode {
+  }
+
+
+  /**
+   * Generates an annotation type called {@code test.GeneratedAnnotation}, and a class called
+   * {@code test.AnnotatedByGeneratedAnnotation} annotated with it, in the same round.
+   */
+  public static class GeneratesAnnotatedCodeProcessor extends BaseAnnotationProcessorTestContainer {
+
+    @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override protected void postRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override
+    protected Iterable<? extends ProcessingStep> processingSteps() {
+      return ImmutableSet.of(
+          new ProcessingStep() {
+            @Override
+            public ImmutableSet<String> annotations() {
+              return ImmutableSet.of(ENCLOSING_CLASS_NAME + ".GeneratesAnnotatedCode");
+            }
+
+            @Override
+            public ImmutableSet<Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
+              generateSource(processingEnv.getFiler(), "GeneratedAnnotation", "public @interface GeneratedAnnotation {}");
+              generateSource(processingEnv.getFiler(), "AnnotatedByGeneratedAnnotation",
+                  "@GeneratedAnnotation public class AnnotatedByGeneratedAnnotation {}");
+              return ImmutableSet.of();
+            }
+          }
+      );
+    }
+  }
+
+
+  /**
+   * Records the elements annotated by {@code test.GeneratedAnnotation}, an annotation type that
+   * does not exist until it is generated by {@link GeneratesAnnotatedCodeProcessor}.
+   */
+  public static class GeneratedAnnotationProcessor extends BaseAnnotationProcessorTestContainer {
+
+    final ImmutableSet.Builder<String> processedElementNamesBuilder = ImmutableSet.builder();
+    ImmutableSet<String> processedElementNames = ImmutableSet.of();
+
+    @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override protected void postRoundProcess(RoundEnvironment roundEnv) {
+      processedElementNames = processedElementNamesBuilder.build();
+    }
+
+    @Override
+    protected Iterable<? extends ProcessingStep> processingSteps() {
+      return ImmutableSet.of(
+          new ProcessingStep() {
+            @Override
+            public ImmutableSet<String> annotations() {
+              return ImmutableSet.of("test.GeneratedAnnotation");
+            }
+
+            @Override
+            public ImmutableSet<Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
+              for (Element element : elementsByAnnotation.values())
+                processedElementNamesBuilder.add(element.toString());
+              return ImmutableSet.of();
+            }
+          }
+      );
+    }
+  }
+
+
+  /**
+   * Runs two {@link IndependentProcessingStep}s on {@link AnAnnotation}, recording the threads of their phases.
+   */
+  public static class IndependentStepsProcessor extends BaseAnnotationProcessorTestContainer {
+
+    final Set<Thread> renderingThreads = ConcurrentHashMap.newKeySet();
+    final Set<Thread> commitThreads = ConcurrentHashMap.newKeySet();
+    Thread processorThread;
+
+    @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
+      processorThread = Thread.currentThread();
+    }
+
+    @Override protected void postRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override
+    protected int independentStepsParallelism() {
+      return 2;
+    }
+
+    @Override
+    protected Iterable<? extends ProcessingStep> processingSteps() {
+      return ImmutableList.of(new GeneratingStep("First", "ClassA"), new GeneratingStep("Second", "ClassB"));
+    }
+
+    private class GeneratingStep implements IndependentProcessingStep {
+      private final String suffix;
+      private final String simpleName;
+
+      GeneratingStep(String suffix, String simpleName) {
+        this.suffix = suffix;
+        this.simpleName = simpleName;
+      }
+
+      @Override
+      public ImmutableSet<String> annotations() {
+        return ImmutableSet.of(ENCLOSING_CLASS_NAME + ".AnAnnotation");
+      }
+
+      @Override
+      public Preparation prepare(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
+        // Read the model on the processor thread
+        boolean present = elementsByAnnotation.values().stream()
+            .anyMatch(element -> element.getSimpleName().contentEquals(simpleName));
+        return Preparation.of(
+            ImmutableSet.of(),
+            () -> {
+              renderingThreads.add(Thread.currentThread());
+              String generatedClassName = simpleName + suffix;
+              return () -> {
+                commitThreads.add(Thread.currentThread());
+                if (present)
+                  generateClass(processingEnv.getFiler(), generatedClassName);
+              };
+            }
+        );
+      }
+    }
+  }
+
+
+  /**
+   * Runs a {@link CacheableProcessingStep} on {@link AnAnnotation}, which generates a class called {@code FooCached}
+   * when annotating a type {@code Foo}, and records the elements it processes.
+   */
+  public static class CacheableStepProcessor extends BaseAnnotationProcessorTestContainer {
+
+    final Set<String> processedElementNames = new HashSet<>();
+    private final boolean combined;
+
+    public CacheableStepProcessor() {
+      this(false);
+    }
+
+    /**
+     * @param combined whether to generate a single class called {@code AllCached} from all the annotated types instead
+     */
+    public CacheableStepProcessor(boolean combined) {
+      this.combined = combined;
+    }
+
+    @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override protected void postRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override
+    protected Iterable<? extends ProcessingStep> processingSteps() {
+      return ImmutableSet.of(
+          new CacheableProcessingStep() {
+            @Override
+            public ImmutableSet<String> annotations() {
+              return ImmutableSet.of(ENCLOSING_CLASS_NAME + ".AnAnnotation");
+            }
+
+            @Override
+            public ImmutableSet<Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
+              for (Element element : elementsByAnnotation.values()) {
+                processedElementNames.add(element.toString());
+                if (!combined)
+                  generateClass(filer, element.getSimpleName() + "Cached", element);
+              }
+              if (combined)
+                generateClass(filer, "AllCached", elementsByAnnotation.values().toArray(new Element[0]));
+              return ImmutableSet.of();
+            }
+          }
+      );
+    }
+  }
+
+
+  /**
+   * Runs a {@link CacheableProcessingStep} on {@link AnAnnotation} that, in breach of its contract, generates a class
+   * called {@code FooBypassed} through {@code processingEnv.getFiler()}.
+   */
+  public static class BypassingCacheableStepProcessor extends BaseAnnotationProcessorTestContainer {
+
+    final Set<String> processedElementNames = new HashSet<>();
+
+    @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override protected void postRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override
+    protected Iterable<? extends ProcessingStep> processingSteps() {
+      return ImmutableSet.of(
+          new CacheableProcessingStep() {
+            @Override
+            public ImmutableSet<String> annotations() {
+              return ImmutableSet.of(ENCLOSING_CLASS_NAME + ".AnAnnotation");
+            }
+
+            @Override
+            public ImmutableSet<Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
+              for (Element element : elementsByAnnotation.values()) {
+                processedElementNames.add(element.toString());
+                generateClass(processingEnv.getFiler(), element.getSimpleName() + "Bypassed", element);
+              }
+              return ImmutableSet.of();
+            }
+          }
+      );
+    }
+  }
+
+
+  /**
+   * An isolating processor that, when annotating an element {@code foo}, generates a class called {@code fooIsolated},
+   * with or without {@code foo} as its originating element.
+   */
+  @IncrementalAnnotationProcessor(IncrementalAnnotationProcessor.Kind.ISOLATING)
+  public static class IsolatingProcessor extends BaseAnnotationProcessorTestContainer {
+
+    private final boolean withOriginatingElement;
+
+    IsolatingProcessor(boolean withOriginatingElement) {
+      this.withOriginatingElement = withOriginatingElement;
+    }
+
+    @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override protected void postRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override
+    protected Iterable<? extends ProcessingStep> processingSteps() {
+      return ImmutableSet.of(
+          new ProcessingStep() {
+            @Override
+            public ImmutableSet<String> annotations() {
+              return ImmutableSet.of(ENCLOSING_CLASS_NAME + ".AnAnnotation");
+            }
+
+            @Override
+            public ImmutableSet<Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
+              for (Element element : elementsByAnnotation.values()) {
+                String generatedClassName = element.getSimpleName() + "Isolated";
+                if (withOriginatingElement)
+                  generateClass(filer, generatedClassName, element);
+                else
+                  generateClass(filer, generatedClassName);
+              }
+              return ImmutableSet.of();
+            }
+          }
+      );
+    }
+  }
+
+
+  /**
+   * Records the rounds in which {@link AnAnnotation} is processed by a step validating only the signatures, and
+   * {@link RequiresGeneratedCode} by a step validating fully.
+   */
+  public static class ValidationDepthProcessor extends BaseAnnotationProcessorTestContainer {
+
+    private int round;
+    final List<Integer> signatureOnlyRounds = new ArrayList<>();
+    final List<Integer> fullRounds = new ArrayList<>();
+
+    @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
+      round++;
+    }
+
+    @Override protected void postRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override
+    protected Iterable<? extends ProcessingStep> processingSteps() {
+      return ImmutableSet.of(
+          new ProcessingStep() {
+            @Override
+            public ImmutableSet<String> annotations() {
+              return ImmutableSet.of(ENCLOSING_CLASS_NAME + ".AnAnnotation");
+            }
+
+            @Override
+            public SuperficialValidation.Depth validationDepth() {
+              return SuperficialValidation.Depth.SIGNATURE_ONLY;
+            }
+
+            @Override
+            public ImmutableSet<Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
+              elementsByAnnotation.values().forEach(element -> signatureOnlyRounds.add(round));
+              return ImmutableSet.of();
+            }
+          },
+          new ProcessingStep() {
+            @Override
+            public ImmutableSet<String> annotations() {
+              return ImmutableSet.of(ENCLOSING_CLASS_NAME + ".RequiresGeneratedCode");
+            }
+
+            @Override
+            public ImmutableSet<Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
+              elementsByAnnotation.values().forEach(element -> fullRounds.add(round));
+              return ImmutableSet.of();
+            }
+          }
+      );
+    }
+  }
+
+
+  /**
+   * An aggregating processor of {@link GeneratesCode}, which has {@code SOURCE} retention.
+   */
+  @IncrementalAnnotationProcessor(IncrementalAnnotationProcessor.Kind.AGGREGATING)
+  public static class AggregatingProcessor extends BaseAnnotationProcessorTestContainer {
+
+    @Override protected void preRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override protected void postRoundProcess(RoundEnvironment roundEnv) {
+    }
+
+    @Override
+    protected Iterable<? extends ProcessingStep> processingSteps() {
+      return ImmutableSet.of(
+          new ProcessingStep() {
+            @Override
+            public ImmutableSet<String> annotations() {
+              return ImmutableSet.of(ENCLOSING_CLASS_NAME + ".GeneratesCode");
+            }
+
+            @Override
+            public ImmutableSet<Element> process(ImmutableSetMultimap<String, Element> elementsByAnnotation) {
+              return ImmutableSet.of();
+            }
+          }
+      );
+    }
+  }
+
+
   /**
    * An annotation which causes an annotation processing error.
    */
@@ -520,8 +1464,41 @@ public class BaseAnnotationProcessorTest {
 
   /* Helper Methods */
 
-  private static void generateClass(Filer filer, String generatedClassName) {
-    try (PrintWriter writer = new PrintWriter(filer.createSourceFile("test." + generatedClassName).openWriter())) {
+  /**
+   * Compiles {@code sources} twice, and then {@code changedSources}, with a {@link CacheableStepProcessor}; asserts
+   * that the annotated {@code test.ClassA} is replayed in the second compilation, but processed again in the third.
+   */
+  private void assertChangeIsNotReplayed(List<JavaFileObject> sources, List<JavaFileObject> changedSources)
+      throws IOException {
+    String cacheDirectory = "-A" + ProcessingCache.CACHE_DIRECTORY_OPTION + "=" + temporaryFolder.newFolder().getPath();
+
+    CacheableStepProcessor firstProcessor = new CacheableStepProcessor();
+    assertThat(javac().withOptions(cacheDirectory).withProcessors(firstProcessor).compile(sources)).succeeded();
+    assertThat(firstProcessor.processedElementNames).containsExactly("test.ClassA");
+
+    CacheableStepProcessor secondProcessor = new CacheableStepProcessor();
+    assertThat(javac().withOptions(cacheDirectory).withProcessors(secondProcessor).compile(sources)).succeeded();
+    assertThat(secondProcessor.processedElementNames).isEmpty();
+
+    CacheableStepProcessor thirdProcessor = new CacheableStepProcessor();
+    Compilation thirdCompilation = javac().withOptions(cacheDirectory).withProcessors(thirdProcessor).compile(changedSources);
+    assertThat(thirdCompilation).succeeded();
+    assertThat(thirdCompilation).generatedSourceFile("test.ClassACached");
+    assertThat(thirdProcessor.processedElementNames).containsExactly("test.ClassA");
+  }
+
+  private static JavaFileObject annotatedClassA(String... body) {
+    List<String> lines = new ArrayList<>(ImmutableList.of(
+        "package test;",
+        "",
+        "@" + AnAnnotation.class.getCanonicalName()));
+    lines.addAll(ImmutableList.copyOf(body));
+    return JavaFileObjects.forSourceLines("test.ClassA", lines);
+  }
+
+  private static void generateClass(Filer filer, String generatedClassName, Element... originatingElements) {
+    try (PrintWriter writer =
+             new PrintWriter(filer.createSourceFile("test." + generatedClassName, originatingElements).openWriter())) {
       writer.println("package test;");
       writer.println("public class " + generatedClassName + " {}");
     } catch (IOException e) {
@@ -529,6 +1506,15 @@ public class BaseAnnotationProcessorTest {
     }
   }
 
+  private static void generateSource(Filer filer, String generatedTypeName, String declaration) {
+    try (PrintWriter writer = new PrintWriter(filer.createSourceFile("test." + generatedTypeName).openWriter())) {
+      writer.println("package test;");
+      writer.println(declaration);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   private static <K, V> Correspondence<SetMultimap<K, V>, SetMultimap<K, String>> setMultimapValuesByString() {
     return Correspondence.from(
         (actual, expected) ->
@@ -0,0 +1,144 @@
+package baseprocessors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.truth.Correspondence;
+import com.google.testing.compile.CompilationRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import utils.ElementSnapshots;
+import utils.ElementSnapshots.AnnotationSnapshot;
+import utils.ElementSnapshots.ElementSnapshot;
+import utils.ElementSnapshots.EnumConstantSnapshot;
+import utils.ElementSnapshots.TypeSnapshot;
+
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.util.Elements;
+import java.lang.annotation.RetentionPolicy;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests {@link ElementSnapshots}.
+ */
+@RunWith(JUnit4.class)
+public class ElementSnapshotsTest {
+  @Rule public CompilationRule compilationRule = new CompilationRule();
+
+  private Elements eltUtils;
+
+  @Before
+  public void setUp() {
+    this.eltUtils = compilationRule.getElements();
+  }
+
+  @interface Described {
+    String value();
+
+    int priority() default 3;
+
+    Class<?>[] types() default {};
+
+    RetentionPolicy policy() default RetentionPolicy.SOURCE;
+  }
+
+
+  @Described(value = "snapshot", types = {String.class, List.class})
+  static class Snapshotted {
+    List<String> names;
+
+    void rename(@Described("parameter") String name) {
+    }
+  }
+
+  static class Signatures<T extends Number & Comparable<T>> {
+    static final String CONSTANT = "constant";
+
+    <E extends Exception> void fail() throws E, java.io.IOException {
+    }
+  }
+
+  @Test
+  public void snapshotsElementWithItsAnnotationsAndTypes() {
+    TypeElement snapshotted = eltUtils.getTypeElement(Snapshotted.class.getCanonicalName());
+    ElementSnapshot snapshot = ElementSnapshots.snapshot(snapshotted);
+
+    assertThat(snapshot.getKind()).isEqualTo(ElementKind.CLASS);
+    assertThat(snapshot.getSimpleName()).isEqualTo("Snapshotted");
+    assertThat(snapshot.getQualifiedName()).isEqualTo(Snapshotted.class.getCanonicalName());
+    assertThat(snapshot.getType().getQualifiedName()).isEqualTo(Snapshotted.class.getCanonicalName());
+
+    AnnotationSnapshot described = snapshot.getAnnotation(Described.class.getCanonicalName());
+    assertThat(described).isNotNull();
+    assertThat(described.getValues().keySet()).containsExactly("value", "priority", "types", "policy").inOrder();
+    assertThat(described.getValues().get("value")).isEqualTo("snapshot");
+    assertThat(described.getValues().get("priority")).isEqualTo(3);
+    assertThat(((EnumConstantSnapshot) described.getValues().get("policy")).getName()).isEqualTo("SOURCE");
+    assertThat(((List<?>) described.getValues().get("types")))
+        .comparingElementsUsing(Correspondence.<Object, String>transforming(
+            type -> ((TypeSnapshot) type).getQualifiedName(), "has qualified name"))
+        .containsExactly(String.class.getCanonicalName(), List.class.getCanonicalName())
+        .inOrder();
+  }
+
+  @Test
+  public void snapshotsMembersAndParameters() {
+    TypeElement snapshotted = eltUtils.getTypeElement(Snapshotted.class.getCanonicalName());
+    ElementSnapshot snapshot = ElementSnapshots.snapshot(snapshotted);
+
+    ElementSnapshot names = snapshot.getEnclosedElements().stream()
+        .filter(member -> member.getSimpleName().equals("names")).findFirst().orElseThrow();
+    assertThat(names.getType().getKind()).isEqualTo(TypeKind.DECLARED);
+    assertThat(names.getType().getQualifiedName()).isEqualTo(List.class.getCanonicalName());
+    assertThat(names.getType().getTypeArguments()).hasSize(1);
+    assertThat(names.getType().getTypeArguments().get(0).getQualifiedName()).isEqualTo(String.class.getCanonicalName());
+
+    ElementSnapshot rename = snapshot.getEnclosedElements().stream()
+        .filter(member -> member.getSimpleName().equals("rename")).findFirst().orElseThrow();
+    assertThat(rename.getParameters()).hasSize(1);
+    assertThat(rename.getParameters().get(0).getAnnotation(Described.class.getCanonicalName()).getValues().get("value"))
+        .isEqualTo("parameter");
+  }
+
+  @Test
+  public void snapshotsOfTheSameElementAreEqual() {
+    TypeElement snapshotted = eltUtils.getTypeElement(Snapshotted.class.getCanonicalName());
+    assertThat(ElementSnapshots.snapshot(snapshotted)).isEqualTo(ElementSnapshots.snapshot(snapshotted));
+    assertThat(ElementSnapshots.snapshot(snapshotted).getAnnotations())
+        .isInstanceOf(ImmutableList.class);
+  }
+
+  @Test
+  public void snapshotsSignaturesBeyondTheTypes() {
+    ElementSnapshot signatures =
+        ElementSnapshots.snapshot(eltUtils.getTypeElement(Signatures.class.getCanonicalName()));
+    assertThat(signatures.getTypeParameters()).hasSize(1);
+    assertThat(signatures.getTypeParameters().get(0).getBounds())
+        .comparingElementsUsing(Correspondence.<TypeSnapshot, String>transforming(
+            TypeSnapshot::getQualifiedName, "has qualified name"))
+        .containsExactly(Number.class.getCanonicalName(), Comparable.class.getCanonicalName())
+        .inOrder();
+
+    ElementSnapshot constant = signatures.getEnclosedElements().stream()
+        .filter(member -> member.getSimpleName().equals("CONSTANT")).findFirst().orElseThrow();
+    assertThat(constant.getConstantValue()).isEqualTo("constant");
+
+    ElementSnapshot fail = signatures.getEnclosedElements().stream()
+        .filter(member -> member.getSimpleName().equals("fail")).findFirst().orElseThrow();
+    assertThat(fail.getTypeParameters().get(0).getBounds().get(0).getQualifiedName())
+        .isEqualTo(Exception.class.getCanonicalName());
+    assertThat(fail.getThrownTypes()).hasSize(2);
+    assertThat(fail.getThrownTypes().get(1).getQualifiedName()).isEqualTo(java.io.IOException.class.getCanonicalName());
+    assertThat(fail.getDefaultValue()).isNull();
+
+    ElementSnapshot priority = ElementSnapshots.snapshot(eltUtils.getTypeElement(Described.class.getCanonicalName()))
+        .getEnclosedElements().stream()
+        .filter(member -> member.getSimpleName().equals("priority")).findFirst().orElseThrow();
+    assertThat(priority.getDefaultValue()).isEqualTo(3);
+  }
+}
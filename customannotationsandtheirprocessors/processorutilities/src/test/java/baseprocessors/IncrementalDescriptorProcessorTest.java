@@ -0,0 +1,83 @@
+package baseprocessors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.testing.compile.Compilation;
+import com.google.testing.compile.Compiler;
+import com.google.testing.compile.JavaFileObjects;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.tools.JavaFileObject;
+import java.io.File;
+import java.net.URISyntaxException;
+
+import static com.google.testing.compile.CompilationSubject.assertThat;
+import static com.google.testing.compile.Compiler.javac;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+
+@RunWith(JUnit4.class)
+public class IncrementalDescriptorProcessorTest {
+
+  /**
+   * The annotated sources need {@link IncrementalAnnotationProcessor}, which is on the module path of the tests.
+   */
+  private static Compiler compiler() throws URISyntaxException {
+    File annotationLocation =
+        new File(IncrementalAnnotationProcessor.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    return javac()
+        .withClasspath(ImmutableList.of(annotationLocation))
+        .withProcessors(new IncrementalDescriptorProcessor());
+  }
+
+  @Test
+  public void listsAnnotatedProcessorsByBinaryName() throws URISyntaxException {
+    JavaFileObject isolating =
+        JavaFileObjects.forSourceLines(
+            "test.IsolatingProcessor",
+            "package test;",
+            "",
+            "import baseprocessors.IncrementalAnnotationProcessor;",
+            "",
+            "@IncrementalAnnotationProcessor(IncrementalAnnotationProcessor.Kind.ISOLATING)",
+            "public class IsolatingProcessor extends javax.annotation.processing.AbstractProcessor {",
+            "  public boolean process(java.util.Set<? extends javax.lang.model.element.TypeElement> annotations,",
+            "      javax.annotation.processing.RoundEnvironment roundEnv) {",
+            "    return false;",
+            "  }",
+            "",
+            "  @IncrementalAnnotationProcessor(IncrementalAnnotationProcessor.Kind.AGGREGATING)",
+            "  public static class Nested extends IsolatingProcessor {}",
+            "}"
+        );
+
+    Compilation compilation = compiler().compile(isolating);
+    assertThat(compilation).succeeded();
+    assertThat(compilation)
+        .generatedFile(CLASS_OUTPUT, IncrementalDescriptorProcessor.DESCRIPTOR_PATH)
+        .contentsAsUtf8String()
+        .isEqualTo(String.join(System.lineSeparator(),
+            "test.IsolatingProcessor,isolating",
+            "test.IsolatingProcessor$Nested,aggregating",
+            ""));
+  }
+
+  @Test
+  public void rejectsAbstractClasses() throws URISyntaxException {
+    JavaFileObject source =
+        JavaFileObjects.forSourceLines(
+            "test.AbstractProcessor",
+            "package test;",
+            "",
+            "import baseprocessors.IncrementalAnnotationProcessor;",
+            "",
+            "@IncrementalAnnotationProcessor(IncrementalAnnotationProcessor.Kind.ISOLATING)",
+            "public abstract class AbstractProcessor extends javax.annotation.processing.AbstractProcessor {}"
+        );
+
+    Compilation compilation = compiler().compile(source);
+    assertThat(compilation).failed();
+    assertThat(compilation).hadErrorContaining("concrete annotation processor classes");
+  }
+
+}
@@ -16,6 +16,7 @@
 package baseprocessors;
 
 import com.google.common.collect.*;
+import com.google.common.testing.EqualsTester;
 import com.google.common.testing.EquivalenceTester;
 import com.google.common.truth.Expect;
 import com.google.testing.compile.CompilationRule;
@@ -243,6 +244,57 @@ public class MoreTypesTest {
   private static final class FunkierBounds<T extends Number & Comparable<T> & Cloneable> {
   }
 
+  @Test
+  public void equivalenceOfDeeplyNestedTypes() {
+    Types typeUtils = compilationRule.getTypes();
+    Elements eltUtils = compilationRule.getElements();
+    TypeElement mapElement = eltUtils.getTypeElement(Map.class.getCanonicalName());
+    TypeMirror stringType = eltUtils.getTypeElement(String.class.getCanonicalName()).asType();
+    TypeMirror integerType = eltUtils.getTypeElement(Integer.class.getCanonicalName()).asType();
+    TypeMirror nested1 = stringType;
+    TypeMirror nested2 = stringType;
+    TypeMirror nested3 = integerType;
+    for (int i = 0; i < 50; i++) {
+      nested1 = typeUtils.getDeclaredType(mapElement, stringType, nested1);
+      nested2 = typeUtils.getDeclaredType(mapElement, stringType, nested2);
+      nested3 = typeUtils.getDeclaredType(mapElement, stringType, nested3);
+    }
+
+    assertThat(MoreTypes.equivalence().equivalent(nested1, nested2)).isTrue();
+    assertThat(MoreTypes.equivalence().hash(nested1)).isEqualTo(MoreTypes.equivalence().hash(nested2));
+    assertThat(MoreTypes.equivalence().equivalent(nested1, nested3)).isFalse();
+  }
+
+  @Test
+  public void hashCachingEquivalenceAndHashedTypes() {
+    Types typeUtils = compilationRule.getTypes();
+    Elements eltUtils = compilationRule.getElements();
+    TypeElement setElement = eltUtils.getTypeElement(Set.class.getCanonicalName());
+    TypeMirror objectType = eltUtils.getTypeElement(Object.class.getCanonicalName()).asType();
+    TypeMirror stringType = eltUtils.getTypeElement(String.class.getCanonicalName()).asType();
+    DeclaredType setOfObject1 = typeUtils.getDeclaredType(setElement, objectType);
+    DeclaredType setOfObject2 = typeUtils.getDeclaredType(setElement, objectType);
+    DeclaredType setOfString = typeUtils.getDeclaredType(setElement, stringType);
+
+    MoreTypes.HashCachingTypeEquivalence equivalence = MoreTypes.hashCachingEquivalence();
+    EquivalenceTester.<TypeMirror>of(equivalence)
+        .addEquivalenceGroup(setOfObject1, setOfObject2)
+        .addEquivalenceGroup(setOfString)
+        .test();
+    expect.that(equivalence.hash(setOfObject1)).isEqualTo(MoreTypes.equivalence().hash(setOfObject1));
+
+    equivalence.clear();
+    expect.that(equivalence.equivalent(setOfObject1, setOfObject2)).isTrue();
+    expect.that(equivalence.equivalent(setOfObject1, setOfString)).isFalse();
+
+    new EqualsTester()
+        .addEqualityGroup(MoreTypes.hashed(setOfObject1), MoreTypes.hashed(setOfObject2), equivalence.hashed(setOfObject2))
+        .addEqualityGroup(MoreTypes.hashed(setOfString), equivalence.hashed(setOfString))
+        .addEqualityGroup(MoreTypes.hashed(null))
+        .testEquals();
+    expect.that(MoreTypes.hashed(setOfObject1).get()).isSameInstanceAs(setOfObject1);
+  }
+
   @Test
   public void testReferencedTypes() {
     Elements eltUtils = compilationRule.getElements();
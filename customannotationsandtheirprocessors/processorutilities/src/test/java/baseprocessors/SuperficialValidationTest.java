@@ -15,6 +15,7 @@
  */
 package baseprocessors;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.testing.compile.JavaFileObjects;
 import org.junit.Test;
@@ -23,12 +24,17 @@ import org.junit.runners.JUnit4;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.ModuleElement;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
 import javax.tools.JavaFileObject;
 import java.util.Set;
 
 import static com.google.common.truth.Truth.*;
 import static com.google.testing.compile.JavaSourceSubjectFactory.javaSource;
+import static com.google.testing.compile.JavaSourcesSubjectFactory.javaSources;
 
 @RunWith(JUnit4.class)
 public class SuperficialValidationTest {
@@ -307,6 +313,309 @@ public class SuperficialValidationTest {
         .failsToCompile();
   }
 
+  @Test
+  public void memoizingValidatorAgreesWithStaticValidators() {
+    JavaFileObject javaFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.TestClass",
+            "package test;",
+            "",
+            "abstract class TestClass {",
+            "  abstract MissingType blah();",
+            "  abstract MissingType blahBlah();",
+            "}",
+            "",
+            "class ValidClass extends TestClass {",
+            "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(
+            new AssertingProcessor() {
+              @Override
+              void runAssertions() {
+                TypeElement testClassElement =
+                    processingEnv.getElementUtils().getTypeElement("test.TestClass");
+                TypeElement objectElement =
+                    processingEnv.getElementUtils().getTypeElement("java.lang.Object");
+                SuperficialValidation validator = SuperficialValidation.memoizing();
+                for (int i = 0; i < 2; i++) {
+                  ValidationResult validation = validator.explain(testClassElement, SuperficialValidation.Depth.FULL);
+                  assertThat(validation.isValid()).isFalse();
+                  assertThat(validation.getFirstErrorType().isPresent()).isTrue();
+                  assertThat(validation.getFirstErrorType().get().toString()).isEqualTo("MissingType");
+                  assertThat(validator.explain(objectElement, SuperficialValidation.Depth.FULL).isValid()).isTrue();
+                  assertThat(validator.explain(objectElement, SuperficialValidation.Depth.FULL).getFirstErrorType().isPresent()).isFalse();
+                }
+                assertThat(validator.isValidType(testClassElement.asType()))
+                    .isEqualTo(SuperficialValidation.validateType(testClassElement.asType()));
+                validator.clearCache();
+                assertThat(validator.explain(testClassElement, SuperficialValidation.Depth.FULL).getFirstErrorType().isPresent()).isTrue();
+              }
+            })
+        .failsToCompile();
+  }
+
+  @Test
+  public void classFileElementsAreValidWithoutTraversal() {
+    JavaFileObject javaFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.TestClass",
+            "package test;",
+            "",
+            "abstract class TestClass {",
+            "  abstract MissingType blah();",
+            "",
+            "  static class Nested {}",
+            "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(
+            new AssertingProcessor() {
+              @Override
+              void runAssertions() {
+                TypeElement testClassElement =
+                    processingEnv.getElementUtils().getTypeElement("test.TestClass");
+                TypeElement nestedElement =
+                    processingEnv.getElementUtils().getTypeElement("test.TestClass.Nested");
+                TypeElement mapEntryElement =
+                    processingEnv.getElementUtils().getTypeElement("java.util.Map.Entry");
+                SuperficialValidation validator = SuperficialValidation.memoizing(processingEnv);
+                assertThat(validator.isFromClassFile(mapEntryElement)).isTrue();
+                assertThat(validator.isFromClassFile(mapEntryElement.getEnclosedElements().get(0))).isTrue();
+                assertThat(validator.isFromClassFile(testClassElement)).isFalse();
+                assertThat(validator.isFromClassFile(nestedElement)).isFalse();
+                assertThat(validator.isValidElement(mapEntryElement)).isTrue();
+                assertThat(validator.isValidElement(testClassElement)).isFalse();
+              }
+            })
+        .failsToCompile();
+  }
+
+  @Test
+  public void validatesToTheGivenDepth() {
+    JavaFileObject javaFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.TestClass",
+            "package test;",
+            "",
+            "abstract class TestClass {",
+            "  abstract MissingType blah();",
+            "}",
+            "",
+            "class OuterClass {",
+            "  abstract static class NestedClass {",
+            "    abstract MissingType blah();",
+            "  }",
+            "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(
+            new AssertingProcessor() {
+              @Override
+              void runAssertions() {
+                TypeElement testClassElement =
+                    processingEnv.getElementUtils().getTypeElement("test.TestClass");
+                TypeElement outerClassElement =
+                    processingEnv.getElementUtils().getTypeElement("test.OuterClass");
+                assertThat(SuperficialValidation.validateElement(testClassElement, SuperficialValidation.Depth.SIGNATURE_ONLY)).isTrue();
+                assertThat(SuperficialValidation.validateElement(testClassElement, SuperficialValidation.Depth.MEMBERS)).isFalse();
+                assertThat(SuperficialValidation.validateElement(outerClassElement, SuperficialValidation.Depth.MEMBERS)).isTrue();
+                assertThat(SuperficialValidation.validateElement(outerClassElement, SuperficialValidation.Depth.FULL)).isFalse();
+
+                SuperficialValidation validator = SuperficialValidation.memoizing();
+                assertThat(validator.isValidElement(outerClassElement, SuperficialValidation.Depth.MEMBERS)).isTrue();
+                assertThat(validator.isValidElement(outerClassElement)).isFalse();
+                assertThat(validator.isValidElement(testClassElement, SuperficialValidation.Depth.SIGNATURE_ONLY)).isTrue();
+              }
+            })
+        .failsToCompile();
+  }
+
+  @Test
+  public void validatesTheValuesOfTheScopedAnnotationsOnly() {
+    JavaFileObject javaFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.TestClass",
+            "package test;",
+            "",
+            "@interface Read { Class<?>[] value(); }",
+            "@interface Unread { Class<?>[] value(); }",
+            "",
+            "@Unread(MissingType.class)",
+            "class UnreadClass {}",
+            "",
+            "@Read(MissingType.class)",
+            "class ReadClass {}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(
+            new AssertingProcessor() {
+              @Override
+              void runAssertions() {
+                TypeElement unreadClassElement = processingEnv.getElementUtils().getTypeElement("test.UnreadClass");
+                TypeElement readClassElement = processingEnv.getElementUtils().getTypeElement("test.ReadClass");
+                assertThat(SuperficialValidation.validateElement(unreadClassElement)).isFalse();
+
+                SuperficialValidation validator =
+                    SuperficialValidation.memoizing(processingEnv, ImmutableSet.of("test.Read"));
+                assertThat(validator.isValidElement(unreadClassElement)).isTrue();
+                assertThat(validator.isValidElement(readClassElement)).isFalse();
+                assertThat(validator.isValidType(readClassElement.asType())).isTrue();
+                // Explicitly validated annotations are validated in full
+                assertThat(validator.isValidAnnotation(unreadClassElement.getAnnotationMirrors().get(0))).isFalse();
+              }
+            })
+        .failsToCompile();
+  }
+
+  @Test
+  public void invalidAnnotationOfModule() {
+    JavaFileObject moduleInfo =
+        JavaFileObjects.forSourceLines(
+            "module-info",
+            "@test.Service.Anno(test.MissingType.class)",
+            "module test.mod {",
+            "  uses test.Service;",
+            "}");
+    JavaFileObject service =
+        JavaFileObjects.forSourceLines(
+            "test.Service",
+            "package test;",
+            "",
+            "public interface Service {",
+            "  @interface Anno { Class<?> value(); }",
+            "}");
+    assertAbout(javaSources())
+        .that(ImmutableList.of(moduleInfo, service))
+        .processedWith(
+            new AssertingProcessor() {
+              @Override
+              void runAssertions() {
+                ModuleElement moduleElement = processingEnv.getElementUtils().getModuleElement("test.mod");
+                assertThat(SuperficialValidation.validateElement(moduleElement)).isFalse();
+                assertThat(SuperficialValidation.explainElement(moduleElement, SuperficialValidation.Depth.FULL)
+                    .getPath()).isEqualTo("test.mod -> @Anno");
+              }
+            })
+        .failsToCompile();
+  }
+
+  @Test
+  public void handlesDeeplyNestedTypeArguments() {
+    JavaFileObject javaFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.TestClass",
+            "package test;",
+            "",
+            "abstract class TestClass {",
+            "  MissingType missing;",
+            "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(
+            new AssertingProcessor() {
+              @Override
+              void runAssertions() {
+                Types types = processingEnv.getTypeUtils();
+                TypeElement listElement = processingEnv.getElementUtils().getTypeElement("java.util.List");
+                TypeElement testClassElement =
+                    processingEnv.getElementUtils().getTypeElement("test.TestClass");
+                TypeMirror validType = processingEnv.getElementUtils().getTypeElement("java.lang.String").asType();
+                TypeMirror invalidType = ElementFilter.fieldsIn(testClassElement.getEnclosedElements()).get(0).asType();
+                // List<List<...List<T>...>>, far deeper than a recursive traversal could go
+                for (int i = 0; i < 100_000; i++) {
+                  validType = types.getDeclaredType(listElement, validType);
+                  invalidType = types.getDeclaredType(listElement, invalidType);
+                }
+                assertThat(SuperficialValidation.validateType(validType)).isTrue();
+                assertThat(SuperficialValidation.validateType(invalidType)).isFalse();
+                SuperficialValidation validator = SuperficialValidation.memoizing();
+                assertThat(validator.isValidType(invalidType)).isFalse();
+                // The stack shrunk by clearCache() grows again
+                validator.clearCache();
+                assertThat(validator.isValidType(validType)).isTrue();
+              }
+            })
+        .failsToCompile();
+  }
+
+  @Test
+  public void explainsThePathToTheFirstUnresolvedType() {
+    JavaFileObject javaFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.Foo",
+            "package test;",
+            "",
+            "import java.util.List;",
+            "",
+            "abstract class Foo {",
+            "  abstract void bar(List<Missing> x);",
+            "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(
+            new AssertingProcessor() {
+              @Override
+              void runAssertions() {
+                TypeElement fooElement = processingEnv.getElementUtils().getTypeElement("test.Foo");
+                ValidationResult result =
+                    SuperficialValidation.explainElement(fooElement, SuperficialValidation.Depth.FULL);
+                assertThat(result.isValid()).isFalse();
+                assertThat(result.getMissingTypeName().get()).isEqualTo("Missing");
+                assertThat(result.getPath()).isEqualTo("Foo.bar(param x) -> java.util.List<Missing>");
+                assertThat(result.describe()).isEqualTo("Missing in Foo.bar(param x) -> java.util.List<Missing>");
+
+                TypeElement stringElement = processingEnv.getElementUtils().getTypeElement("java.lang.String");
+                assertThat(SuperficialValidation.explainElement(stringElement, SuperficialValidation.Depth.FULL).isValid())
+                    .isTrue();
+              }
+            })
+        .failsToCompile();
+  }
+
+  @Test
+  public void staticValidatorsAreIndependentOfEachOther() {
+    JavaFileObject javaFileObject =
+        JavaFileObjects.forSourceLines(
+            "test.Foo",
+            "package test;",
+            "",
+            "@interface Values {",
+            "  boolean z(); byte b(); char c(); short s(); int i(); long j(); float f(); double d();",
+            "  String string(); String[] strings();",
+            "}",
+            "",
+            "@Values(z = true, b = 1, c = 'c', s = 2, i = 3, j = 4L, f = 5f, d = 6d,",
+            "    string = \"string\", strings = {\"a\", \"b\"})",
+            "class Foo {}",
+            "",
+            "class Bar {",
+            "  Missing missing;",
+            "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(
+            new AssertingProcessor() {
+              @Override
+              void runAssertions() {
+                TypeElement fooElement = processingEnv.getElementUtils().getTypeElement("test.Foo");
+                TypeElement barElement = processingEnv.getElementUtils().getTypeElement("test.Bar");
+                for (int i = 0; i < 3; i++) {
+                  assertThat(SuperficialValidation.validateElement(fooElement)).isTrue();
+                  assertThat(SuperficialValidation.explainElement(barElement, SuperficialValidation.Depth.FULL)
+                      .describe()).isEqualTo("Missing in Bar.missing");
+                  assertThat(SuperficialValidation.validateElements(ImmutableList.of(fooElement, barElement)))
+                      .isFalse();
+                  assertThat(SuperficialValidation.validateAnnotations(fooElement.getAnnotationMirrors())).isTrue();
+                  // A released validator is replaced by a new one
+                  if (i == 1)
+                    SuperficialValidation.releaseStaticValidator();
+                }
+              }
+            })
+        .failsToCompile();
+  }
+
   private abstract static class AssertingProcessor extends AbstractProcessor {
     @Override
     public Set<String> getSupportedAnnotationTypes() {
@@ -0,0 +1,89 @@
+package baseprocessors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.testing.compile.CompilationRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import utils.TypeHierarchyIndex;
+
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests {@link TypeHierarchyIndex}.
+ */
+@RunWith(JUnit4.class)
+public class TypeHierarchyIndexTest {
+  @Rule public CompilationRule compilationRule = new CompilationRule();
+
+  private Elements eltUtils;
+  private Types typeUtils;
+
+  @Before
+  public void setUp() {
+    this.eltUtils = compilationRule.getElements();
+    this.typeUtils = compilationRule.getTypes();
+  }
+
+  private TypeElement typeElementOf(Class<?> clazz) {
+    return eltUtils.getTypeElement(clazz.getCanonicalName());
+  }
+
+  interface Named {
+  }
+
+  static class Root implements Named {
+    static class Member extends ArrayList<String> implements Named {
+    }
+  }
+
+  @Test
+  public void answersSubtypeQueries() {
+    TypeHierarchyIndex index = new TypeHierarchyIndex();
+    TypeElement arrayList = typeElementOf(ArrayList.class);
+    assertThat(index.isSubtypeOf(arrayList, Collection.class.getCanonicalName())).isTrue();
+    assertThat(index.isSubtypeOf(arrayList, RandomAccess.class.getCanonicalName())).isTrue();
+    assertThat(index.isSubtypeOf(arrayList, ArrayList.class.getCanonicalName())).isTrue();
+    assertThat(index.isSubtypeOf(arrayList, Object.class.getCanonicalName())).isTrue();
+    assertThat(index.isSubtypeOf(arrayList, HashMap.class.getCanonicalName())).isFalse();
+    assertThat(index.isSubtypeOf(arrayList, "no.such.Type")).isFalse();
+    // as in MoreTypes.isTypeOf(), an interface declares no superclass
+    assertThat(index.isSubtypeOf(typeElementOf(List.class), Object.class.getCanonicalName())).isFalse();
+    assertThat(index.isSubtypeOf(typeElementOf(List.class), Collection.class.getCanonicalName())).isTrue();
+
+    assertThat(index.isSubtypeOf(
+        typeUtils.getDeclaredType(arrayList, typeElementOf(String.class).asType()), List.class.getCanonicalName()))
+        .isTrue();
+    assertThat(index.isSubtypeOf(typeUtils.getArrayType(arrayList.asType()), List.class.getCanonicalName())).isFalse();
+  }
+
+  @Test
+  public void answersReverseQueriesAmongTheRootTypes() {
+    TypeHierarchyIndex index = new TypeHierarchyIndex();
+    TypeElement root = typeElementOf(Root.class);
+    TypeElement member = typeElementOf(Root.Member.class);
+    TypeElement string = typeElementOf(String.class);
+    index.indexRootElements(ImmutableList.of(root, string, eltUtils.getPackageElement("java.util")));
+    index.indexRootElements(ImmutableList.of(root));
+
+    assertThat(index.subtypesOf(Named.class.getCanonicalName())).containsExactly(root, member).inOrder();
+    assertThat(index.subtypesOf(Collection.class.getCanonicalName())).containsExactly(member);
+    assertThat(index.subtypesOf(Object.class.getCanonicalName())).containsAtLeast(root, member, string).inOrder();
+    assertThat(index.subtypesOf("no.such.Type")).isEmpty();
+
+    index.clear();
+    assertThat(index.size()).isEqualTo(0);
+    assertThat(index.subtypesOf(Named.class.getCanonicalName())).isEmpty();
+  }
+}
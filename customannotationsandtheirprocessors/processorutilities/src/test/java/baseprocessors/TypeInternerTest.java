@@ -0,0 +1,65 @@
+package baseprocessors;
+
+import com.google.testing.compile.CompilationRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import utils.TypeInterner;
+
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests {@link TypeInterner}.
+ */
+@RunWith(JUnit4.class)
+public class TypeInternerTest {
+  @Rule public CompilationRule compilationRule = new CompilationRule();
+
+  private Types typeUtils;
+  private Elements eltUtils;
+
+  @Before
+  public void setUp() {
+    this.typeUtils = compilationRule.getTypes();
+    this.eltUtils = compilationRule.getElements();
+  }
+
+  private TypeMirror typeOf(Class<?> clazz) {
+    return eltUtils.getTypeElement(clazz.getCanonicalName()).asType();
+  }
+
+  @Test
+  public void internsStructurallyEqualTypesToTheFirstOne() {
+    TypeElement mapElement = eltUtils.getTypeElement(Map.class.getCanonicalName());
+    TypeElement listElement = eltUtils.getTypeElement(List.class.getCanonicalName());
+    TypeMirror stringType = typeOf(String.class);
+    TypeMirror mapOfStringToListOfString1 =
+        typeUtils.getDeclaredType(mapElement, stringType, typeUtils.getDeclaredType(listElement, stringType));
+    TypeMirror mapOfStringToListOfString2 =
+        typeUtils.getDeclaredType(mapElement, stringType, typeUtils.getDeclaredType(listElement, stringType));
+    TypeMirror mapOfStringToListOfInteger =
+        typeUtils.getDeclaredType(mapElement, stringType, typeUtils.getDeclaredType(listElement, typeOf(Integer.class)));
+    assertThat(mapOfStringToListOfString1).isNotSameInstanceAs(mapOfStringToListOfString2);
+
+    TypeInterner interner = new TypeInterner();
+    assertThat(interner.intern(mapOfStringToListOfString1)).isSameInstanceAs(mapOfStringToListOfString1);
+    assertThat(interner.intern(mapOfStringToListOfString2)).isSameInstanceAs(mapOfStringToListOfString1);
+    assertThat(interner.intern(mapOfStringToListOfString2)).isSameInstanceAs(mapOfStringToListOfString1);
+    assertThat(interner.intern(mapOfStringToListOfInteger)).isSameInstanceAs(mapOfStringToListOfInteger);
+    assertThat(interner.intern(null)).isNull();
+    assertThat(interner.size()).isEqualTo(2);
+
+    interner.clear();
+    assertThat(interner.size()).isEqualTo(0);
+    assertThat(interner.intern(mapOfStringToListOfString2)).isSameInstanceAs(mapOfStringToListOfString2);
+  }
+}
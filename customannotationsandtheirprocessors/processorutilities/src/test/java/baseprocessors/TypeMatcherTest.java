@@ -0,0 +1,161 @@
+package baseprocessors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.testing.compile.CompilationRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import utils.MoreTypes;
+import utils.TypeMatcher;
+
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ElementVisitor;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVisitor;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static org.junit.Assert.assertThrows;
+
+/**
+ * Tests {@link TypeMatcher}.
+ */
+@RunWith(JUnit4.class)
+public class TypeMatcherTest {
+  @Rule public CompilationRule compilationRule = new CompilationRule();
+
+  private Elements eltUtils;
+  private Types typeUtils;
+
+  @Before
+  public void setUp() {
+    this.eltUtils = compilationRule.getElements();
+    this.typeUtils = compilationRule.getTypes();
+  }
+
+  private TypeMirror typeOf(Class<?> clazz) {
+    return eltUtils.getTypeElement(clazz.getCanonicalName()).asType();
+  }
+
+  @Test
+  public void agreesWithMoreTypes() {
+    TypeMirror stringType = typeOf(String.class);
+    TypeElement listElement = eltUtils.getTypeElement(List.class.getCanonicalName());
+    DeclaredType listOfString = typeUtils.getDeclaredType(listElement, stringType);
+    ImmutableList<TypeMirror> types = ImmutableList.of(
+        typeUtils.getPrimitiveType(TypeKind.INT),
+        typeUtils.getPrimitiveType(TypeKind.BOOLEAN),
+        typeUtils.getNoType(TypeKind.VOID),
+        typeOf(Object.class),
+        stringType,
+        typeOf(Integer.class),
+        listOfString,
+        typeOf(ArrayList.class),
+        typeOf(Map.class),
+        typeUtils.getArrayType(stringType),
+        typeUtils.getArrayType(typeUtils.getPrimitiveType(TypeKind.INT)),
+        typeUtils.getArrayType(listOfString),
+        typeUtils.getWildcardType(null, null),
+        typeUtils.getWildcardType(listOfString, null),
+        listElement.getTypeParameters().get(0).asType());
+    ImmutableList<Class<?>> classes = ImmutableList.of(
+        int.class, boolean.class, void.class, Object.class, String.class, CharSequence.class, Integer.class,
+        Number.class, List.class, Collection.class, AbstractList.class, ArrayList.class, Serializable.class,
+        Map.class, String[].class, Object[].class, int[].class, List[].class, Iterable[].class);
+
+    for (Class<?> clazz : classes) {
+      TypeMatcher matcher = TypeMatcher.of(clazz);
+      // twice, to exercise the memoized verdicts
+      for (int i = 0; i < 2; i++) {
+        for (TypeMirror type : types) {
+          assertWithMessage("%s matches %s", matcher, type)
+              .that(matcher.matches(type)).isEqualTo(MoreTypes.isTypeOf(clazz, type));
+          if (MoreTypes.isClassType(type))
+            assertWithMessage("%s matches exactly %s", matcher, type)
+                .that(matcher.matchesExactly(type)).isEqualTo(MoreTypes.isExactTypeOf(clazz, type));
+        }
+      }
+      matcher.clear();
+    }
+  }
+
+  @Test
+  public void rejectsTypesThatCannotBeClasses() {
+    TypeMatcher matcher = TypeMatcher.of(Object.class);
+    assertThrows(IllegalArgumentException.class, () -> matcher.matches(typeUtils.getNullType()));
+    assertThrows(IllegalArgumentException.class, () -> matcher.matchesExactly(typeUtils.getNoType(TypeKind.NONE)));
+    assertThrows(IllegalArgumentException.class, () -> matcher.matchesExactly(typeUtils.getWildcardType(null, null)));
+  }
+
+  /*
+   * A stub of a class type element, of the given qualified name, whose superclass is that of the stub of superclassName.
+   * javac rejects a cyclic hierarchy before any processor runs; hence, a cyclic one is made of stubs.
+   */
+  @SuppressWarnings("unchecked")
+  private TypeElement stubTypeElement(String qualifiedName, String superclassName, Map<String, TypeElement> stubs) {
+    Name name = eltUtils.getName(qualifiedName);
+    TypeElement[] typeElement = new TypeElement[1];
+    DeclaredType type = (DeclaredType) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[]{DeclaredType.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getKind": return TypeKind.DECLARED;
+            case "asElement": return typeElement[0];
+            case "accept": return ((TypeVisitor<?, Object>) args[0]).visitDeclared((DeclaredType) proxy, args[1]);
+            case "toString": return qualifiedName;
+            default: return stubObjectMethod(proxy, method, args);
+          }
+        });
+    typeElement[0] = (TypeElement) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[]{TypeElement.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getKind": return ElementKind.CLASS;
+            case "getQualifiedName": return name;
+            case "asType": return type;
+            case "getInterfaces": return ImmutableList.of();
+            case "getSuperclass": return stubs.get(superclassName).asType();
+            case "accept": return ((ElementVisitor<?, Object>) args[0]).visitType((TypeElement) proxy, args[1]);
+            case "toString": return qualifiedName;
+            default: return stubObjectMethod(proxy, method, args);
+          }
+        });
+    stubs.put(qualifiedName, typeElement[0]);
+    return typeElement[0];
+  }
+
+  private static Object stubObjectMethod(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "equals": return proxy == args[0];
+      case "hashCode": return System.identityHashCode(proxy);
+      default: throw new UnsupportedOperationException(method.getName());
+    }
+  }
+
+  @Test
+  public void terminatesOnCyclicHierarchies() {
+    Map<String, TypeElement> stubs = new HashMap<>();
+    TypeElement cyclic = stubTypeElement("test.Cyclic", "test.Other", stubs);
+    TypeElement other = stubTypeElement("test.Other", "test.Cyclic", stubs);
+
+    TypeMatcher matcher = TypeMatcher.of(Serializable.class);
+    assertThat(matcher.matches(cyclic.asType())).isFalse();
+    assertThat(matcher.matches(other.asType())).isFalse();
+    assertThat(TypeMatcher.of(String.class).matches(other.asType())).isFalse();
+  }
+}